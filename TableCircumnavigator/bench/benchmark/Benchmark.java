@@ -0,0 +1,56 @@
+package benchmark;
+
+/**
+ * A benchmark run by BenchmarkRunner.
+ *
+ * The runner calls setUp once, then run repeatedly with an operation count
+ * chosen so that each iteration lasts about the iteration time, then tearDown.
+ * The score is the mean time per operation.
+ *
+ * run returns a value derived from the work done, which the runner consumes,
+ * so that the JIT compiler cannot remove the work as dead code.
+ *
+ * @author Braden Phillips
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    /**
+     * Constructor
+     *
+     * @param name e.g. "roombaif.decode:packets=large"
+     */
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Prepare the state for the benchmark.
+     *
+     * @throws Exception
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Perform the operation being measured a number of times.
+     *
+     * @param operations the number of times
+     * @return a value derived from the results
+     * @throws Exception
+     */
+    public abstract long run(int operations) throws Exception;
+
+    /**
+     * Release the state for the benchmark.
+     *
+     * @throws Exception
+     */
+    public void tearDown() throws Exception {
+    }
+}
@@ -0,0 +1,240 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import roombaif.DecoderBenchmark;
+import roombaif.SensorDataBenchmark;
+import tablecircumnavigator.InputLinkBenchmark;
+import tablecircumnavigator.LoggingBenchmark;
+
+/**
+ * Runs the benchmarks and writes the results as JSON.
+ *
+ * Each benchmark is warmed up, then measured over a number of timed
+ * iterations, reporting the mean time per operation and its 99.9% confidence
+ * interval. The JSON is laid out as JMH writes it, so results can be compared
+ * across releases with the same tools.
+ *
+ * System properties:
+ * <ul>
+ * <li>bench.filter - a regular expression; only benchmarks whose names it
+ * finds are run</li>
+ * <li>bench.results - the JSON file (default build/bench/results.json)</li>
+ * <li>bench.warmup, bench.iterations - iteration counts (default 5 and 10)</li>
+ * <li>bench.time - the length of an iteration in ms (default 500)</li>
+ * </ul>
+ *
+ * @author Braden Phillips
+ */
+public class BenchmarkRunner {
+
+    /* Student's t at 99.9% (two sided) for 1 to 30 degrees of freedom */
+    private static final double[] T_999 = {636.619, 31.599, 12.924, 8.610,
+        6.869, 5.959, 5.408, 5.041, 4.781, 4.587, 4.437, 4.318, 4.221, 4.140,
+        4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768, 3.745,
+        3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+
+    /* Consumes the values returned by the benchmarks */
+    private static volatile long sink;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+
+    /**
+     * Constructor
+     *
+     * @param warmupIterations
+     * @param measurementIterations
+     * @param iterationMillis
+     */
+    public BenchmarkRunner(int warmupIterations, int measurementIterations,
+            long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1000000L;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.addAll(DecoderBenchmark.all());
+        benchmarks.addAll(SensorDataBenchmark.all());
+        benchmarks.addAll(InputLinkBenchmark.all());
+        benchmarks.addAll(LoggingBenchmark.all());
+
+        Pattern filter = Pattern.compile(System.getProperty("bench.filter", ""));
+        BenchmarkRunner runner = new BenchmarkRunner(
+                Integer.getInteger("bench.warmup", 5),
+                Integer.getInteger("bench.iterations", 10),
+                Long.getLong("bench.time", 500));
+        List<Result> results = new ArrayList<Result>();
+        for (Benchmark b : benchmarks) {
+            if (filter.matcher(b.getName()).find()) {
+                Result r = runner.run(b);
+                System.out.println(r);
+                results.add(r);
+            }
+        }
+        File file = new File(System.getProperty("bench.results",
+                "build/bench/results.json"));
+        runner.writeJson(results, file);
+        System.out.println("results written to " + file);
+    }
+
+    /**
+     * Warm up and measure a benchmark.
+     *
+     * @param benchmark
+     * @return the result
+     * @throws Exception
+     */
+    public Result run(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            int operations = calibrate(benchmark, 1);
+            for (int i = 0; i < warmupIterations; i++) {
+                operations = calibrate(benchmark, operations);
+            }
+            double[] scores = new double[measurementIterations];
+            for (int i = 0; i < measurementIterations; i++) {
+                scores[i] = iteration(benchmark, operations);
+            }
+            return new Result(benchmark.getName(), operations, scores);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * Find an operation count that takes about an iteration time, starting
+     * from a previous estimate. The first runs of a benchmark are slow, so
+     * the estimate is refined during the warmup iterations.
+     */
+    private int calibrate(Benchmark benchmark, int operations) throws Exception {
+        while (true) {
+            long start = System.nanoTime();
+            sink += benchmark.run(operations);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= iterationNanos / 4 || operations >= (1 << 28)) {
+                return (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                        operations * iterationNanos / Math.max(1, elapsed)));
+            }
+            operations *= 2;
+        }
+    }
+
+    /**
+     * @return the mean time per operation in ns
+     */
+    private double iteration(Benchmark benchmark, int operations) throws Exception {
+        long start = System.nanoTime();
+        sink += benchmark.run(operations);
+        return (double) (System.nanoTime() - start) / operations;
+    }
+
+    /**
+     * Write results as JSON in the layout JMH uses.
+     *
+     * @param results
+     * @param file
+     * @throws IOException
+     */
+    public void writeJson(List<Result> results, File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            json.append("    {\n");
+            json.append("        \"benchmark\" : ").append(quote(r.name)).append(",\n");
+            json.append("        \"mode\" : \"avgt\",\n");
+            json.append("        \"threads\" : 1,\n");
+            json.append("        \"forks\" : 1,\n");
+            json.append("        \"jvm\" : ").append(quote(System.getProperty("java.home"))).append(",\n");
+            json.append("        \"jdkVersion\" : ").append(quote(System.getProperty("java.version"))).append(",\n");
+            json.append("        \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+            json.append("        \"warmupTime\" : \"").append(iterationNanos / 1000000L).append(" ms\",\n");
+            json.append("        \"measurementIterations\" : ").append(r.scores.length).append(",\n");
+            json.append("        \"measurementTime\" : \"").append(iterationNanos / 1000000L).append(" ms\",\n");
+            json.append("        \"operationsPerIteration\" : ").append(r.operations).append(",\n");
+            json.append("        \"primaryMetric\" : {\n");
+            json.append("            \"score\" : ").append(r.getScore()).append(",\n");
+            json.append("            \"scoreError\" : ").append(r.getError()).append(",\n");
+            json.append("            \"scoreConfidence\" : [").append(r.getScore() - r.getError())
+                    .append(", ").append(r.getScore() + r.getError()).append("],\n");
+            json.append("            \"scoreUnit\" : \"ns/op\",\n");
+            json.append("            \"rawData\" : [").append(Arrays.toString(r.scores)).append("]\n");
+            json.append("        }\n");
+            json.append(i + 1 < results.size() ? "    },\n" : "    }\n");
+        }
+        json.append("]\n");
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(json.toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * The measurements of one benchmark.
+     */
+    public static class Result {
+
+        private final String name;
+        private final int operations;
+        private final double[] scores;
+
+        Result(String name, int operations, double[] scores) {
+            this.name = name;
+            this.operations = operations;
+            this.scores = scores;
+        }
+
+        /**
+         * @return the mean time per operation in ns
+         */
+        public double getScore() {
+            double sum = 0;
+            for (double s : scores) {
+                sum += s;
+            }
+            return sum / scores.length;
+        }
+
+        /**
+         * @return the half width of the 99.9% confidence interval in ns
+         */
+        public double getError() {
+            int n = scores.length;
+            if (n < 2) {
+                return Double.NaN;
+            }
+            double mean = getScore();
+            double squares = 0;
+            for (double s : scores) {
+                squares += (s - mean) * (s - mean);
+            }
+            double t = T_999[Math.min(n - 1, T_999.length) - 1];
+            return t * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-50s %12.1f +- %8.1f ns/op", name, getScore(), getError());
+        }
+    }
+}
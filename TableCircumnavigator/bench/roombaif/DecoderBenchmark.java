@@ -0,0 +1,134 @@
+package roombaif;
+
+import benchmark.Benchmark;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures SensorFrameDecoder validating and decoding sensor streams. One
+ * operation is the bytes of one frame, passed to the decoder as a serial read
+ * would deliver them.
+ *
+ * The packet sets are the table circumnavigator's few single byte packets
+ * and every packet the Roomba can stream. The corrupted stream has garbage
+ * between frames and bytes dropped from frames, so it exercises resyncing.
+ *
+ * @author Braden Phillips
+ */
+public class DecoderBenchmark extends Benchmark {
+
+    private static final int FRAMES = 256;
+    private static final long SEED = 20130513L;
+
+    /* The packets streamed for the table circumnavigator */
+    static final SensorPacket[] SMALL = {SensorPacket.BUMPS_AND_WHEEL_DROPS,
+        SensorPacket.CLIFF_LEFT, SensorPacket.CLIFF_FRONT_LEFT,
+        SensorPacket.CLIFF_FRONT_RIGHT, SensorPacket.CLIFF_RIGHT,
+        SensorPacket.STASIS};
+    static final SensorPacket[] LARGE = SensorPacket.values();
+
+    private final SensorPacket[] packets;
+    private final double corruptRate;
+    private SensorFrameDecoder decoder;
+    private byte[] stream;
+    private int[] starts;
+    private int[] lengths;
+    private long checksum;
+
+    /**
+     * Constructor
+     *
+     * @param name
+     * @param packets the packets in each frame
+     * @param corruptRate the probability per frame of garbage before the
+     * frame and, separately, of a byte dropped from it
+     */
+    public DecoderBenchmark(String name, SensorPacket[] packets, double corruptRate) {
+        super(name);
+        this.packets = packets;
+        this.corruptRate = corruptRate;
+    }
+
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new DecoderBenchmark("roombaif.decode:packets=small", SMALL, 0));
+        benchmarks.add(new DecoderBenchmark("roombaif.decode:packets=large", LARGE, 0));
+        benchmarks.add(new DecoderBenchmark("roombaif.decode:packets=small,corrupt=0.1", SMALL, 0.1));
+        benchmarks.add(new DecoderBenchmark("roombaif.decode:packets=large,corrupt=0.1", LARGE, 0.1));
+        return benchmarks;
+    }
+
+    @Override
+    public void setUp() {
+        decoder = new SensorFrameDecoder(new SensorFrameLayout(packets),
+                new SensorFrameDecoder.FrameHandler() {
+                    @Override
+                    public void frameDecoded(int[] values) {
+                        checksum += values[values.length - 1];
+                    }
+                });
+        Random random = new Random(SEED);
+        byte[] buffer = new byte[FRAMES * 2 * frame(packets, random).length];
+        starts = new int[FRAMES];
+        lengths = new int[FRAMES];
+        int n = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            starts[i] = n;
+            if (random.nextDouble() < corruptRate) {
+                int garbage = 1 + random.nextInt(8);
+                for (int j = 0; j < garbage; j++) {
+                    buffer[n++] = (byte) random.nextInt(256);
+                }
+            }
+            byte[] f = frame(packets, random);
+            int drop = (random.nextDouble() < corruptRate) ? random.nextInt(f.length) : -1;
+            for (int j = 0; j < f.length; j++) {
+                if (j != drop) {
+                    buffer[n++] = f[j];
+                }
+            }
+            lengths[i] = n - starts[i];
+        }
+        stream = Arrays.copyOf(buffer, n);
+    }
+
+    @Override
+    public long run(int operations) {
+        int i = 0;
+        for (int op = 0; op < operations; op++) {
+            decoder.decode(stream, starts[i], lengths[i]);
+            if (++i == FRAMES) {
+                i = 0;
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Build a valid sensor stream frame with random data.
+     */
+    static byte[] frame(SensorPacket[] packets, Random random) {
+        int length = 3 + packets.length;
+        for (SensorPacket s : packets) {
+            length += s.length();
+        }
+        byte[] f = new byte[length];
+        f[0] = SensorFrameLayout.SENSOR_STREAM_HEADER;
+        f[1] = (byte) (length - 3);
+        int i = 2;
+        for (SensorPacket s : packets) {
+            f[i++] = s.id();
+            for (int b = 0; b < s.length(); b++) {
+                f[i++] = (byte) random.nextInt(256);
+            }
+        }
+        int sum = 0;
+        for (int j = 0; j < length - 1; j++) {
+            sum += f[j] & 0xff;
+        }
+        f[length - 1] = (byte) -sum;
+        return f;
+    }
+}
@@ -0,0 +1,148 @@
+package roombaif;
+
+import benchmark.Benchmark;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures reading the latest sensor frame from a RoombaIF under contention:
+ * a writer thread publishing frames as fast as it can, which is far harder on
+ * the readers than the Roomba's 15 ms stream, and other threads reading too.
+ *
+ * @author Braden Phillips
+ */
+public class SensorDataBenchmark extends Benchmark {
+
+    private final boolean copyInto;
+    private final boolean writer;
+    private final int readers;
+    private BenchRoombaIF roomba;
+    private List<Thread> threads;
+    private volatile boolean running;
+    private int[] dest;
+
+    /**
+     * Constructor
+     *
+     * @param name
+     * @param copyInto use readSensorData into a reused array rather than
+     * getSensorData
+     * @param writer whether a thread publishes frames
+     * @param readers the number of other threads reading frames
+     */
+    public SensorDataBenchmark(String name, boolean copyInto, boolean writer,
+            int readers) {
+        super(name);
+        this.copyInto = copyInto;
+        this.writer = writer;
+        this.readers = readers;
+    }
+
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        int[][] contention = {{0, 0}, {1, 0}, {1, 3}};
+        for (int[] c : contention) {
+            String params = ":writers=" + c[0] + ",readers=" + c[1];
+            benchmarks.add(new SensorDataBenchmark("roombaif.readSensorData"
+                    + params, true, c[0] == 1, c[1]));
+            benchmarks.add(new SensorDataBenchmark("roombaif.getSensorData"
+                    + params, false, c[0] == 1, c[1]));
+        }
+        return benchmarks;
+    }
+
+    @Override
+    public void setUp() {
+        roomba = new BenchRoombaIF(DecoderBenchmark.SMALL);
+        dest = new int[DecoderBenchmark.SMALL.length];
+        running = true;
+        threads = new ArrayList<Thread>();
+        if (writer) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int[] values = new int[DecoderBenchmark.SMALL.length];
+                    while (running) {
+                        for (int j = 0; j < values.length; j++) {
+                            values[j]++;
+                        }
+                        roomba.publish(values);
+                    }
+                }
+            }, "Sensor data writer"));
+        }
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int[] values = new int[DecoderBenchmark.SMALL.length];
+                    while (running) {
+                        roomba.readSensorData(values);
+                    }
+                }
+            }, "Sensor data reader " + i));
+        }
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    @Override
+    public long run(int operations) {
+        long sum = 0;
+        if (copyInto) {
+            for (int op = 0; op < operations; op++) {
+                sum += roomba.readSensorData(dest);
+                sum += dest[0];
+            }
+        } else {
+            for (int op = 0; op < operations; op++) {
+                sum += roomba.getSensorData()[0];
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public void tearDown() throws InterruptedException {
+        running = false;
+        for (Thread t : threads) {
+            t.join();
+        }
+        roomba.getSensorEventBus().shutdown();
+    }
+
+    /**
+     * A RoombaIF whose frames are published by the benchmark.
+     */
+    static class BenchRoombaIF extends RoombaIF {
+
+        BenchRoombaIF(SensorPacket[] sensorPacketsRequested) {
+            super("bench", sensorPacketsRequested);
+        }
+
+        void publish(int[] values) {
+            publishSensorData(values);
+        }
+
+        @Override
+        public void openIF(boolean safeMode) {
+            isOpened = true;
+        }
+
+        @Override
+        public void closeIF() {
+            isOpened = false;
+        }
+
+        @Override
+        public void driveCommand(short velocity, short radius) {
+        }
+
+        @Override
+        public void motorsCommand(boolean sideBrush, boolean sideBrushClockwise,
+                boolean mainBrush, boolean mainBrushOutward, boolean vacuum) {
+        }
+    }
+}
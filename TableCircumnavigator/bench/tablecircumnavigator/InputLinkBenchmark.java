@@ -0,0 +1,66 @@
+package tablecircumnavigator;
+
+import benchmark.Benchmark;
+import java.util.ArrayList;
+import java.util.List;
+import org.jsoar.kernel.io.quick.DefaultQMemory;
+import org.jsoar.kernel.io.quick.QMemory;
+
+/**
+ * Measures InputLinkMapping writing a frame of sensor data to QMemory, with
+ * the mapping used by the table circumnavigator. One operation is one update.
+ *
+ * When every value changes each update writes them all; when none change it
+ * only compares them with the previous frame.
+ *
+ * @author Braden Phillips
+ */
+public class InputLinkBenchmark extends Benchmark {
+
+    private static final String MAPPING = "config/table-circumnavigator.map";
+
+    private final boolean changing;
+    private InputLinkMapping mapping;
+    private QMemory qmemory;
+    private int[][] frames;
+
+    /**
+     * Constructor
+     *
+     * @param name
+     * @param changing whether every value changes from one frame to the next
+     */
+    public InputLinkBenchmark(String name, boolean changing) {
+        super(name);
+        this.changing = changing;
+    }
+
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new InputLinkBenchmark("tablecircumnavigator.inputLinkUpdate:changes=none", false));
+        benchmarks.add(new InputLinkBenchmark("tablecircumnavigator.inputLinkUpdate:changes=all", true));
+        return benchmarks;
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        mapping = InputLinkMapping.load(MAPPING);
+        qmemory = DefaultQMemory.create();
+        mapping.writeStatic(qmemory);
+        int n = mapping.getSensorPackets().length;
+        frames = new int[2][n];
+        for (int i = 0; i < n; i++) {
+            frames[1][i] = changing ? 0xff : 0;
+        }
+        mapping.update(frames[0], qmemory);
+    }
+
+    @Override
+    public long run(int operations) {
+        long changes = 0;
+        for (int op = 0; op < operations; op++) {
+            changes += mapping.update(frames[op & 1], qmemory);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,123 @@
+package tablecircumnavigator;
+
+import benchmark.Benchmark;
+import ch.qos.logback.classic.Level;
+import java.util.ArrayList;
+import java.util.List;
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.RunType;
+import org.jsoar.kernel.SoarProperties;
+import org.jsoar.kernel.io.quick.DefaultQMemory;
+import org.jsoar.kernel.io.quick.QMemory;
+import org.jsoar.kernel.io.quick.SoarQMemoryAdapter;
+import org.jsoar.util.commands.SoarCommands;
+import org.slf4j.LoggerFactory;
+import roombaif.RoombaIF;
+import roombaif.SensorPacket;
+
+/**
+ * Measures the decision cycle time of the table circumnavigator agent with
+ * command tracing off and on. One operation is one decision.
+ *
+ * The agent runs headless with a Roomba that discards its commands. The
+ * cliff sensors are toggled every few decisions so that the agent keeps
+ * issuing drive commands through an OutputDispatcher and
+ * DriveCommandHandler.
+ *
+ * @author Braden Phillips
+ */
+public class LoggingBenchmark extends Benchmark {
+
+    private static final int TOGGLE_PERIOD = 4;
+
+    private final Level level;
+    private Agent agent;
+    private QMemory qmemory;
+    private int decision;
+
+    /**
+     * A Roomba that accepts and discards every command.
+     */
+    static class NullRoombaIF extends RoombaIF {
+
+        NullRoombaIF(SensorPacket[] sensorPacketsRequested) {
+            super("null", sensorPacketsRequested);
+        }
+
+        @Override
+        public void openIF(boolean safeMode) {
+            isOpened = true;
+        }
+
+        @Override
+        public void closeIF() {
+            isOpened = false;
+        }
+
+        @Override
+        public void driveCommand(short velocity, short radius) {
+        }
+
+        @Override
+        public void motorsCommand(boolean sideBrush, boolean sideBrushClockwise,
+                boolean mainBrush, boolean mainBrushOutward, boolean vacuum) {
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name
+     * @param level the level of the command tracing loggers
+     */
+    public LoggingBenchmark(String name, Level level) {
+        super(name);
+        this.level = level;
+    }
+
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new LoggingBenchmark("tablecircumnavigator.decision:tracing=off", Level.OFF));
+        benchmarks.add(new LoggingBenchmark("tablecircumnavigator.decision:tracing=on", Level.DEBUG));
+        return benchmarks;
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(
+                "tablecircumnavigator.commands")).setLevel(level);
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(
+                "roombaif.commands")).setLevel(level);
+        agent = new Agent();
+        agent.initialize();
+        SoarCommands.source(agent.getInterpreter(), "soar/table-circumnavigator.soar");
+        qmemory = DefaultQMemory.create();
+        SoarQMemoryAdapter.attach(agent.getInputOutput(), null, qmemory);
+        RoombaIF roomba = new NullRoombaIF(new SensorPacket[]{SensorPacket.CLIFF_LEFT});
+        roomba.openIF(true);
+        OutputDispatcher dispatcher = new OutputDispatcher(agent.getSymbols());
+        dispatcher.register(DriveCommandHandler.NAME, DriveCommandHandler.ARGS,
+                DriveCommandHandler.DEFAULTS, new DriveCommandHandler(roomba));
+        dispatcher.attach(agent.getEvents());
+        qmemory.setString("cliff[0].location", "left");
+        decision = 0;
+    }
+
+    @Override
+    public long run(int operations) {
+        for (int op = 0; op < operations; op++) {
+            qmemory.setInteger("cliff[0].value", (decision++ / TOGGLE_PERIOD) % 2);
+            agent.runFor(1, RunType.DECISIONS);
+        }
+        return agent.getProperties().get(SoarProperties.D_CYCLE_COUNT);
+    }
+
+    @Override
+    public void tearDown() {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(
+                "tablecircumnavigator.commands")).setLevel(Level.OFF);
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(
+                "roombaif.commands")).setLevel(Level.OFF);
+        agent.dispose();
+    }
+}
@@ -0,0 +1,331 @@
+package roombaif;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes command opcodes to the Roomba on a dedicated thread so that the
+ * thread issuing a command never waits on the serial port.
+ *
+ * Commands are appended to a small bounded queue. The writer thread takes
+ * everything queued and sends it with a single write. A drive command that
+ * is still queued when another drive command arrives is overwritten in place
+ * with the newer velocity and radius, since only the latest drive command
+ * matters.
+ *
+ * The time from enqueueing a command to writing it is measured for every
+ * batch. If there is a LatencyMonitor, each drive command is stamped with the
+ * sensor frame it was issued for and reported to the monitor once written.
+ *
+ * @author Braden Phillips
+ */
+public class CommandWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommandWriter.class);
+
+    /**
+     * Where the batched commands are written.
+     */
+    public interface Output {
+
+        /**
+         * Write part of bytes.
+         *
+         * @param bytes may be reused once this returns
+         * @param offset index of the first byte to write
+         * @param length number of bytes to write
+         * @throws RoombaIFException
+         */
+        public void write(byte[] bytes, int offset, int length) throws RoombaIFException;
+    }
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final byte DRIVE_COMMAND = (byte) 137;
+    private static final int DRIVE_COMMAND_LENGTH = 5;
+
+    /* Instance variables */
+    private final Output output;
+    private final LatencyMonitor latencyMonitor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private byte[] pending;
+    private byte[] writing;
+    private int pendingLength = 0;
+    private int pendingDriveOffset = -1;
+    private long pendingSinceNanos = 0;
+    private long pendingDriveFrame = 0;
+    private long pendingDriveNanos = 0;
+    private boolean writeInProgress = false;
+    private boolean running = false;
+    private Thread thread;
+    private volatile long batchCount = 0;
+    private volatile long commandCount = 0;
+    private volatile long coalescedCount = 0;
+    private volatile long lastLatencyNanos = 0;
+    private volatile long maxLatencyNanos = 0;
+    private volatile long totalLatencyNanos = 0;
+    private volatile RoombaIFException lastException = null;
+
+    /**
+     * Constructor
+     *
+     * @param output where to write the commands
+     * @param capacity the maximum number of bytes that may be queued
+     */
+    public CommandWriter(Output output, int capacity) {
+        this(output, capacity, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param output where to write the commands
+     * @param capacity the maximum number of bytes that may be queued
+     * @param latencyMonitor stamps and reports drive commands, or null
+     */
+    public CommandWriter(Output output, int capacity, LatencyMonitor latencyMonitor) {
+        this.output = output;
+        this.latencyMonitor = latencyMonitor;
+        pending = new byte[capacity];
+        writing = new byte[capacity];
+    }
+
+    /**
+     * Start the writer thread.
+     *
+     * @param name the name of the writer thread
+     */
+    public void start(String name) {
+        lock.lock();
+        try {
+            if (running) {
+                return;
+            }
+            running = true;
+            pendingLength = 0;
+            pendingDriveOffset = -1;
+        } finally {
+            lock.unlock();
+        }
+        thread = new Thread(new Writer(), name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Write any queued commands and stop the writer thread. Returns once the
+     * queue has been written.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        thread = null;
+    }
+
+    /**
+     * Queue a command. Returns without waiting for it to be written. A
+     * queued drive command is replaced by a newer one.
+     *
+     * @param command the opcode followed by its data bytes
+     * @throws RoombaIFException if the writer is not running or the queue is
+     * full
+     */
+    public void enqueue(byte[] command) throws RoombaIFException {
+        lock.lock();
+        try {
+            if (!running) {
+                throw new RoombaIFException(RoombaIFException.TYPE_NOT_OPEN
+                        + "in: CommandWriter.enqueue");
+            }
+            boolean isDrive = command.length == DRIVE_COMMAND_LENGTH
+                    && command[0] == DRIVE_COMMAND;
+            if (isDrive && latencyMonitor != null) {
+                pendingDriveFrame = latencyMonitor.getCurrentFrame();
+                pendingDriveNanos = System.nanoTime();
+            }
+            if (isDrive && pendingDriveOffset >= 0) {//Latest drive command wins
+                System.arraycopy(command, 0, pending, pendingDriveOffset, command.length);
+                coalescedCount++;
+                return;
+            }
+            if (pendingLength + command.length > pending.length) {
+                throw new RoombaIFException(RoombaIFException.TYPE_QUEUE_FULL);
+            }
+            if (pendingLength == 0) {
+                pendingSinceNanos = System.nanoTime();
+            }
+            if (isDrive) {
+                pendingDriveOffset = pendingLength;
+            }
+            System.arraycopy(command, 0, pending, pendingLength, command.length);
+            pendingLength += command.length;
+            commandCount++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every command queued so far has been written.
+     *
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        lock.lock();
+        try {
+            while ((pendingLength > 0 || writeInProgress) && running) {
+                drained.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of bytes queued awaiting the writer thread.
+     *
+     * @return the queue depth in bytes
+     */
+    public int getQueuedBytes() {
+        lock.lock();
+        try {
+            return pendingLength;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of writes made to the output
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * @return the number of commands queued, excluding drive commands that
+     * were coalesced into one already queued
+     */
+    public long getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * @return the number of drive commands overwritten by a newer one before
+     * being written
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return the enqueue to write latency of the latest batch in ns, measured
+     * from when its oldest command was queued
+     */
+    public long getLastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    /**
+     * @return the largest enqueue to write latency seen in ns
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /**
+     * @return the mean enqueue to write latency in ns
+     */
+    public long getMeanLatencyNanos() {
+        long batches = batchCount;
+        return (batches == 0) ? 0 : totalLatencyNanos / batches;
+    }
+
+    /**
+     * @return the exception thrown by the latest failed write, or null
+     */
+    public RoombaIFException getLastException() {
+        return lastException;
+    }
+
+    /**
+     * Takes the queued commands and writes them.
+     */
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                int length;
+                long since;
+                boolean drive;
+                long driveFrame;
+                long driveNanos;
+                lock.lock();
+                try {
+                    while (pendingLength == 0 && running) {
+                        drained.signalAll();
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    if (pendingLength == 0) {//Stopped with nothing left to write
+                        drained.signalAll();
+                        return;
+                    }
+                    byte[] swap = writing;
+                    writing = pending;
+                    pending = swap;
+                    length = pendingLength;
+                    since = pendingSinceNanos;
+                    drive = pendingDriveOffset >= 0;
+                    driveFrame = pendingDriveFrame;
+                    driveNanos = pendingDriveNanos;
+                    pendingLength = 0;
+                    pendingDriveOffset = -1;
+                    writeInProgress = true;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    output.write(writing, 0, length);
+                } catch (RoombaIFException ex) {
+                    lastException = ex;
+                    logger.error("command-write-failed bytes={}", length, ex);
+                }
+                long now = System.nanoTime();
+                if (drive && latencyMonitor != null) {
+                    latencyMonitor.commandWritten(driveFrame, driveNanos, now);
+                }
+                long latency = now - since;
+                lastLatencyNanos = latency;
+                totalLatencyNanos += latency;
+                if (latency > maxLatencyNanos) {
+                    maxLatencyNanos = latency;
+                }
+                batchCount++;
+                lock.lock();
+                try {
+                    writeInProgress = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
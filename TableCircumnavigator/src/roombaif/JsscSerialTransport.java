@@ -0,0 +1,145 @@
+package roombaif;
+
+import java.util.Arrays;
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A serial port transport to the Roomba using jSSC.
+ *
+ * We assume the Roomba is set for 115200 baud, its default rate. Resetting the
+ * Roomba (by turning it on and holding down the Spot and Dock buttons) should
+ * reset it to 115200 baud.
+ *
+ * @author Braden Phillips
+ */
+public class JsscSerialTransport implements SerialTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(JsscSerialTransport.class);
+
+    /* Communication parameters */
+    private static final int BAUDRATE = SerialPort.BAUDRATE_115200;
+    private static final int DATABITS = SerialPort.DATABITS_8;
+    private static final int STOPBITS = SerialPort.STOPBITS_1;
+    private static final int PARITY = SerialPort.PARITY_NONE;
+
+    /* Instance variables */
+    private final String portName;
+    private SerialPort serialPort;
+    private byte[][] exactBuffers = new byte[0][];    //by length, for writeBytes
+
+    /**
+     * Constructor
+     *
+     * @param portName serial port e.g. "COM4" or "/dev/ttyS0"
+     */
+    public JsscSerialTransport(String portName) {
+        this.portName = portName;
+    }
+
+    @Override
+    public String getName() {
+        return portName;
+    }
+
+    @Override
+    public void open(Receiver receiver) throws RoombaIFException {
+        serialPort = new SerialPort(portName);
+        try {
+            serialPort.openPort();
+            serialPort.setParams(BAUDRATE, DATABITS, STOPBITS, PARITY);
+            int mask = SerialPort.MASK_RXCHAR;
+            serialPort.setEventsMask(mask);
+            serialPort.addEventListener(new SerialPortReader(receiver));
+        } catch (SerialPortException ex) {
+            try {
+                if (serialPort.isOpened()) {
+                    serialPort.closePort();
+                }
+            } catch (SerialPortException ex2) {
+                //Don't do anything. We are already going to throw an exception.
+            }
+            throw new RoombaIFException(RoombaIFException.TYPE_SERIAL + ": "
+                    + ex.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes) throws RoombaIFException {
+        try {
+            serialPort.writeBytes(bytes);
+        } catch (SerialPortException ex) {
+            throw new RoombaIFException(RoombaIFException.TYPE_SERIAL + ": "
+                    + ex.getMessage());
+        }
+    }
+
+    /**
+     * jSSC only writes whole arrays, so the bytes are copied to a buffer of
+     * exactly their length, kept for the next write of that length.
+     */
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length)
+            throws RoombaIFException {
+        if (offset == 0 && length == bytes.length) {
+            write(bytes);
+            return;
+        }
+        if (length >= exactBuffers.length) {
+            exactBuffers = Arrays.copyOf(exactBuffers, length + 1);
+        }
+        byte[] exact = exactBuffers[length];
+        if (exact == null) {
+            exact = new byte[length];
+            exactBuffers[length] = exact;
+        }
+        System.arraycopy(bytes, offset, exact, 0, length);
+        write(exact);
+    }
+
+    @Override
+    public void close() throws RoombaIFException {
+        try {
+            serialPort.removeEventListener();
+            serialPort.closePort();
+        } catch (SerialPortException ex) {
+            throw new RoombaIFException(RoombaIFException.TYPE_SERIAL + ": "
+                    + ex.getMessage());
+        }
+    }
+
+    /**
+     * Pass the bytes received by the serial port to the receiver.
+     */
+    private class SerialPortReader implements SerialPortEventListener {
+
+        private final Receiver receiver;
+
+        SerialPortReader(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void serialEvent(SerialPortEvent event) {
+            if (!event.isRXCHAR()) {//Ensure data is avaiable
+                return;
+            }
+            if (event.getEventValue() <= 0) {//Ensure there is data to read
+                return;
+            }
+            //Get the data from the serial port
+            byte buffer[];
+            try {
+                buffer = serialPort.readBytes(event.getEventValue());
+            } catch (SerialPortException ex) {
+                logger.error("serial-read-failed port={}", portName, ex);
+                return;
+            }
+            receiver.bytesReceived(buffer, 0, buffer.length);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package roombaif;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in ns with log-linear buckets, in the style of
+ * HdrHistogram.
+ *
+ * Values below 128 ns have a bucket each. Above that every power of two
+ * range is split into 64 buckets, so a value is resolved to within 1/64
+ * (about 1.6%) whatever its magnitude, up to about 18 minutes. Larger values
+ * are counted in the top bucket.
+ *
+ * Recording is lock free and does not allocate, so it may be done from any
+ * thread on a hot path. Reading while recording gives an approximate but
+ * usable snapshot.
+ *
+ * @author Braden Phillips
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 39;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    /* Instance variables */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency in ns. Negative values are counted as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketIndex(Math.min(nanos, MAX_VALUE)));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+        }
+    }
+
+    /**
+     * Clear every count.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean latency in ns, 0 if none have been recorded
+     */
+    public double getMean() {
+        long n = count.get();
+        return (n == 0) ? 0.0 : (double) total.get() / n;
+    }
+
+    /**
+     * @return the largest latency recorded in ns
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the latency at a percentile: the highest value in the bucket where
+     * the running count reaches that percentile of the count.
+     *
+     * @param percentile from 0 to 100
+     * @return the latency in ns, 0 if none have been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+        long running = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            running += counts.get(i);
+            if (running >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Summarise the histogram as key=value pairs with times in us, e.g. for
+     * logging.
+     *
+     * @return the summary
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                getCount(), getMean() / 1000.0,
+                getValueAtPercentile(50) / 1000.0,
+                getValueAtPercentile(90) / 1000.0,
+                getValueAtPercentile(99) / 1000.0,
+                getValueAtPercentile(99.9) / 1000.0,
+                getMax() / 1000.0);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = index - (shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
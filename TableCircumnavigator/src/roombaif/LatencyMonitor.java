@@ -0,0 +1,155 @@
+package roombaif;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures the sense-decide-act latency of a Roomba and its controlling
+ * agent, from sensor bytes arriving to the drive command they lead to being
+ * written.
+ *
+ * Each frame of sensor data is stamped with its sequence number and the
+ * nanoTime its last byte arrived. The stamps of recent frames are kept in a
+ * ring, and the path of a frame is recorded in histograms for each stage:
+ * <ul>
+ * <li>SERIAL - bytes received to the frame being decoded and published</li>
+ * <li>INPUT - published to being written to the agent's input-link</li>
+ * <li>DECISION - on the input-link to the drive command being issued</li>
+ * <li>OUTPUT - issued to the DRIVE opcode being written to the Roomba</li>
+ * <li>END_TO_END - bytes received to the DRIVE opcode being written</li>
+ * </ul>
+ * A drive command is attributed to the latest frame on the input-link when it
+ * is issued. Frames the agent never sees are only counted in SERIAL.
+ *
+ * @author Braden Phillips
+ */
+public class LatencyMonitor {
+
+    /**
+     * The stages of the sense-decide-act path.
+     */
+    public enum Stage {
+
+        SERIAL, INPUT, DECISION, OUTPUT, END_TO_END
+    }
+
+    /* The number of recent frames whose stamps are kept */
+    private static final int RING_SIZE = 256;
+
+    /* Instance variables */
+    private final LatencyHistogram[] histograms;
+    private final AtomicLongArray frames = new AtomicLongArray(RING_SIZE);
+    private final AtomicLongArray receivedNanos = new AtomicLongArray(RING_SIZE);
+    private final AtomicLongArray publishedNanos = new AtomicLongArray(RING_SIZE);
+    private final AtomicLongArray inputNanos = new AtomicLongArray(RING_SIZE);
+    private volatile long currentFrame = 0;
+
+    public LatencyMonitor() {
+        histograms = new LatencyHistogram[Stage.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Stamp a frame as it is published. Called by the RoombaIF on the thread
+     * that publishes frames.
+     *
+     * @param frame the frame sequence number
+     * @param received the nanoTime the frame's bytes arrived
+     */
+    void framePublished(long frame, long received) {
+        long now = System.nanoTime();
+        int i = (int) frame & (RING_SIZE - 1);
+        frames.set(i, 0);//Invalidate the slot while it is rewritten
+        receivedNanos.set(i, received);
+        publishedNanos.set(i, now);
+        inputNanos.set(i, 0);
+        frames.set(i, frame);
+        histograms[Stage.SERIAL.ordinal()].record(now - received);
+    }
+
+    /**
+     * Record that a frame has been written to the input-link. Later drive
+     * commands are attributed to it.
+     *
+     * @param frame the frame sequence number
+     */
+    public void frameInput(long frame) {
+        long now = System.nanoTime();
+        int i = (int) frame & (RING_SIZE - 1);
+        long published = publishedNanos.get(i);
+        if (frames.get(i) != frame) {//Too old: its slot has been reused
+            return;
+        }
+        inputNanos.set(i, now);
+        currentFrame = frame;
+        histograms[Stage.INPUT.ordinal()].record(now - published);
+    }
+
+    /**
+     * Get the sequence number of the frame most recently written to the
+     * input-link, to stamp a command being issued.
+     *
+     * @return the frame sequence number, 0 if none
+     */
+    public long getCurrentFrame() {
+        return currentFrame;
+    }
+
+    /**
+     * Record that a drive command has been written to the Roomba.
+     *
+     * @param frame the frame the command was attributed to when issued
+     * @param issued the nanoTime the command was issued
+     * @param written the nanoTime the command was written
+     */
+    public void commandWritten(long frame, long issued, long written) {
+        histograms[Stage.OUTPUT.ordinal()].record(written - issued);
+        if (frame == 0) {
+            return;
+        }
+        int i = (int) frame & (RING_SIZE - 1);
+        long received = receivedNanos.get(i);
+        long input = inputNanos.get(i);
+        if (frames.get(i) != frame) {//Too old: its slot has been reused
+            return;
+        }
+        if (input != 0) {
+            histograms[Stage.DECISION.ordinal()].record(issued - input);
+        }
+        histograms[Stage.END_TO_END.ordinal()].record(written - received);
+    }
+
+    /**
+     * Get the histogram of a stage's latencies.
+     *
+     * @param stage
+     * @return the histogram
+     */
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Clear every histogram.
+     */
+    public void reset() {
+        for (LatencyHistogram h : histograms) {
+            h.reset();
+        }
+    }
+
+    /**
+     * Summarise every stage, one line each, with times in us.
+     *
+     * @return the summary
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            sb.append("stage=").append(stage.name().toLowerCase()).append(' ')
+                    .append(histograms[stage.ordinal()]).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,239 @@
+package roombaif;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the sensor streams of any number of Roomba interfaces from one
+ * scheduled task.
+ *
+ * Each registered interface has a staleness threshold. On every check the
+ * time since its latest frame is compared with the threshold, and its
+ * listener is told when the stream goes stale and when it recovers. If asked
+ * to, the monitor also stops a Roomba that was moving when its stream went
+ * stale, since the agent driving it can no longer see the table.
+ *
+ * The checks and callbacks run on the monitor's thread, so callbacks must be
+ * quick and must not block.
+ *
+ * @author Braden Phillips
+ */
+public class LivenessMonitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(LivenessMonitor.class);
+
+    public static final long DEFAULT_PERIOD_MILLIS = 10;
+
+    private static LivenessMonitor shared;
+
+    /**
+     * The streamStale and streamRecovered methods are called as a Roomba's
+     * sensor stream goes stale and recovers.
+     */
+    public interface Listener {
+
+        /**
+         * @param roomba
+         * @param staleMillis the time since the latest frame
+         */
+        public void streamStale(RoombaIF roomba, long staleMillis);
+
+        /**
+         * @param roomba
+         */
+        public void streamRecovered(RoombaIF roomba);
+    }
+
+    /* Instance variables */
+    private final CopyOnWriteArrayList<Registration> registrations =
+            new CopyOnWriteArrayList<Registration>();
+    private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+    private final ScheduledFuture<?> task;
+
+    /**
+     * Constructor. Checks every DEFAULT_PERIOD_MILLIS on a thread of its own.
+     */
+    public LivenessMonitor() {
+        this(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Roomba liveness monitor");
+                t.setDaemon(true);
+                return t;
+            }
+        }), DEFAULT_PERIOD_MILLIS, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param executor runs the checks, and may be shared with other work
+     * @param periodMillis the time between checks
+     */
+    public LivenessMonitor(ScheduledExecutorService executor, long periodMillis) {
+        this(executor, periodMillis, false);
+    }
+
+    private LivenessMonitor(ScheduledExecutorService executor, long periodMillis,
+            boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        task = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the monitor shared by every interface in the JVM that is not given
+     * one of its own.
+     *
+     * @return the shared monitor
+     */
+    public static synchronized LivenessMonitor getShared() {
+        if (shared == null) {
+            shared = new LivenessMonitor();
+        }
+        return shared;
+    }
+
+    /**
+     * Start watching a Roomba's sensor stream. It is considered live until no
+     * frame has been received for staleMillis after registering.
+     *
+     * @param roomba
+     * @param staleMillis the staleness threshold
+     * @param stopWhenStale send a zero drive command if the Roomba is moving
+     * when the stream goes stale
+     * @param listener told when the stream goes stale or recovers, or null
+     * @return the registration, to cancel
+     */
+    public Registration register(RoombaIF roomba, long staleMillis,
+            boolean stopWhenStale, Listener listener) {
+        Registration r = new Registration(roomba, staleMillis, stopWhenStale, listener);
+        registrations.add(r);
+        return r;
+    }
+
+    /**
+     * @return the number of interfaces being watched
+     */
+    public int getRegistrationCount() {
+        return registrations.size();
+    }
+
+    /**
+     * Stop checking. Shuts down the executor if the monitor created it.
+     */
+    public void shutdown() {
+        task.cancel(false);
+        registrations.clear();
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (Registration r : registrations) {
+            try {
+                r.check(now);
+            } catch (RuntimeException ex) {
+                logger.error("liveness-check-failed port={}",
+                        r.roomba.getPortName(), ex);
+            }
+        }
+    }
+
+    /**
+     * A Roomba being watched.
+     */
+    public class Registration {
+
+        private final RoombaIF roomba;
+        private final long staleNanos;
+        private final boolean stopWhenStale;
+        private final Listener listener;
+        private final long registeredNanos;
+        private volatile boolean stale = false;
+        private volatile long staleCount = 0;
+        private volatile long stopCount = 0;
+
+        Registration(RoombaIF roomba, long staleMillis, boolean stopWhenStale,
+                Listener listener) {
+            this.roomba = roomba;
+            this.staleNanos = staleMillis * 1000000L;
+            this.stopWhenStale = stopWhenStale;
+            this.listener = listener;
+            registeredNanos = System.nanoTime();
+        }
+
+        void check(long now) {
+            long last = roomba.getLastFrameNanos();
+            if (last == 0 || last - registeredNanos < 0) {
+                last = registeredNanos;
+            }
+            long age = now - last;
+            if (age > staleNanos && !stale) {
+                stale = true;
+                staleCount++;
+                if (stopWhenStale && roomba.isMoving()) {
+                    stopCount++;
+                    logger.warn("stale-stream-stop port={} stale-ms={}",
+                            roomba.getPortName(), age / 1000000L);
+                    try {
+                        roomba.driveCommand((short) 0, (short) 0);
+                    } catch (RoombaIFException ex) {
+                        logger.error("stale-stream-stop-failed port={}",
+                                roomba.getPortName(), ex);
+                    }
+                }
+                if (listener != null) {
+                    listener.streamStale(roomba, age / 1000000L);
+                }
+            } else if (age <= staleNanos && stale) {
+                stale = false;
+                if (listener != null) {
+                    listener.streamRecovered(roomba);
+                }
+            }
+        }
+
+        /**
+         * @return true if the stream is stale
+         */
+        public boolean isStale() {
+            return stale;
+        }
+
+        /**
+         * @return the number of times the stream has gone stale
+         */
+        public long getStaleCount() {
+            return staleCount;
+        }
+
+        /**
+         * @return the number of times the Roomba was stopped
+         */
+        public long getStopCount() {
+            return stopCount;
+        }
+
+        /**
+         * Stop watching the Roomba.
+         */
+        public void cancel() {
+            registrations.remove(this);
+        }
+    }
+}
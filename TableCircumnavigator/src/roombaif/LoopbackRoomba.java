@@ -0,0 +1,363 @@
+package roombaif;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process stand-in for a Roomba at the far end of a serial line.
+ *
+ * The bytes written to it are parsed as Open Interface commands: START, SAFE,
+ * FULL, STREAM, PAUSE/RESUME STREAM, DRIVE and MOTORS (other opcodes are
+ * counted and ignored). Once a STREAM command has been received it sends
+ * properly framed sensor streams (header 19, n-bytes, packet IDs and data,
+ * checksum) for the packets requested, every frame period, on its own
+ * thread. The value of each packet is set with setSensorValue.
+ *
+ * To stress the framing code it can corrupt the stream it sends: inserting
+ * random garbage bytes, dropping a byte from a frame, and splitting a frame
+ * across two deliveries, each at a configurable rate per frame.
+ *
+ * @author Braden Phillips
+ */
+public class LoopbackRoomba implements SerialTransport {
+
+    /* Open Interface opcodes */
+    public static final int START = 128;
+    public static final int SAFE = 131;
+    public static final int FULL = 132;
+    public static final int DRIVE = 137;
+    public static final int MOTORS = 138;
+    public static final int STREAM = 148;
+    public static final int PAUSE_RESUME_STREAM = 150;
+
+    /* OI modes, as reported by the OI_MODE packet */
+    public static final int MODE_OFF = 0;
+    public static final int MODE_PASSIVE = 1;
+    public static final int MODE_SAFE = 2;
+    public static final int MODE_FULL = 3;
+
+    private static final SensorPacket[] packetsById = new SensorPacket[256];
+
+    static {
+        for (SensorPacket s : SensorPacket.values()) {
+            packetsById[s.id() & 0xff] = s;
+        }
+    }
+
+    /* Instance variables */
+    private final long framePeriodNanos;
+    private final AtomicIntegerArray sensorValues = new AtomicIntegerArray(256);
+    private final Random random;
+    private volatile Receiver receiver;
+    private volatile boolean open = false;
+    private volatile SensorPacket[] streamPackets = null;
+    private volatile boolean streamPaused = false;
+    private volatile double garbageRate = 0;
+    private volatile double dropRate = 0;
+    private volatile double splitRate = 0;
+    private Thread streamThread;
+    // Command parser state, guarded by this
+    private int opcode = -1;
+    private byte[] operands = new byte[256];
+    private int operandCount = 0;
+    private int operandsNeeded = 0;
+    // Statistics
+    private volatile int mode = MODE_OFF;
+    private volatile int velocity = 0;
+    private volatile int radius = 0;
+    private volatile int motors = 0;
+    private volatile long driveCount = 0;
+    private volatile long unknownCount = 0;
+    private volatile long frameCount = 0;
+    private volatile long corruptedFrameCount = 0;
+
+    /**
+     * Constructor
+     *
+     * @param framePeriodNanos time between frames: 15 ms as for a real Roomba,
+     * or 0 to send as fast as possible
+     * @param seed for the noise random number generator
+     */
+    public LoopbackRoomba(long framePeriodNanos, long seed) {
+        this.framePeriodNanos = framePeriodNanos;
+        random = new Random(seed);
+    }
+
+    /**
+     * Set the rates at which the stream is corrupted. Each is the probability
+     * per frame.
+     *
+     * @param garbageRate of inserting up to 8 random bytes before a frame
+     * @param dropRate of dropping one byte from a frame
+     * @param splitRate of delivering a frame in two pieces
+     */
+    public void setNoise(double garbageRate, double dropRate, double splitRate) {
+        this.garbageRate = garbageRate;
+        this.dropRate = dropRate;
+        this.splitRate = splitRate;
+    }
+
+    /**
+     * Set the value streamed for a sensor packet.
+     *
+     * @param packet
+     * @param value
+     */
+    public void setSensorValue(SensorPacket packet, int value) {
+        sensorValues.set(packet.id() & 0xff, value);
+    }
+
+    @Override
+    public String getName() {
+        return "loopback";
+    }
+
+    @Override
+    public void open(Receiver receiver) throws RoombaIFException {
+        if (open) {
+            throw new RoombaIFException(RoombaIFException.TYPE_ALREADY_OPEN);
+        }
+        this.receiver = receiver;
+        open = true;
+        streamThread = new Thread(new Streamer(), "Loopback Roomba");
+        streamThread.setDaemon(true);
+        streamThread.start();
+    }
+
+    @Override
+    public void close() throws RoombaIFException {
+        open = false;
+        if (streamThread != null) {
+            LockSupport.unpark(streamThread);
+            try {
+                streamThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            streamThread = null;
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes) throws RoombaIFException {
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Parse the bytes as Open Interface commands.
+     */
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length)
+            throws RoombaIFException {
+        if (!open) {
+            throw new RoombaIFException(RoombaIFException.TYPE_NOT_OPEN
+                    + "in: LoopbackRoomba.write");
+        }
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (opcode < 0) {
+                opcode = b & 0xff;
+                operandCount = 0;
+                operandsNeeded = operandLength(opcode);
+            } else {
+                operands[operandCount++] = b;
+                if (opcode == STREAM && operandCount == 1) {
+                    operandsNeeded = 1 + (b & 0xff);
+                }
+            }
+            if (operandCount == operandsNeeded) {
+                execute();
+                opcode = -1;
+            }
+        }
+    }
+
+    private static int operandLength(int opcode) {
+        switch (opcode) {
+            case DRIVE:
+                return 4;
+            case MOTORS:
+            case PAUSE_RESUME_STREAM:
+            case STREAM:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private void execute() {
+        switch (opcode) {
+            case START:
+                mode = MODE_PASSIVE;
+                break;
+            case SAFE:
+                mode = MODE_SAFE;
+                break;
+            case FULL:
+                mode = MODE_FULL;
+                break;
+            case DRIVE:
+                velocity = (short) (((operands[0] & 0xff) << 8) | (operands[1] & 0xff));
+                radius = (short) (((operands[2] & 0xff) << 8) | (operands[3] & 0xff));
+                driveCount++;
+                break;
+            case MOTORS:
+                motors = operands[0] & 0xff;
+                break;
+            case STREAM:
+                SensorPacket[] packets = new SensorPacket[operandCount - 1];
+                for (int i = 0; i < packets.length; i++) {
+                    packets[i] = packetsById[operands[i + 1] & 0xff];
+                    if (packets[i] == null) {//The Roomba ignores a bad request
+                        unknownCount++;
+                        return;
+                    }
+                }
+                streamPackets = packets;
+                streamPaused = false;
+                break;
+            case PAUSE_RESUME_STREAM:
+                streamPaused = (operands[0] == 0);
+                break;
+            default:
+                unknownCount++;
+        }
+    }
+
+    /**
+     * @return the OI mode set by the commands received
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the velocity of the latest drive command in mm/s
+     */
+    public int getVelocity() {
+        return velocity;
+    }
+
+    /**
+     * @return the radius of the latest drive command in mm
+     */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * @return the data byte of the latest motors command
+     */
+    public int getMotors() {
+        return motors;
+    }
+
+    /**
+     * @return the number of drive commands received
+     */
+    public long getDriveCount() {
+        return driveCount;
+    }
+
+    /**
+     * @return the number of unrecognised opcodes and bad stream requests
+     */
+    public long getUnknownCount() {
+        return unknownCount;
+    }
+
+    /**
+     * @return the number of frames sent
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the number of frames sent with a byte dropped
+     */
+    public long getCorruptedFrameCount() {
+        return corruptedFrameCount;
+    }
+
+    /**
+     * Sends a frame every frame period while streaming.
+     */
+    private class Streamer implements Runnable {
+
+        private byte[] frame = new byte[0];
+        private final byte[] garbage = new byte[8];
+
+        @Override
+        public void run() {
+            long next = System.nanoTime();
+            while (open) {
+                SensorPacket[] packets = streamPackets;
+                if (packets != null && !streamPaused) {
+                    send(buildFrame(packets));
+                }
+                if (framePeriodNanos > 0) {
+                    next += framePeriodNanos;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    } else {
+                        next = System.nanoTime();
+                    }
+                } else if (packets == null || streamPaused) {
+                    LockSupport.parkNanos(1000000L);
+                }
+            }
+        }
+
+        private int buildFrame(SensorPacket[] packets) {
+            int length = 3 + packets.length;
+            for (SensorPacket s : packets) {
+                length += s.length();
+            }
+            if (frame.length != length) {
+                frame = new byte[length];
+            }
+            frame[0] = SensorFrameLayout.SENSOR_STREAM_HEADER;
+            frame[1] = (byte) (length - 3);
+            int i = 2;
+            for (SensorPacket s : packets) {
+                frame[i++] = s.id();
+                int value = sensorValues.get(s.id() & 0xff);
+                for (int b = s.length() - 1; b >= 0; b--) {
+                    frame[i++] = (byte) (value >> (8 * b));
+                }
+            }
+            int checksum = 0;
+            for (int j = 0; j < length - 1; j++) {
+                checksum += frame[j] & 0xff;
+            }
+            frame[length - 1] = (byte) -checksum;
+            return length;
+        }
+
+        private void send(int length) {
+            Receiver r = receiver;
+            if (random.nextDouble() < garbageRate) {
+                int n = 1 + random.nextInt(garbage.length);
+                random.nextBytes(garbage);
+                r.bytesReceived(garbage, 0, n);
+            }
+            if (random.nextDouble() < dropRate) {
+                int drop = random.nextInt(length);
+                System.arraycopy(frame, drop + 1, frame, drop, length - drop - 1);
+                length--;
+                corruptedFrameCount++;
+            }
+            if (random.nextDouble() < splitRate && length > 1) {
+                int split = 1 + random.nextInt(length - 1);
+                r.bytesReceived(frame, 0, split);
+                r.bytesReceived(frame, split, length - split);
+            } else {
+                r.bytesReceived(frame, 0, length);
+            }
+            frameCount++;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package roombaif;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A set of named metrics: counters, gauges and rates.
+ *
+ * Metrics cost nothing until they are read. A counter is an AtomicLong; a
+ * gauge reads a value that is already being kept, such as a queue depth; a
+ * rate is the per second rate of change of a gauge, worked out when it is
+ * read over a window of one to two seconds.
+ *
+ * The metrics can be read by name, dumped as key=value lines, and published
+ * as the read-only attributes of a JMX MBean.
+ *
+ * @author Braden Phillips
+ */
+public class MetricsRegistry {
+
+    /**
+     * A value to be read when the metrics are read.
+     */
+    public interface Gauge {
+
+        public long getValue();
+    }
+
+    /**
+     * A count of events.
+     */
+    public static class Counter implements Gauge {
+
+        private final AtomicLong count = new AtomicLong();
+
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        public void add(long n) {
+            count.addAndGet(n);
+        }
+
+        @Override
+        public long getValue() {
+            return count.get();
+        }
+    }
+
+    /**
+     * The rate of change per second of a gauge.
+     */
+    private static class Rate {
+
+        private static final long WINDOW_NANOS = 1000000000L;
+
+        private final Gauge gauge;
+        private long previousValue;
+        private long previousNanos;
+        private long windowValue;
+        private long windowNanos;
+
+        Rate(Gauge gauge) {
+            this.gauge = gauge;
+            windowNanos = previousNanos = System.nanoTime();
+            windowValue = previousValue = gauge.getValue();
+        }
+
+        synchronized double getRate() {
+            long now = System.nanoTime();
+            long value = gauge.getValue();
+            if (now - windowNanos >= WINDOW_NANOS) {//Start a new window
+                previousValue = windowValue;
+                previousNanos = windowNanos;
+                windowValue = value;
+                windowNanos = now;
+            }
+            long elapsed = now - previousNanos;
+            return (elapsed <= 0) ? 0.0 : (value - previousValue) * 1e9 / elapsed;
+        }
+    }
+
+    /* Instance variables */
+    private final Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+
+    /**
+     * Add a counter.
+     *
+     * @param name
+     * @return the counter
+     */
+    public synchronized Counter counter(String name) {
+        Counter counter = new Counter();
+        metrics.put(name, counter);
+        return counter;
+    }
+
+    /**
+     * Add a gauge.
+     *
+     * @param name
+     * @param gauge
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        metrics.put(name, gauge);
+    }
+
+    /**
+     * Add the rate of change per second of a gauge or counter.
+     *
+     * @param name
+     * @param gauge
+     */
+    public synchronized void rate(String name, Gauge gauge) {
+        metrics.put(name, new Rate(gauge));
+    }
+
+    /**
+     * Get the names of the metrics, in the order they were added.
+     *
+     * @return the names
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList<String>(metrics.keySet());
+    }
+
+    /**
+     * Read a metric.
+     *
+     * @param name
+     * @return a Long for a counter or gauge, a Double for a rate, or null if
+     * there is no such metric
+     */
+    public Number getValue(String name) {
+        Object metric;
+        synchronized (this) {
+            metric = metrics.get(name);
+        }
+        if (metric instanceof Rate) {
+            return ((Rate) metric).getRate();
+        } else if (metric instanceof Gauge) {
+            return ((Gauge) metric).getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Read every metric, one name=value line each.
+     *
+     * @return the metrics
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (String name : getNames()) {
+            Number value = getValue(name);
+            sb.append(name).append('=');
+            if (value instanceof Double) {
+                sb.append(String.format("%.1f", value.doubleValue()));
+            } else {
+                sb.append(value);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Publish the metrics on the platform MBean server.
+     *
+     * @param name e.g. "roombaif:type=RoombaIF,port=COM4"
+     * @throws JMException
+     */
+    public void registerMBean(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(new MetricsMBean(), objectName);
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server.
+     *
+     * @param name as passed to registerMBean
+     * @throws JMException
+     */
+    public void unregisterMBean(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+    }
+
+    /**
+     * Presents each metric as a read-only attribute.
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = getValue(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String name : attributes) {
+                Number value = getValue(name);
+                if (value != null) {
+                    list.add(new Attribute(name, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<String> names = getNames();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.size()];
+            for (int i = 0; i < attributes.length; i++) {
+                String name = names.get(i);
+                boolean rate = getValue(name) instanceof Double;
+                attributes[i] = new MBeanAttributeInfo(name,
+                        rate ? "java.lang.Double" : "java.lang.Long",
+                        name, true, false, false);
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Roomba metrics",
+                    attributes, null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package roombaif;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates the pose of a Roomba on the floor by dead reckoning from the
+ * odometry packets in its sensor stream.
+ *
+ * If the left and right encoder counts are both streamed, they are used:
+ * they are free running 16 bit counters, so the change between frames is
+ * taken modulo 2^16 and accumulated in 64 bit totals that never wrap.
+ * Otherwise, if distance and angle are both streamed, the distance and angle
+ * travelled since the previous frame are accumulated instead. The distance
+ * and angle packets have a resolution of only 1 mm and 1 degree per frame, so
+ * the encoders are preferred. If neither pair is streamed the estimator is
+ * not available and update does nothing.
+ *
+ * x, y and heading are integrated on every frame, assuming the robot drove
+ * along an arc at a constant rate during the frame. The pose starts at the
+ * origin, heading along the x axis, and headings are anticlockwise.
+ *
+ * The pose is published through a sequence lock like the sensor data of a
+ * RoombaIF, so it may be read from any thread without locking. Neither update
+ * nor readPose allocates.
+ *
+ * Beware: update is not thread safe. It is called by RoombaIF for every frame
+ * published.
+ *
+ * @author Braden Phillips
+ */
+public class PoseEstimator {
+
+    /* Roomba 500 drive geometry, from the Open Interface specification */
+    public static final double MM_PER_COUNT = 72.0 * Math.PI / 508.8;
+    public static final double WHEEL_BASE = 235.0;  // mm
+
+    /* Indices of the published pose */
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int HEADING = 2;
+
+    /* Instance variables */
+    private final int leftIndex;
+    private final int rightIndex;
+    private final int distanceIndex;
+    private final int angleIndex;
+    private final boolean useEncoders;
+    private final AtomicLongArray pose = new AtomicLongArray(3);  // raw double bits
+    private final AtomicLong poseSequence = new AtomicLong(0);
+    // Estimator state, only touched by the thread calling update
+    private boolean primed = false;
+    private int lastLeft;
+    private int lastRight;
+    private double x = 0;
+    private double y = 0;
+    private double heading = 0;
+    // Totals, written only by the thread calling update
+    private volatile long leftCounts = 0;
+    private volatile long rightCounts = 0;
+    private volatile long distanceMm = 0;
+    private volatile long angleDegrees = 0;
+    private volatile double distanceTravelled = 0;
+
+    /**
+     * Constructor
+     *
+     * @param sensorPackets the sensor packets streamed, in frame order
+     */
+    public PoseEstimator(SensorPacket[] sensorPackets) {
+        leftIndex = indexOf(sensorPackets, SensorPacket.LEFT_ENCODER_COUNTS);
+        rightIndex = indexOf(sensorPackets, SensorPacket.RIGHT_ENCODER_COUNTS);
+        distanceIndex = indexOf(sensorPackets, SensorPacket.DISTANCE);
+        angleIndex = indexOf(sensorPackets, SensorPacket.ANGLE);
+        useEncoders = leftIndex >= 0 && rightIndex >= 0;
+    }
+
+    /**
+     * Check whether the sensor stream includes odometry.
+     *
+     * @return true if the pose is estimated from the encoders or from
+     * distance and angle
+     */
+    public boolean isAvailable() {
+        return useEncoders || (distanceIndex >= 0 && angleIndex >= 0);
+    }
+
+    /**
+     * Check which packets the pose is estimated from.
+     *
+     * @return true for the encoder counts, false for distance and angle
+     */
+    public boolean usesEncoders() {
+        return useEncoders;
+    }
+
+    /**
+     * Integrate the odometry of one frame into the pose.
+     *
+     * @param values the frame's sensor values, in the order of the sensor
+     * packets passed to the constructor
+     */
+    public void update(int[] values) {
+        double left;    // wheel travel in mm
+        double right;
+        if (useEncoders) {
+            int l = values[leftIndex] & 0xffff;
+            int r = values[rightIndex] & 0xffff;
+            if (!primed) {//The counters start anywhere
+                lastLeft = l;
+                lastRight = r;
+                primed = true;
+                return;
+            }
+            int dl = (short) (l - lastLeft);    // the change modulo 2^16
+            int dr = (short) (r - lastRight);
+            lastLeft = l;
+            lastRight = r;
+            leftCounts += dl;
+            rightCounts += dr;
+            left = dl * MM_PER_COUNT;
+            right = dr * MM_PER_COUNT;
+        } else if (distanceIndex >= 0 && angleIndex >= 0) {
+            int distance = values[distanceIndex];
+            int angle = values[angleIndex];
+            distanceMm += distance;
+            angleDegrees += angle;
+            double turn = Math.toRadians(angle) * WHEEL_BASE / 2;
+            left = distance - turn;
+            right = distance + turn;
+        } else {
+            return;
+        }
+        if (left == 0 && right == 0) {
+            return;
+        }
+        double distance = (left + right) / 2;
+        double turn = (right - left) / WHEEL_BASE;
+        double midHeading = heading + turn / 2;
+        x += distance * Math.cos(midHeading);
+        y += distance * Math.sin(midHeading);
+        heading = normalise(heading + turn);
+        distanceTravelled += Math.abs(distance);
+        publish();
+    }
+
+    /**
+     * Move the estimated pose, e.g. to a known starting point. Must be called
+     * from the thread calling update, or before the stream starts.
+     *
+     * @param x in mm
+     * @param y in mm
+     * @param heading in radians anticlockwise from the x axis
+     */
+    public void reset(double x, double y, double heading) {
+        this.x = x;
+        this.y = y;
+        this.heading = normalise(heading);
+        publish();
+    }
+
+    /**
+     * Copy the latest consistent pose into dest without locking or
+     * allocating.
+     *
+     * @param dest receives x and y in mm and heading in radians, at indices
+     * X, Y and HEADING
+     * @return the number of times the pose has changed
+     */
+    public long readPose(double[] dest) {
+        while (true) {
+            long before = poseSequence.get();
+            if ((before & 1) != 0) {//The pose is being written
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < 3; i++) {
+                dest[i] = Double.longBitsToDouble(pose.get(i));
+            }
+            if (poseSequence.get() == before) {
+                return before >> 1;
+            }
+        }
+    }
+
+    /**
+     * @return the total left encoder counts since the first frame
+     */
+    public long getLeftCounts() {
+        return leftCounts;
+    }
+
+    /**
+     * @return the total right encoder counts since the first frame
+     */
+    public long getRightCounts() {
+        return rightCounts;
+    }
+
+    /**
+     * @return the total distance in mm reported by the distance packet
+     */
+    public long getDistanceMm() {
+        return distanceMm;
+    }
+
+    /**
+     * @return the total angle in degrees reported by the angle packet
+     */
+    public long getAngleDegrees() {
+        return angleDegrees;
+    }
+
+    /**
+     * @return the distance travelled, forwards or backwards, in mm
+     */
+    public double getDistanceTravelled() {
+        return distanceTravelled;
+    }
+
+    /* Private helper functions */
+    private void publish() {
+        long sequence = poseSequence.get();
+        poseSequence.set(sequence + 1);
+        pose.set(X, Double.doubleToRawLongBits(x));
+        pose.set(Y, Double.doubleToRawLongBits(y));
+        pose.set(HEADING, Double.doubleToRawLongBits(heading));
+        poseSequence.set(sequence + 2);
+    }
+
+    private static double normalise(double angle) {
+        while (angle > Math.PI) {
+            angle -= 2 * Math.PI;
+        }
+        while (angle <= -Math.PI) {
+            angle += 2 * Math.PI;
+        }
+        return angle;
+    }
+
+    private static int indexOf(SensorPacket[] packets, SensorPacket packet) {
+        for (int i = 0; i < packets.length; i++) {
+            if (packets[i] == packet) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,5 +1,8 @@
 package roombaif;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * An dummy interface to an imaginary iRobot Roomba 595.
  *
@@ -7,6 +10,9 @@ package roombaif;
  */
 public class RoombaDummyIF extends RoombaIF {
 
+    private static final Logger logger = LoggerFactory.getLogger(RoombaDummyIF.class);
+    private static final Logger commandLogger = LoggerFactory.getLogger("roombaif.commands");
+
     private DummyInputFrame dummyInputFrame;
 
     /**
@@ -38,7 +44,7 @@ public class RoombaDummyIF extends RoombaIF {
             }
         });
 
-        System.out.println("Dummy port opened.");
+        logger.info("dummy-port-opened");
     }
 
     /**
@@ -51,11 +57,12 @@ public class RoombaDummyIF extends RoombaIF {
         checkIsOpened("closeIF");
         dummyInputFrame.dispose();
         isOpened = false;
-        System.out.println("Dummy port closed.");
+        logger.info("dummy-port-closed");
     }
 
     /**
-     * A dummy drive command that just prints its parameters.
+     * A dummy drive command that just logs its parameters on the
+     * "roombaif.commands" logger at debug level.
      * 
      * @param velocity
      * @param radius
@@ -65,13 +72,16 @@ public class RoombaDummyIF extends RoombaIF {
     public void driveCommand(short velocity, short radius)
             throws RoombaIFException {
         checkIsOpened("driveCommand");
-        System.out.println("Dummy drive command sent.");
-        System.out.println("    Velocity: " + velocity);
-        System.out.println("    Radius: " + radius);
+        driveCommanded(velocity, radius);
+        if (commandLogger.isDebugEnabled()) {
+            commandLogger.debug("dummy-drive-command velocity={} radius={}",
+                    velocity, radius);
+        }
     }
 
     /**
-     * A dummy motors command that just prints its parameters.    
+     * A dummy motors command that just logs its parameters on the
+     * "roombaif.commands" logger at debug level.
      * 
      * @param sideBrush
      * @param sideBrushClockwise
@@ -85,12 +95,14 @@ public class RoombaDummyIF extends RoombaIF {
             boolean mainBrush, boolean mainBrushOutward, boolean vacuum)
             throws RoombaIFException {
         checkIsOpened("driveCommand");
-        System.out.println("Dummy motors command sent.");
-        System.out.println("    Side Brush: " + sideBrush);
-        System.out.println("    Side Brush Clockwise: " + sideBrushClockwise);
-        System.out.println("    Main Brush: " + mainBrush);
-        System.out.println("    Main Brush Outward: " + mainBrushOutward);
-        System.out.println("    Vacuum: " + vacuum);
+        motorsCommanded(motorsDataByte(sideBrush, sideBrushClockwise, mainBrush,
+                mainBrushOutward, vacuum));
+        if (commandLogger.isDebugEnabled()) {
+            commandLogger.debug("dummy-motors-command side-brush={} side-brush-clockwise={}"
+                    + " main-brush={} main-brush-outward={} vacuum={}",
+                    new Object[]{sideBrush, sideBrushClockwise, mainBrush,
+                        mainBrushOutward, vacuum});
+        }
     }
 
     /**
@@ -100,13 +112,10 @@ public class RoombaDummyIF extends RoombaIF {
      * @param values 
      */
     protected synchronized void setSensorData(int[] values) {
-        if (values.length != sensorData.length) {
+        if (values.length != sensorData.length()) {
             return;
         }
-        System.arraycopy(values, 0, sensorData, 0, values.length);
         sensorDataIsValid.set(true);
-        if (sensorPacketListenerAdded) {
-            sensorPacketListener.sensorPacketReceived();
-        }
+        publishSensorData(values);
     }
 }
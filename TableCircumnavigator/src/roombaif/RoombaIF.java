@@ -1,6 +1,11 @@
 package roombaif;
 
+import java.lang.management.ManagementFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * An interface to an iRobot Roomba 595.
@@ -13,6 +18,19 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * When the interface is opened, it places the Roomba in Full control mode. It
  * also requests the Roomba stream a list of sensor data packets every 15 ms.
  *
+ * The latest frame of sensor data is published through a sequence lock: the
+ * writer makes the sequence odd while it updates the values and even again
+ * when it has finished. Readers copy the values without taking a lock and
+ * retry if the sequence moved while they were copying. Half the sequence is
+ * the number of frames published so far.
+ *
+ * Before a frame is published, the values of packets given a SensorFilter
+ * are replaced by their filtered values. Recorders and the pose estimator
+ * see the raw values.
+ *
+ * Every frame is also passed to a PoseEstimator, which dead reckons the
+ * Roomba's pose if the stream includes odometry packets.
+ *
  * For further information, including the meaning of the sensor data packets,
  * consult the iRobot Roomba 500 Open Interface (OI) Specification.
  *
@@ -20,14 +38,28 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public abstract class RoombaIF {
 
+    private static final Logger logger = LoggerFactory.getLogger(RoombaIF.class);
+
     /* Instance variables */
     protected String portName;
     protected boolean isOpened = false;
     protected SensorPacket[] sensorPacketsRequested;
-    protected int[] sensorData;
+    protected final AtomicIntegerArray sensorData;
+    private final AtomicLong sensorDataSequence;
     protected AtomicBoolean sensorDataIsValid;
-    protected SensorPacketListener sensorPacketListener;
-    protected boolean sensorPacketListenerAdded = false;
+    protected final SensorEventBus sensorEventBus;
+    protected final LatencyMonitor latencyMonitor;
+    protected final MetricsRegistry metrics;
+    private final PoseEstimator poseEstimator;
+    private final SensorFilter[] filters;
+    private final int[] filtered;
+    private final int[] lastRaw;
+    private volatile boolean filtering = false;
+    private volatile long suppressedChangeCount = 0;
+    private volatile long lastFrameNanos = 0;
+    private volatile int lastVelocity = 0;
+    private volatile SensorRecorder recorder;
+    private final AtomicLong firstDriveUptime = new AtomicLong(-1);
 
     /**
      * Constructor
@@ -40,7 +72,16 @@ public abstract class RoombaIF {
         this.portName = portName;
         this.sensorPacketsRequested = java.util.Arrays.copyOf(sensorPacketsRequested,
                 sensorPacketsRequested.length);
-        sensorData = new int[sensorPacketsRequested.length];
+        sensorData = new AtomicIntegerArray(sensorPacketsRequested.length);
+        sensorDataSequence = new AtomicLong(0);
+        sensorEventBus = new SensorEventBus(sensorPacketsRequested.length);
+        latencyMonitor = new LatencyMonitor();
+        poseEstimator = new PoseEstimator(sensorPacketsRequested);
+        filters = new SensorFilter[sensorPacketsRequested.length];
+        filtered = new int[sensorPacketsRequested.length];
+        lastRaw = new int[sensorPacketsRequested.length];
+        metrics = new MetricsRegistry();
+        addMetrics();
         sensorDataIsValid = new AtomicBoolean(false);
     }
 
@@ -85,15 +126,56 @@ public abstract class RoombaIF {
     /**
      * Get the latest sensor data streamed from the Roomba.
      *
+     * This allocates a new array on every call. Use readSensorData in code
+     * that runs for every frame.
+     *
      * @return the sensor data in the same order as the sensor packets
      * requested, converted to signed or unsigned integer data as appropriate
      */
-    public synchronized int[] getSensorData() {
-        int[] result;
-        result = java.util.Arrays.copyOf(sensorData, sensorData.length);
+    public int[] getSensorData() {
+        int[] result = new int[sensorData.length()];
+        readSensorData(result);
         return result;
     }
 
+    /**
+     * Copy the latest consistent frame of sensor data into dest without
+     * locking or allocating.
+     *
+     * @param dest receives the sensor data in the same order as the sensor
+     * packets requested. Must be at least as long as the list of sensor
+     * packets requested.
+     * @return the sequence number of the frame copied, 0 if no frame has
+     * been received yet
+     */
+    public long readSensorData(int[] dest) {
+        int n = sensorData.length();
+        while (true) {
+            long before = sensorDataSequence.get();
+            if ((before & 1) != 0) {//A frame is being written
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < n; i++) {
+                dest[i] = sensorData.get(i);
+            }
+            if (sensorDataSequence.get() == before) {
+                return before >> 1;
+            }
+        }
+    }
+
+    /**
+     * Get the sequence number of the latest frame of sensor data. It increases
+     * by one for every frame received, so a consumer can skip work when it has
+     * not changed.
+     *
+     * @return the frame sequence number, 0 if no frame has been received yet
+     */
+    public long getSensorFrameSequence() {
+        return sensorDataSequence.get() >> 1;
+    }
+
     /**
      * Open the interface to the Roomba. Place the Roomba into Full control mode
      * and start the sensor data streaming.
@@ -147,18 +229,238 @@ public abstract class RoombaIF {
 
     /**
      * Add a listener with a sensorPacketReveived method to be called whenever a
-     * good sensor packet is received. If the function is called more than once
-     * the latest SensorPacketListener will replace any previously added
-     * listeners.
+     * good sensor packet is received. Each listener is called on its own
+     * thread, never on the thread reading from the Roomba. If a listener falls
+     * behind it is called once for the latest packet rather than once for
+     * every packet it missed. The listener should fetch the packet with
+     * readSensorData.
      *
      * @param listener
+     * @return the subscription of the listener to the sensor event bus
+     */
+    public SensorSubscription addSensorPacketListener(final SensorPacketListener listener) {
+        return sensorEventBus.subscribe(new SensorFrameListener() {
+            @Override
+            public void sensorFrameReceived(long sequence, int[] values) {
+                listener.sensorPacketReceived();
+            }
+        }, SensorEventBus.OverflowPolicy.LATEST_WINS, 1);
+    }
+
+    /**
+     * Get the bus that delivers each good frame of sensor data to its
+     * subscribers.
+     *
+     * @return the sensor event bus
+     */
+    public SensorEventBus getSensorEventBus() {
+        return sensorEventBus;
+    }
+
+    /**
+     * Get the time the latest frame of sensor data arrived.
+     *
+     * @return the System.nanoTime of the latest frame, 0 if none has arrived
+     */
+    public long getLastFrameNanos() {
+        return lastFrameNanos;
+    }
+
+    /**
+     * Check whether the latest drive command asked the Roomba to move.
+     *
+     * @return true if its velocity was not zero
+     */
+    public boolean isMoving() {
+        return lastVelocity != 0;
+    }
+
+    /**
+     * Get the time from the launch of the JVM to the first drive command, the
+     * startup time of a robot.
+     *
+     * @return the time in ms, or -1 if no drive command has been sent
+     */
+    public long getFirstDriveUptime() {
+        return firstDriveUptime.get();
+    }
+
+    /**
+     * Get the runtime metrics of the interface, e.g. to print or to publish
+     * over JMX. Subclasses add metrics of their own.
+     *
+     * @return the metrics
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the monitor of the latency from sensor data arriving to drive
+     * commands being written.
+     *
+     * @return the latency monitor
+     */
+    public LatencyMonitor getLatencyMonitor() {
+        return latencyMonitor;
+    }
+
+    /**
+     * Get the estimator of the Roomba's pose from its odometry.
+     *
+     * @return the pose estimator. Check isAvailable before use.
+     */
+    public PoseEstimator getPoseEstimator() {
+        return poseEstimator;
+    }
+
+    /**
+     * Filter the values of a sensor packet before they are published. Set
+     * the filters before the interface is opened.
+     *
+     * @param packet one of the sensor packets requested
+     * @param filter the filter, or null to publish the raw values
+     */
+    public void setSensorFilter(SensorPacket packet, SensorFilter filter) {
+        int i = java.util.Arrays.asList(sensorPacketsRequested).indexOf(packet);
+        if (i < 0) {
+            throw new IllegalArgumentException(packet + " is not requested");
+        }
+        filters[i] = filter;
+        boolean any = false;
+        for (SensorFilter f : filters) {
+            any |= f != null;
+        }
+        filtering = any;
+    }
+
+    /**
+     * Record the sensor frames published and the commands sent from now on,
+     * or stop recording. The recorder must have been started and must record
+     * the sensor packets requested by this interface.
+     *
+     * @param recorder the recorder, or null to stop recording
      */
-    public void addSensorPacketListener(SensorPacketListener listener) {
-        sensorPacketListener = listener;
-        sensorPacketListenerAdded = true;
+    public void setRecorder(SensorRecorder recorder) {
+        if (recorder != null && !java.util.Arrays.equals(
+                recorder.getSensorPackets(), sensorPacketsRequested)) {
+            throw new IllegalArgumentException(
+                    "The recorder's sensor packets differ from those requested");
+        }
+        this.recorder = recorder;
+    }
+
+    /**
+     * Get the recorder set with setRecorder.
+     *
+     * @return the recorder, or null if not recording
+     */
+    public SensorRecorder getRecorder() {
+        return recorder;
     }
 
     /* Protected helper functions */
+    /**
+     * Publish a new frame of sensor data to readers and to the subscribers of
+     * the sensor event bus.
+     *
+     * Subclasses must not call this from more than one thread at a time.
+     *
+     * @param values the sensor data in the same order as the sensor packets
+     * requested
+     */
+    protected void publishSensorData(int[] values) {
+        publishSensorData(values, System.nanoTime());
+    }
+
+    /**
+     * Publish a new frame of sensor data, stamped with the time its bytes
+     * arrived for the latency monitor.
+     *
+     * Subclasses must not call this from more than one thread at a time.
+     *
+     * @param values the sensor data in the same order as the sensor packets
+     * requested
+     * @param receivedNanos the nanoTime the frame's last byte arrived
+     */
+    protected void publishSensorData(int[] values, long receivedNanos) {
+        int[] published = filtering ? filter(values) : values;
+        long sequence = sensorDataSequence.get();
+        sensorDataSequence.set(sequence + 1);
+        for (int i = 0; i < published.length; i++) {
+            sensorData.set(i, published[i]);
+        }
+        sensorDataSequence.set(sequence + 2);
+        poseEstimator.update(values);
+        lastFrameNanos = receivedNanos;
+        long frame = (sequence >> 1) + 1;
+        latencyMonitor.framePublished(frame, receivedNanos);
+        sensorEventBus.publish(frame, published);
+        SensorRecorder r = recorder;
+        if (r != null) {
+            r.recordFrame(frame, receivedNanos, values);
+        }
+    }
+
+    /**
+     * Record a drive command sent to the Roomba. Subclasses call this from
+     * driveCommand.
+     *
+     * @param velocity in mm/s
+     * @param radius in mm
+     */
+    protected void driveCommanded(short velocity, short radius) {
+        lastVelocity = velocity;
+        if (firstDriveUptime.get() < 0) {
+            long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            if (firstDriveUptime.compareAndSet(-1, uptime)) {
+                logger.info("startup-time-ms stage=first-drive-command port={} ms-since-jvm-start={}",
+                        portName, uptime);
+            }
+        }
+        SensorRecorder r = recorder;
+        if (r != null) {
+            r.recordDrive(System.nanoTime(), velocity, radius);
+        }
+    }
+
+    /**
+     * Record a motors command sent to the Roomba. Subclasses call this from
+     * motorsCommand.
+     *
+     * @param motors the Open Interface motors data byte
+     */
+    protected void motorsCommanded(byte motors) {
+        SensorRecorder r = recorder;
+        if (r != null) {
+            r.recordMotors(System.nanoTime(), motors);
+        }
+    }
+
+    /**
+     * Encode the parameters of a motors command as the data byte of the
+     * Open Interface MOTORS command: bit 0 side brush, 1 vacuum, 2 main
+     * brush, 3 side brush clockwise and 4 main brush outward, each set to
+     * turn the motor on or reverse it.
+     *
+     * @param sideBrush
+     * @param sideBrushClockwise
+     * @param mainBrush
+     * @param mainBrushOutward
+     * @param vacuum
+     * @return the data byte
+     */
+    protected static byte motorsDataByte(boolean sideBrush, boolean sideBrushClockwise,
+            boolean mainBrush, boolean mainBrushOutward, boolean vacuum) {
+        byte d = 0;
+        d |= ((sideBrush) ? 1 : 0);
+        d |= ((vacuum) ? 2 : 0);
+        d |= ((mainBrush) ? 4 : 0);
+        d |= ((sideBrushClockwise) ? 8 : 0);
+        d |= ((mainBrushOutward) ? 16 : 0);
+        return d;
+    }
+
     /**
      * 
      * @param methodName
@@ -171,4 +473,82 @@ public abstract class RoombaIF {
         }
     }
 
-}
\ No newline at end of file
+    /* Private helper functions */
+    private void addMetrics() {
+        MetricsRegistry.Gauge frames = new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return getSensorFrameSequence();
+            }
+        };
+        metrics.gauge("frames", frames);
+        metrics.rate("frames-per-second", frames);
+        metrics.gauge("ms-since-last-frame", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                long last = lastFrameNanos;
+                return (last == 0) ? -1 : (System.nanoTime() - last) / 1000000L;
+            }
+        });
+        metrics.gauge("sensor-data-valid", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return sensorDataIsValid.get() ? 1 : 0;
+            }
+        });
+        if (poseEstimator.isAvailable()) {
+            metrics.gauge("odometry-mm", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return (long) poseEstimator.getDistanceTravelled();
+                }
+            });
+        }
+        metrics.gauge("filter-suppressed-changes", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return suppressedChangeCount;
+            }
+        });
+        metrics.gauge("ms-to-first-drive", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return firstDriveUptime.get();
+            }
+        });
+        metrics.gauge("end-to-end-latency-p99-us", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return latencyMonitor.getHistogram(LatencyMonitor.Stage.END_TO_END)
+                        .getValueAtPercentile(99) / 1000L;
+            }
+        });
+    }
+
+    /**
+     * Apply the sensor filters to a frame, counting the raw changes that the
+     * filters held back.
+     *
+     * @return the filtered frame, reused for the next frame
+     */
+    private int[] filter(int[] values) {
+        long suppressed = 0;
+        for (int i = 0; i < values.length; i++) {
+            SensorFilter f = filters[i];
+            if (f == null) {
+                filtered[i] = values[i];
+                continue;
+            }
+            int v = f.filter(values[i]);
+            if (values[i] != lastRaw[i] && v == filtered[i]) {
+                suppressed++;
+            }
+            lastRaw[i] = values[i];
+            filtered[i] = v;
+        }
+        if (suppressed != 0) {
+            suppressedChangeCount += suppressed;
+        }
+        return filtered;
+    }
+}
@@ -9,6 +9,8 @@ public class RoombaIFException extends Exception {
     final public static String TYPE_NOT_OPEN = "Roomba interface not open";
     final public static String TYPE_ALREADY_OPEN = "Roomba interface is already open";
     final public static String TYPE_SERIAL = "Roomba serial interface exception";
+    final public static String TYPE_QUEUE_FULL = "Roomba command queue full";
+    final public static String TYPE_REPLAY = "Roomba replay exception";
 
     private String exceptionType;
 
@@ -0,0 +1,403 @@
+package roombaif;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays a recording made by a SensorRecorder as though it were being
+ * streamed by a Roomba.
+ *
+ * The segments of the recording are memory-mapped in turn and each frame of
+ * sensor data is published in order, to readers and to the subscribers of
+ * the sensor event bus, at the pace it was recorded or faster. The drive and
+ * motors commands in the recording are counted and logged on the
+ * "roombaif.commands" logger at debug level. Commands sent to the replay are
+ * accepted, measured and recorded like those sent to a Roomba, but change
+ * nothing.
+ *
+ * When the recording ends the sensor data becomes invalid, as though the
+ * stream had been lost.
+ *
+ * With a negative speedup no thread is started: the caller publishes one
+ * frame at a time with step(), e.g. to run an agent in lockstep with the
+ * recording.
+ *
+ * @author Braden Phillips
+ */
+public class RoombaReplayIF extends RoombaIF {
+
+    private static final Logger logger = LoggerFactory.getLogger(RoombaReplayIF.class);
+    private static final Logger commandLogger = LoggerFactory.getLogger("roombaif.commands");
+
+    /* Instance variables */
+    private final File[] segments;
+    private final double speedup;
+    private final int[] values;
+    private final int[] signBits;
+    private final int frameValueBytes;
+    private volatile boolean running = false;
+    private volatile boolean finished = false;
+    private Thread replayThread;
+    private volatile long recordedDriveCount = 0;
+    private volatile long recordedMotorsCount = 0;
+    // Replay cursor
+    private int nextSegment = 0;
+    private MappedByteBuffer buffer;
+    private long firstTime = -1;
+    private long originNanos;
+
+    /**
+     * Constructor
+     *
+     * @param segments the segment files of the recording, in order
+     * @param sensorPacketsRequested the sensor packets to stream. Must be
+     * those recorded.
+     * @param speedup 1 to replay at the pace recorded, 10 for ten times as
+     * fast, 0 for as fast as possible, negative to step manually
+     */
+    public RoombaReplayIF(File[] segments, SensorPacket[] sensorPacketsRequested,
+            double speedup) {
+        super((segments.length > 0) ? segments[0].getPath() : "replay",
+                sensorPacketsRequested);
+        this.segments = Arrays.copyOf(segments, segments.length);
+        this.speedup = speedup;
+        values = new int[sensorPacketsRequested.length];
+        signBits = new int[sensorPacketsRequested.length];
+        int n = 0;
+        for (int p = 0; p < signBits.length; p++) {
+            SensorPacket s = sensorPacketsRequested[p];
+            signBits[p] = s.signed() ? 1 << (8 * s.length() - 1) : 0;
+            n += s.length();
+        }
+        frameValueBytes = n;
+        metrics.gauge("recorded-drive-commands", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return recordedDriveCount;
+            }
+        });
+    }
+
+    /**
+     * Read the sensor packets recorded in a segment.
+     *
+     * @param segment
+     * @return the sensor packets, in stream order
+     * @throws IOException if the file is not a segment, or records an
+     * unknown packet
+     */
+    public static SensorPacket[] readSensorPackets(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(8 + 255 + 8);
+            FileChannel channel = file.getChannel();
+            while (header.hasRemaining() && channel.read(header) > 0) {
+            }
+            header.flip();
+            return readHeader(header, segment);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Check the recording and start replaying it.
+     *
+     * @param safeMode ignored
+     * @throws RoombaIFException if a segment cannot be read or records
+     * different sensor packets
+     */
+    @Override
+    public void openIF(boolean safeMode) throws RoombaIFException {
+        if (isOpened) {
+            throw new RoombaIFException(RoombaIFException.TYPE_ALREADY_OPEN);
+        }
+        if (segments.length == 0) {
+            throw new RoombaIFException(RoombaIFException.TYPE_REPLAY
+                    + ": no segments to replay");
+        }
+        for (File segment : segments) {
+            SensorPacket[] recorded;
+            try {
+                recorded = readSensorPackets(segment);
+            } catch (IOException ex) {
+                throw new RoombaIFException(RoombaIFException.TYPE_REPLAY + ": "
+                        + ex.getMessage());
+            }
+            if (!Arrays.equals(recorded, sensorPacketsRequested)) {
+                throw new RoombaIFException(RoombaIFException.TYPE_REPLAY + ": "
+                        + segment + " records different sensor packets");
+            }
+        }
+        isOpened = true;
+        running = true;
+        finished = false;
+        nextSegment = 0;
+        buffer = null;
+        firstTime = -1;
+        if (speedup >= 0) {
+            replayThread = new Thread(new Replay(), "Roomba replay");
+            replayThread.setDaemon(true);
+            replayThread.start();
+        }
+        logger.info("replay-opened segments={} speedup={}", segments.length, speedup);
+    }
+
+    /**
+     * Stop replaying.
+     *
+     * @throws RoombaIFException
+     */
+    @Override
+    public void closeIF() throws RoombaIFException {
+        checkIsOpened("closeIF");
+        isOpened = false;
+        running = false;
+        if (replayThread != null && replayThread != Thread.currentThread()) {
+            LockSupport.unpark(replayThread);
+            try {
+                replayThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        replayThread = null;
+        sensorDataIsValid.set(false);
+        logger.info("replay-closed frames={} recorded-drive-commands={}",
+                getSensorFrameSequence(), recordedDriveCount);
+    }
+
+    /**
+     * Accept a drive command. It has no effect on the sensor data replayed.
+     *
+     * @param velocity in mm/s
+     * @param radius in mm
+     * @throws RoombaIFException
+     */
+    @Override
+    public void driveCommand(short velocity, short radius)
+            throws RoombaIFException {
+        checkIsOpened("driveCommand");
+        driveCommanded(velocity, radius);
+        long now = System.nanoTime();
+        latencyMonitor.commandWritten(latencyMonitor.getCurrentFrame(), now, now);
+        if (commandLogger.isDebugEnabled()) {
+            commandLogger.debug("replay-drive-command velocity={} radius={}",
+                    velocity, radius);
+        }
+    }
+
+    /**
+     * Accept a motors command. It has no effect on the sensor data replayed.
+     */
+    @Override
+    public void motorsCommand(boolean sideBrush, boolean sideBrushClockwise,
+            boolean mainBrush, boolean mainBrushOutward, boolean vacuum)
+            throws RoombaIFException {
+        checkIsOpened("motorsCommand");
+        motorsCommanded(motorsDataByte(sideBrush, sideBrushClockwise, mainBrush,
+                mainBrushOutward, vacuum));
+    }
+
+    /**
+     * Publish the next frame of the recording. Must not be called while the
+     * replay thread is running, nor from more than one thread.
+     *
+     * @return false at the end of the recording
+     */
+    public boolean step() {
+        if (finished) {
+            return false;
+        }
+        try {
+            byte type;
+            while ((type = next(false)) != 0) {
+                if (type == SensorRecorder.FRAME) {
+                    return true;
+                }
+            }
+        } catch (IOException ex) {
+            logger.error("replay-failed port={}", portName, ex);
+        }
+        finish();
+        return false;
+    }
+
+    /**
+     * @return true once every frame of the recording has been published
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the number of drive commands in the recording replayed so far
+     */
+    public long getRecordedDriveCount() {
+        return recordedDriveCount;
+    }
+
+    /**
+     * @return the number of motors commands in the recording replayed so far
+     */
+    public long getRecordedMotorsCount() {
+        return recordedMotorsCount;
+    }
+
+    /* Private helper functions */
+    private static SensorPacket[] readHeader(ByteBuffer buffer, File segment)
+            throws IOException {
+        if (buffer.remaining() < 8 || buffer.getInt() != SensorRecorder.MAGIC) {
+            throw new IOException(segment + " is not a recording");
+        }
+        short version = buffer.getShort();
+        if (version != SensorRecorder.VERSION) {
+            throw new IOException(segment + " has unknown version " + version);
+        }
+        int n = buffer.getShort();
+        if (n < 0 || buffer.remaining() < n + 8) {
+            throw new IOException(segment + " has a truncated header");
+        }
+        SensorPacket[] packets = new SensorPacket[n];
+        for (int p = 0; p < n; p++) {
+            byte id = buffer.get();
+            for (SensorPacket s : SensorPacket.values()) {
+                if (s.id() == id) {
+                    packets[p] = s;
+                }
+            }
+            if (packets[p] == null) {
+                throw new IOException(segment + " records unknown packet " + id);
+            }
+        }
+        buffer.getLong();//the time the recording started
+        return packets;
+    }
+
+    /**
+     * Read the next record of the recording, mapping the next segment when
+     * the current one is exhausted, and act on it. Only called by one thread
+     * at a time: the replay thread, or the caller of step().
+     *
+     * @param paced wait until the record is due
+     * @return the type of the record, or 0 at the end of the recording
+     * @throws IOException if a segment cannot be mapped
+     */
+    private byte next(boolean paced) throws IOException {
+        while (true) {
+            if (buffer == null || buffer.remaining() < 9) {
+                if (nextSegment >= segments.length) {
+                    return 0;
+                }
+                File segment = segments[nextSegment++];
+                RandomAccessFile file = new RandomAccessFile(segment, "r");
+                try {
+                    buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                            0, file.length());
+                } finally {
+                    file.close();//the mapping stays valid
+                }
+                readHeader(buffer, segment);
+                continue;
+            }
+            byte type = buffer.get();
+            long time = buffer.getLong();
+            int length = (type == SensorRecorder.FRAME) ? 8 + frameValueBytes
+                    : (type == SensorRecorder.DRIVE) ? 4
+                    : (type == SensorRecorder.MOTORS) ? 1 : -1;
+            if (length < 0) {
+                logger.error("replay-corrupt-record segment={} position={} type={}",
+                        new Object[]{segments[nextSegment - 1], buffer.position() - 9, type});
+                buffer = null;
+                continue;
+            }
+            if (buffer.remaining() < length) {//the recorder was not closed
+                buffer = null;
+                continue;
+            }
+            if (paced) {
+                waitUntil(time);
+            }
+            switch (type) {
+                case SensorRecorder.FRAME:
+                    buffer.getLong();//the sequence recorded
+                    for (int p = 0; p < values.length; p++) {
+                        int raw = (sensorPacketsRequested[p].length() > 1)
+                                ? buffer.getShort() & 0xffff : buffer.get() & 0xff;
+                        values[p] = (raw ^ signBits[p]) - signBits[p];
+                    }
+                    sensorDataIsValid.set(true);
+                    publishSensorData(values, System.nanoTime());
+                    break;
+                case SensorRecorder.DRIVE:
+                    short velocity = buffer.getShort();
+                    short radius = buffer.getShort();
+                    recordedDriveCount++;
+                    if (commandLogger.isDebugEnabled()) {
+                        commandLogger.debug("replay-recorded-drive-command velocity={} radius={}",
+                                velocity, radius);
+                    }
+                    break;
+                default:
+                    int motors = buffer.get() & 0xff;
+                    recordedMotorsCount++;
+                    if (commandLogger.isDebugEnabled()) {
+                        commandLogger.debug("replay-recorded-motors-command motors={}", motors);
+                    }
+            }
+            return type;
+        }
+    }
+
+    /**
+     * Wait until the time a record was recorded, scaled by the speedup,
+     * relative to the first record.
+     */
+    private void waitUntil(long time) {
+        if (firstTime < 0) {
+            firstTime = time;
+            originNanos = System.nanoTime();
+            return;
+        }
+        if (speedup <= 0) {
+            return;
+        }
+        long due = originNanos + (long) ((time - firstTime) / speedup);
+        long wait;
+        while (running && (wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private void finish() {
+        sensorDataIsValid.set(false);
+        finished = true;
+        logger.info("replay-finished frames={} recorded-drive-commands={}",
+                getSensorFrameSequence(), recordedDriveCount);
+    }
+
+    /**
+     * Publishes the frames of the recording in turn.
+     */
+    private class Replay implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (running && next(true) != 0) {
+                }
+            } catch (IOException ex) {
+                logger.error("replay-failed port={}", portName, ex);
+            }
+            finish();
+        }
+    }
+}
@@ -1,19 +1,21 @@
 package roombaif;
 
-import jssc.SerialPort;
-import jssc.SerialPortEvent;
-import jssc.SerialPortEventListener;
-import jssc.SerialPortException;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.List;
-import java.util.LinkedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * An interface to an iRobot Roomba 595 via a serial port.
  *
- * We assume the Roomba is set for 115200 baud, its default rate. Resetting the
- * Roomba (by turning it on and holding down the Spot and Dock buttons) should
- * reset it to 115200 baud.
+ * The bytes are carried by a SerialTransport: normally a JsscSerialTransport
+ * on the named serial port, or a LoopbackRoomba for testing without a robot.
+ *
+ * Drive and motors commands are queued and written by a CommandWriter thread,
+ * so the thread issuing them never waits on the serial port.
+ *
+ * The sensor stream is watched by a LivenessMonitor, by default the one
+ * shared by every interface in the JVM. If no valid frame arrives for 65 ms
+ * the sensor data is marked invalid and, if the Roomba is moving, it is
+ * told to stop.
  *
  * For further information, including the meaning of the sensor data packets,
  * consult the iRobot Roomba 500 Open Interface (OI) Specification.
@@ -22,11 +24,7 @@ import java.util.LinkedList;
  */
 public class RoombaSerialIF extends RoombaIF {
 
-    /* Communication parameters */
-    private static final int BAUDRATE = SerialPort.BAUDRATE_115200;
-    private static final int DATABITS = SerialPort.DATABITS_8;
-    private static final int STOPBITS = SerialPort.STOPBITS_1;
-    private static final int PARITY = SerialPort.PARITY_NONE;
+    private static final Logger logger = LoggerFactory.getLogger(RoombaSerialIF.class);
 
     /* Command packets */
     private static final byte START_COMMAND = (byte) 128;
@@ -35,17 +33,22 @@ public class RoombaSerialIF extends RoombaIF {
     private static final byte STREAM_COMMAND = (byte) 148;
     private static final byte PAUSE_STREAM_COMMAND = (byte) 150;
     private static final byte DRIVE_COMMAND = (byte) 137;
-    private static final byte MOTORS_COMMAND = (byte) 137;
+    private static final byte MOTORS_COMMAND = (byte) 138;
 
-    /* Sensor stream header */
-    private static final byte SENSOR_STREAM_HEADER = (byte) 19;
+    /* The Roomba streams a frame every 15 ms */
+    public static final long DEFAULT_STALE_MILLIS = 65;
 
     /* Instance variables */
-    private SerialPort serialPort;
-    private List<Byte> rawSensorData;
-    private int sensorDataLength;
-    private AtomicBoolean watchdog;
-    private Thread watchdogTimer;
+    private final SerialTransport transport;
+    private final SensorFrameLayout sensorFrameLayout;
+    private SensorFrameDecoder sensorFrameDecoder;
+    private LivenessMonitor livenessMonitor;
+    private long staleMillis = DEFAULT_STALE_MILLIS;
+    private boolean stopWhenStale = true;
+    private LivenessMonitor.Registration liveness;
+    private final CommandWriter commandWriter;
+    private long receivedNanos;     // when the bytes being decoded arrived
+    private final MetricsRegistry.Counter watchdogTrips;
 
     /**
      * Constructor
@@ -55,13 +58,32 @@ public class RoombaSerialIF extends RoombaIF {
      * Roomba
      */
     public RoombaSerialIF(String portName, SensorPacket[] sensorPacketsRequested) {
-        super(portName, sensorPacketsRequested);
-        sensorDataLength = 3 + sensorPacketsRequested.length; //header, n-bytes, checksum, IDs
-        for (SensorPacket s : sensorPacketsRequested) {
-            sensorDataLength += s.length();
-        }
-        rawSensorData = new LinkedList<Byte>();
-        watchdog = new AtomicBoolean(false);
+        this(new JsscSerialTransport(portName), sensorPacketsRequested);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param transport carries bytes to and from the Roomba
+     * @param sensorPacketsRequested the sensor packets to stream from the
+     * Roomba
+     */
+    public RoombaSerialIF(SerialTransport transport,
+            SensorPacket[] sensorPacketsRequested) {
+        super(transport.getName(), sensorPacketsRequested);
+        this.transport = transport;
+        sensorFrameLayout = new SensorFrameLayout(sensorPacketsRequested);
+        sensorFrameDecoder = new SensorFrameDecoder(sensorFrameLayout,
+                new FrameReceiver());
+        commandWriter = new CommandWriter(new CommandWriter.Output() {
+            @Override
+            public void write(byte[] bytes, int offset, int length)
+                    throws RoombaIFException {
+                RoombaSerialIF.this.transport.write(bytes, offset, length);
+            }
+        }, CommandWriter.DEFAULT_CAPACITY, latencyMonitor);
+        watchdogTrips = metrics.counter("watchdog-trips");
+        addSerialMetrics();
     }
 
     /**
@@ -71,26 +93,22 @@ public class RoombaSerialIF extends RoombaIF {
      */
     @Override
     public void openIF(boolean safeMode) throws RoombaIFException {
-        serialPort = new SerialPort(portName);
         if (isOpened) {
             throw new RoombaIFException(RoombaIFException.TYPE_ALREADY_OPEN);
         }
+        sensorFrameDecoder.reset();
+        transport.open(new SensorDataReceiver());
         try {
-            serialPort.openPort();
-            serialPort.setParams(BAUDRATE, DATABITS, STOPBITS, PARITY);
-            int mask = SerialPort.MASK_RXCHAR;
-            serialPort.setEventsMask(mask);
-            serialPort.addEventListener(new SerialPortReader());
-            serialPort.writeByte(START_COMMAND); //passive mode
+            transport.write(new byte[]{START_COMMAND}); //passive mode
             try {
                 Thread.sleep(100);
             } catch (InterruptedException ex) {
                 //Don't do anything. Nothing sends this thread an interrupt.
             }
             if (safeMode) {
-                serialPort.writeByte(SAFE_COMMAND); //safe mode 
+                transport.write(new byte[]{SAFE_COMMAND}); //safe mode 
             } else {
-                serialPort.writeByte(FULL_COMMAND); //full mode 
+                transport.write(new byte[]{FULL_COMMAND}); //full mode 
             }
             try {
                 Thread.sleep(100);
@@ -103,20 +121,21 @@ public class RoombaSerialIF extends RoombaIF {
             for (int i = 0; i < sensorPacketsRequested.length; i++) {
                 c[i + 2] = sensorPacketsRequested[i].id();
             }
-            serialPort.writeBytes(c);
-        } catch (SerialPortException ex) {
+            transport.write(c);
+        } catch (RoombaIFException ex) {
             try {
-                if (serialPort.isOpened()) {
-                    serialPort.closePort();
-                }
-            } catch (SerialPortException ex2) {
+                transport.close();
+            } catch (RoombaIFException ex2) {
                 //Don't do anything. We are already going to throw an exception.
             }
-            throw new RoombaIFException(RoombaIFException.TYPE_SERIAL + ": "
-                    + ex.getMessage());
+            throw ex;
+        }
+        if (livenessMonitor == null) {
+            livenessMonitor = LivenessMonitor.getShared();
         }
-        watchdogTimer = new Thread(new WatchdogTimer());
-        watchdogTimer.start();
+        liveness = livenessMonitor.register(this, staleMillis, stopWhenStale,
+                new LivenessListener());
+        commandWriter.start("Roomba command writer " + portName);
         isOpened = true;
     }
 
@@ -128,16 +147,14 @@ public class RoombaSerialIF extends RoombaIF {
     @Override
     public void closeIF() throws RoombaIFException {
         checkIsOpened("closeIF");
-        watchdogTimer.interrupt();//clean up the watchdog timer
+        liveness.cancel();//stop watching the sensor stream
         isOpened = false;
+        commandWriter.stop();//write any queued commands
         byte[] c = {PAUSE_STREAM_COMMAND, (byte) 0, START_COMMAND};
         try {
-            serialPort.writeBytes(c);// pause stream and return to passive mode
-            serialPort.removeEventListener();
-            serialPort.closePort();
-        } catch (SerialPortException ex) {
-            throw new RoombaIFException(RoombaIFException.TYPE_SERIAL + ": "
-                    + ex.getMessage());
+            transport.write(c);// pause stream and return to passive mode
+        } finally {
+            transport.close();
         }
     }
 
@@ -169,7 +186,8 @@ public class RoombaSerialIF extends RoombaIF {
         }
         byte[] c = {DRIVE_COMMAND, highByte(velocity), lowByte(velocity),
             highByte(radius), lowByte(radius)};
-        writeBytes(c);
+        commandWriter.enqueue(c);
+        driveCommanded(velocity, radius);
     }
 
     /**
@@ -189,14 +207,11 @@ public class RoombaSerialIF extends RoombaIF {
             boolean mainBrush, boolean mainBrushOutward, boolean vacuum)
             throws RoombaIFException {
         checkIsOpened("driveCommand");
-        byte d = 0;
-        d += ((sideBrush) ? 0 : 1);
-        d += ((vacuum) ? 0 : 2);
-        d += ((mainBrush) ? 0 : 4);
-        d += ((sideBrushClockwise) ? 0 : 8);
-        d += ((mainBrushOutward) ? 0 : 16);
+        byte d = motorsDataByte(sideBrush, sideBrushClockwise, mainBrush,
+                mainBrushOutward, vacuum);
         byte[] c = {MOTORS_COMMAND, d};
-        writeBytes(c);
+        commandWriter.enqueue(c);
+        motorsCommanded(d);
     }
 
     private byte highByte(short s) {
@@ -207,157 +222,122 @@ public class RoombaSerialIF extends RoombaIF {
         return (byte) (s & 0xff);
     }
 
-    private void writeBytes(byte[] b)
-            throws RoombaIFException {
-        try {
-            serialPort.writeBytes(b);
-        } catch (SerialPortException ex) {
-            throw new RoombaIFException(RoombaIFException.TYPE_SERIAL + ": "
-                    + ex.getMessage());
-        }
-
+    /**
+     * Set how the sensor stream is watched. Takes effect when the interface
+     * is next opened.
+     *
+     * @param monitor the liveness monitor, or null for the shared monitor
+     * @param staleMillis how long without a valid frame before the stream is
+     * stale and the sensor data invalid
+     * @param stopWhenStale stop the Roomba if it is moving when the stream
+     * goes stale
+     */
+    public void setLiveness(LivenessMonitor monitor, long staleMillis,
+            boolean stopWhenStale) {
+        this.livenessMonitor = monitor;
+        this.staleMillis = staleMillis;
+        this.stopWhenStale = stopWhenStale;
     }
 
     /**
-     * Receive and interpret sensor data streams from the Roomba and store the
-     * results in sensorData.
+     * Get the writer that queues and sends commands to the Roomba, e.g. to
+     * monitor its queue depth and latency.
+     *
+     * @return the command writer
      */
-    private class SerialPortReader implements SerialPortEventListener {
+    public CommandWriter getCommandWriter() {
+        return commandWriter;
+    }
 
-        @Override
-        public void serialEvent(SerialPortEvent event) {
-            if (!event.isRXCHAR()) {//Ensure data is avaiable
-                return;
+    private void addSerialMetrics() {
+        MetricsRegistry.Gauge bytes = new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return sensorFrameDecoder.getByteCount();
             }
-            if (event.getEventValue() <= 0) {//Ensure there is data to read 
-                return;
+        };
+        metrics.gauge("bytes-received", bytes);
+        metrics.rate("bytes-per-second", bytes);
+        metrics.gauge("resync-bytes", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return sensorFrameDecoder.getResyncByteCount();
             }
-            //Get the data from the serial port
-            byte buffer[];
-            try {
-                buffer = serialPort.readBytes(event.getEventValue());
-            } catch (SerialPortException ex) {
-                System.err.println(ex);
-                buffer = new byte[0];
+        });
+        metrics.gauge("invalid-frames", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return sensorFrameDecoder.getInvalidFrameCount();
             }
-            //Buffer the data in rawSensorData
-            for (byte b : buffer) {
-                rawSensorData.add(b);
+        });
+        metrics.gauge("command-queue-bytes", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return commandWriter.getQueuedBytes();
             }
-            //Look for valid streams
-            while (rawSensorData.size() >= sensorDataLength) {
-                if (rawSensorData.get(0) != (byte) SENSOR_STREAM_HEADER) {//Quickly serch for a possible header, dumping anything ahead of it
-                    rawSensorData.remove(0);
-                } else if (checkRawSensorData()) {//A valid stream at the start of the buffer
-//                    System.out.println("Found a good one!");
-                    interpretRawSensorData();
-                    sensorDataIsValid.set(true);
-                    watchdog.set(true);
-                    if (sensorPacketListenerAdded) {
-                        sensorPacketListener.sensorPacketReceived();
-                    }
-                } else {//It was not a header after all
-                    rawSensorData.remove(0);
-                }
+        });
+        metrics.gauge("commands-queued", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return commandWriter.getCommandCount();
             }
-        }
+        });
+        metrics.gauge("commands-coalesced", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return commandWriter.getCoalescedCount();
+            }
+        });
+        metrics.gauge("command-latency-max-us", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return commandWriter.getMaxLatencyNanos() / 1000L;
+            }
+        });
     }
 
     /**
-     * Check if there is a valid sensor data stream at the start of the
-     * rawSensorData.
-     *
-     * Beware: this is not synchronized and hence memory consistency could be an
-     * issue. At present it is only called from within the SerialPortReader
-     * thread, the only thread to write to rawSensorData and hence it should not
-     * be a problem.
-     *
-     * @return true if the raw sensor data is a valid stream reads for
-     * interpretation
+     * Receive sensor data streams from the Roomba and pass them to the
+     * sensorFrameDecoder.
      */
-    private boolean checkRawSensorData() {
-        if (rawSensorData.size() < sensorDataLength) {
-//            System.out.println("Check Failed: too short");
-            return false;
-        }
-        if (rawSensorData.get(0) != (byte) SENSOR_STREAM_HEADER) {
-//            System.out.println("Check Failed: not header");
-            return false;
-        }
-        if (rawSensorData.get(1) != sensorDataLength - 3) {
-//            System.out.println("Check Failed: n-bytes incorrect");
-            return false;
-        }
-        for (int j = 0; j < sensorDataLength; j++) {
-//            System.out.println("byte: " + j + " value: " + rawSensorData.get(j));
-        }
-        int i = 2; // index of packet ID 1
-        for (SensorPacket s : sensorPacketsRequested) {
-            if (rawSensorData.get(i) != s.id()) {
-//                System.out.println("Check Failed: packet id for " + s.id + "incorrect");
-                return false;
-            }
-            i += s.length() + 1;
-        }
-        int checksum = 0;
-        /* Desipte what it says in the Roomba documentation, the checksum calculated
-         * by the Roomba actually includes the header byte (0x13).
-         */
-        for (int j = 0; j < sensorDataLength; j++) {
-            checksum += (rawSensorData.get(j) & 0xff);
-        }
-        if ((checksum & 0xff) != 0) {
-//            System.out.println("Check Failed: incorrect checksum computed " + checksum);
-            return false;
+    private class SensorDataReceiver implements SerialTransport.Receiver {
+
+        @Override
+        public void bytesReceived(byte[] data, int offset, int length) {
+            receivedNanos = System.nanoTime();//stamps the frames completed
+            //Look for valid streams
+            sensorFrameDecoder.decode(data, offset, length);
         }
-        return true;
     }
 
     /**
-     * Interpret a valid raw sensor data stream and store the results as
-     * correctly signed integers in sensorData. Removes the stream from the
-     * rawSensorData buffer.
-     *
-     * Note: this is synchronized as it updates the shared sensorData. Any other
-     * thread that reads the sensorData will do so via the getSensorData method
-     * that will be synchronized with this one.
+     * Publish each valid frame from the sensorFrameDecoder.
      */
-    private synchronized void interpretRawSensorData() {
-        int sensorDataIndex = 0;
-        rawSensorData.remove(0); //The header
-        rawSensorData.remove(0); //The n-bytes field
-        for (SensorPacket s : sensorPacketsRequested) {
-            rawSensorData.remove(0); //The packet ID field
-            sensorData[sensorDataIndex] = 0;
-            for (int i = 0; i < s.length(); i++) {
-                sensorData[sensorDataIndex] *= 256;
-                sensorData[sensorDataIndex] += rawSensorData.remove(0);
-            }
-            if (s.signed() && (sensorData[sensorDataIndex] >= 1 << (8 * s.length() - 1))) {
-                sensorData[sensorDataIndex] -= 1 << (8 * s.length());
-            }
-            sensorDataIndex++;
+    private class FrameReceiver implements SensorFrameDecoder.FrameHandler {
+
+        @Override
+        public void frameDecoded(int[] values) {
+            sensorDataIsValid.set(true);
+            publishSensorData(values, receivedNanos);
         }
-        rawSensorData.remove(0); //The checksum
     }
 
-    private class WatchdogTimer implements Runnable {
+    /**
+     * Invalidate the sensor data while the stream is stale.
+     */
+    private class LivenessListener implements LivenessMonitor.Listener {
 
         @Override
-        public void run() {
-            while (true) {
-                watchdog.set(false);
-                try {
-                    Thread.sleep(65);
-                } catch (InterruptedException ex) {
-                    //System.out.println("Watchdog: whimper");
-                    return;
-                }
-                if (watchdog.get() == false) {
-                    //System.out.println("Watchdog: growl");
-                    sensorDataIsValid.set(false);
-                }
-            }
+        public void streamStale(RoombaIF roomba, long staleMillis) {
+            sensorDataIsValid.set(false);
+            watchdogTrips.increment();
+            logger.warn("watchdog-tripped port={} stale-ms={} trips={}",
+                    new Object[]{portName, staleMillis, watchdogTrips.getValue()});
+        }
+
+        @Override
+        public void streamRecovered(RoombaIF roomba) {
+            logger.info("watchdog-recovered port={}", portName);
         }
     }
 }
@@ -0,0 +1,527 @@
+package roombaif;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A headless simulated iRobot Roomba 595 driving on a SimTable.
+ *
+ * Drive commands set the velocity and radius of a differential drive robot
+ * whose pose is integrated in fixed steps of 15 ms of simulated time, the
+ * period of the Roomba's sensor stream. After every step a frame of sensor
+ * data is computed for the packets requested and published, as though it had
+ * been streamed by a real Roomba.
+ *
+ * The simulation models:
+ * + the four cliff sensors, triggered when they are over the table's edge;
+ * + the wheel drops, triggered when a wheel is over the edge, after which
+ *   the robot has fallen and no longer moves;
+ * + the left and right bumpers, triggered by contact with an obstacle, which
+ *   stops the robot moving into it;
+ * + stasis, 1 while the robot is making forward progress;
+ * + distance, angle and the wheel encoders.
+ * Other packets read as 0, except the OI mode and the requested velocity and
+ * radius.
+ *
+ * The frame period sets how fast simulated time runs. 15 ms is real time,
+ * 150 us is 100 times real time, and 0 runs as fast as possible. A negative
+ * frame period starts no thread at all: the caller advances the simulation
+ * one frame at a time with step().
+ *
+ * @author Braden Phillips
+ */
+public class RoombaSimIF extends RoombaIF {
+
+    private static final Logger logger = LoggerFactory.getLogger(RoombaSimIF.class);
+    private static final Logger commandLogger = LoggerFactory.getLogger("roombaif.commands");
+
+    /* Simulation parameters */
+    public static final long REAL_TIME_FRAME_PERIOD_NANOS = 15000000L;
+    public static final double STEP_SECONDS = 0.015;
+    public static final double ROBOT_RADIUS = 170.0;        // mm
+    public static final double WHEEL_BASE = 235.0;          // mm
+    public static final double CLIFF_SENSOR_RADIUS = 160.0; // mm from centre
+    public static final double COUNTS_PER_MM = 508.8 / (72.0 * Math.PI);
+    private static final double[] CLIFF_SENSOR_BEARINGS = {
+        Math.toRadians(60), Math.toRadians(20), Math.toRadians(-20), Math.toRadians(-60)
+    };
+    private static final int CLIFF_SIGNAL_ON_TABLE = 2500;
+    private static final int CLIFF_SIGNAL_OFF_TABLE = 5;
+    private static final int BUMP_RIGHT = 0x1;
+    private static final int BUMP_LEFT = 0x2;
+    private static final int WHEEL_DROP_RIGHT = 0x4;
+    private static final int WHEEL_DROP_LEFT = 0x8;
+
+    /* Instance variables */
+    private final SimTable table;
+    private final long framePeriodNanos;
+    private final int[] values;
+    private final double[] nearest = new double[2];
+    private volatile int driveCommand = 0;  // velocity << 16 | radius & 0xffff
+    private volatile boolean running = false;
+    private Thread simThread;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> stepTask;
+    private boolean safeMode;
+    // Simulation state, only touched by the thread calling step()
+    private double x;
+    private double y;
+    private double heading;
+    private boolean fallen = false;
+    private int bumps = 0;
+    private int wheelDrops = 0;
+    private final boolean[] cliffs = new boolean[4];
+    private boolean forwardProgress = false;
+    private double distanceResidual = 0;
+    private double angleResidual = 0;
+    private int stepDistance = 0;
+    private int stepAngle = 0;
+    private double leftCounts = 0;
+    private double rightCounts = 0;
+    private volatile long frameCount = 0;
+    private volatile long bumpCount = 0;
+    private volatile long cliffCount = 0;
+    private volatile double distanceTravelled = 0;
+
+    /**
+     * Constructor
+     *
+     * @param sensorPacketsRequested the sensor packets to stream
+     * @param table the table the Roomba drives on
+     * @param x initial position in mm
+     * @param y initial position in mm
+     * @param heading initial heading in radians anticlockwise from the x axis
+     * @param framePeriodNanos real time between frames: 15 ms for real time, 0
+     * for as fast as possible, negative to step manually
+     */
+    public RoombaSimIF(SensorPacket[] sensorPacketsRequested, SimTable table,
+            double x, double y, double heading, long framePeriodNanos) {
+        super("sim", sensorPacketsRequested);
+        this.table = table;
+        this.framePeriodNanos = framePeriodNanos;
+        this.x = x;
+        this.y = y;
+        this.heading = heading;
+        values = new int[sensorPacketsRequested.length];
+    }
+
+    /**
+     * Open the simulated interface and start streaming sensor data.
+     *
+     * @param safeMode reported in the OI mode packet
+     * @throws RoombaIFException
+     */
+    @Override
+    public void openIF(boolean safeMode) throws RoombaIFException {
+        if (isOpened) {
+            throw new RoombaIFException(RoombaIFException.TYPE_ALREADY_OPEN);
+        }
+        this.safeMode = safeMode;
+        isOpened = true;
+        if (executor != null && framePeriodNanos > 0) {
+            running = true;
+            stepTask = executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    step();
+                }
+            }, framePeriodNanos, framePeriodNanos, TimeUnit.NANOSECONDS);
+        } else if (framePeriodNanos >= 0) {
+            running = true;
+            simThread = new Thread(new Simulation(), "Roomba simulation");
+            simThread.setDaemon(true);
+            simThread.start();
+        }
+        logger.info("sim-opened frame-period-ns={}", framePeriodNanos);
+    }
+
+    /**
+     * Stop the simulation.
+     *
+     * @throws RoombaIFException
+     */
+    @Override
+    public void closeIF() throws RoombaIFException {
+        checkIsOpened("closeIF");
+        isOpened = false;
+        running = false;
+        if (stepTask != null) {
+            stepTask.cancel(false);
+            stepTask = null;
+        }
+        if (simThread != null && simThread != Thread.currentThread()) {
+            try {
+                simThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        simThread = null;
+        logger.info("sim-closed frames={} bumps={} cliffs={} fallen={}",
+                new Object[]{frameCount, bumpCount, cliffCount, fallen});
+    }
+
+    /**
+     * Set the velocity and radius of the simulated robot, limited as the
+     * Roomba limits them.
+     *
+     * @param velocity in mm/s
+     * @param radius in mm, positive is left, negative is right
+     * @throws RoombaIFException
+     */
+    @Override
+    public void driveCommand(short velocity, short radius)
+            throws RoombaIFException {
+        checkIsOpened("driveCommand");
+        if (velocity > 500) {
+            velocity = 500;
+        } else if (velocity < -500) {
+            velocity = -500;
+        }
+        if ((radius > 2000) & (radius != 32767)) {
+            radius = 2000;
+        }
+        if ((radius < -2000) & (radius != -32768)) {
+            radius = -2000;
+        }
+        driveCommand = (velocity << 16) | (radius & 0xffff);
+        driveCommanded(velocity, radius);
+        long now = System.nanoTime();//takes effect at once
+        latencyMonitor.commandWritten(latencyMonitor.getCurrentFrame(), now, now);
+        if (commandLogger.isDebugEnabled()) {
+            commandLogger.debug("sim-drive-command velocity={} radius={}",
+                    velocity, radius);
+        }
+    }
+
+    /**
+     * The simulation has no brushes or vacuum; the command is accepted and
+     * ignored.
+     */
+    @Override
+    public void motorsCommand(boolean sideBrush, boolean sideBrushClockwise,
+            boolean mainBrush, boolean mainBrushOutward, boolean vacuum)
+            throws RoombaIFException {
+        checkIsOpened("motorsCommand");
+        motorsCommanded(motorsDataByte(sideBrush, sideBrushClockwise, mainBrush,
+                mainBrushOutward, vacuum));
+    }
+
+    /**
+     * Step the simulation on a shared executor, rather than a thread of its
+     * own, when it is next opened. Only applies to a positive frame period.
+     *
+     * @param executor
+     */
+    public void setExecutor(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the real time between frames in ns: 0 for as fast as possible,
+     * negative if stepped manually
+     */
+    public long getFramePeriodNanos() {
+        return framePeriodNanos;
+    }
+
+    /**
+     * Advance the simulation by one 15 ms step and publish a frame of sensor
+     * data. Called by the simulation thread, or by the owner of a manually
+     * stepped simulation. Must not be called from more than one thread.
+     */
+    public void step() {
+        int command = driveCommand;
+        integrate((short) (command >> 16), (short) command);
+        sense();
+        buildFrame(command);
+        sensorDataIsValid.set(true);
+        publishSensorData(values);
+        frameCount++;
+    }
+
+    /**
+     * @return the x position in mm
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * @return the y position in mm
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * @return the heading in radians anticlockwise from the x axis
+     */
+    public double getHeading() {
+        return heading;
+    }
+
+    /**
+     * @return true once a wheel has dropped over the edge of the table
+     */
+    public boolean hasFallen() {
+        return fallen;
+    }
+
+    /**
+     * @return the number of frames simulated
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the simulated time elapsed in ns
+     */
+    public long getSimulatedNanos() {
+        return frameCount * REAL_TIME_FRAME_PERIOD_NANOS;
+    }
+
+    /**
+     * @return the number of times a bumper has been pressed
+     */
+    public long getBumpCount() {
+        return bumpCount;
+    }
+
+    /**
+     * @return the number of times a cliff sensor has been triggered
+     */
+    public long getCliffCount() {
+        return cliffCount;
+    }
+
+    /**
+     * @return the distance the centre of the robot has travelled in mm
+     */
+    public double getDistanceTravelled() {
+        return distanceTravelled;
+    }
+
+    /**
+     * Integrate the differential drive kinematics over one step.
+     */
+    private void integrate(short velocity, short radius) {
+        if (fallen || velocity == 0) {
+            stepDistance = roundWithResidual(0, true);
+            stepAngle = roundWithResidual(0, false);
+            forwardProgress = false;
+            return;
+        }
+        double left;    // wheel travel in mm
+        double right;
+        if (radius == 32767 || radius == -32768) {//Straight
+            left = velocity * STEP_SECONDS;
+            right = left;
+        } else if (radius == 1) {//Turn in place anticlockwise
+            left = -velocity * STEP_SECONDS;
+            right = -left;
+        } else if (radius == -1) {//Turn in place clockwise
+            left = velocity * STEP_SECONDS;
+            right = -left;
+        } else {
+            double omega = velocity / (double) radius;
+            left = omega * (radius - WHEEL_BASE / 2) * STEP_SECONDS;
+            right = omega * (radius + WHEEL_BASE / 2) * STEP_SECONDS;
+        }
+        double distance = (left + right) / 2;
+        double turn = (right - left) / WHEEL_BASE;
+        double midHeading = heading + turn / 2;
+        double newX = x + distance * Math.cos(midHeading);
+        double newY = y + distance * Math.sin(midHeading);
+        heading = normalise(heading + turn);
+        // Obstacles stop translation into them but not rotation
+        if (distance != 0 && table.findObstacle(newX, newY, ROBOT_RADIUS, nearest)
+                && isAhead(nearest, distance)) {
+            left = (left - right) / 2;
+            right = -left;
+            distance = 0;
+        } else {
+            x = newX;
+            y = newY;
+        }
+        leftCounts += left * COUNTS_PER_MM;
+        rightCounts += right * COUNTS_PER_MM;
+        distanceTravelled += Math.abs(distance);
+        forwardProgress = distance > 0;
+        stepDistance = roundWithResidual(distance, true);
+        stepAngle = roundWithResidual(Math.toDegrees(turn), false);
+    }
+
+    /**
+     * Check whether the obstacle point p is in the direction of travel.
+     */
+    private boolean isAhead(double[] p, double distance) {
+        double dot = (p[0] - x) * Math.cos(heading) + (p[1] - y) * Math.sin(heading);
+        return (distance > 0) ? dot > 0 : dot < 0;
+    }
+
+    /**
+     * Round the distance or angle of a step to an integer, carrying the
+     * remainder to the next step as the Roomba does.
+     */
+    private int roundWithResidual(double value, boolean isDistance) {
+        double total = value + (isDistance ? distanceResidual : angleResidual);
+        int rounded = (int) Math.round(total);
+        if (isDistance) {
+            distanceResidual = total - rounded;
+        } else {
+            angleResidual = total - rounded;
+        }
+        return rounded;
+    }
+
+    /**
+     * Compute the bumper, wheel drop and cliff sensors from the pose.
+     */
+    private void sense() {
+        int oldBumps = bumps;
+        bumps = 0;
+        if (table.findObstacle(x, y, ROBOT_RADIUS + 1, nearest)) {
+            double bearing = normalise(Math.atan2(nearest[1] - y, nearest[0] - x) - heading);
+            if (Math.abs(bearing) < Math.PI / 2) {
+                if (bearing > -Math.toRadians(10)) {
+                    bumps |= BUMP_LEFT;
+                }
+                if (bearing < Math.toRadians(10)) {
+                    bumps |= BUMP_RIGHT;
+                }
+            }
+        }
+        if ((bumps & ~oldBumps) != 0) {
+            bumpCount++;
+        }
+        double c = Math.cos(heading);
+        double s = Math.sin(heading);
+        double half = WHEEL_BASE / 2;
+        wheelDrops = 0;
+        if (!table.isOnTable(x - s * half, y + c * half)) {
+            wheelDrops |= WHEEL_DROP_LEFT;
+        }
+        if (!table.isOnTable(x + s * half, y - c * half)) {
+            wheelDrops |= WHEEL_DROP_RIGHT;
+        }
+        if (wheelDrops != 0 && !fallen) {
+            fallen = true;
+            logger.info("sim-fell x={} y={}", x, y);
+        }
+        for (int i = 0; i < cliffs.length; i++) {
+            double bearing = heading + CLIFF_SENSOR_BEARINGS[i];
+            boolean cliff = !table.isOnTable(x + CLIFF_SENSOR_RADIUS * Math.cos(bearing),
+                    y + CLIFF_SENSOR_RADIUS * Math.sin(bearing));
+            if (cliff && !cliffs[i]) {
+                cliffCount++;
+            }
+            cliffs[i] = cliff;
+        }
+    }
+
+    /**
+     * Fill values with the requested sensor packets.
+     */
+    private void buildFrame(int command) {
+        for (int i = 0; i < sensorPacketsRequested.length; i++) {
+            int v;
+            switch (sensorPacketsRequested[i]) {
+                case BUMPS_AND_WHEEL_DROPS:
+                    v = bumps | wheelDrops;
+                    break;
+                case CLIFF_LEFT:
+                    v = cliffs[0] ? 1 : 0;
+                    break;
+                case CLIFF_FRONT_LEFT:
+                    v = cliffs[1] ? 1 : 0;
+                    break;
+                case CLIFF_FRONT_RIGHT:
+                    v = cliffs[2] ? 1 : 0;
+                    break;
+                case CLIFF_RIGHT:
+                    v = cliffs[3] ? 1 : 0;
+                    break;
+                case CLIFF_LEFT_SIGNAL:
+                    v = cliffs[0] ? CLIFF_SIGNAL_OFF_TABLE : CLIFF_SIGNAL_ON_TABLE;
+                    break;
+                case CLIFF_FRONT_LEFT_SIGNAL:
+                    v = cliffs[1] ? CLIFF_SIGNAL_OFF_TABLE : CLIFF_SIGNAL_ON_TABLE;
+                    break;
+                case CLIFF_FRONT_RIGHT_SIGNAL:
+                    v = cliffs[2] ? CLIFF_SIGNAL_OFF_TABLE : CLIFF_SIGNAL_ON_TABLE;
+                    break;
+                case CLIFF_RIGHT_SIGNAL:
+                    v = cliffs[3] ? CLIFF_SIGNAL_OFF_TABLE : CLIFF_SIGNAL_ON_TABLE;
+                    break;
+                case STASIS:
+                    v = forwardProgress ? 1 : 0;
+                    break;
+                case DISTANCE:
+                    v = stepDistance;
+                    break;
+                case ANGLE:
+                    v = stepAngle;
+                    break;
+                case LEFT_ENCODER_COUNTS:
+                    v = (int) Math.floor(leftCounts) & 0xffff;
+                    break;
+                case RIGHT_ENCODER_COUNTS:
+                    v = (int) Math.floor(rightCounts) & 0xffff;
+                    break;
+                case REQUESTED_VELOCITY:
+                    v = (short) (command >> 16);
+                    break;
+                case REQUESTED_RADIUS:
+                    v = (short) command;
+                    break;
+                case OI_MODE:
+                    v = safeMode ? 2 : 3;
+                    break;
+                default:
+                    v = 0;
+            }
+            values[i] = v;
+        }
+    }
+
+    private static double normalise(double angle) {
+        while (angle > Math.PI) {
+            angle -= 2 * Math.PI;
+        }
+        while (angle <= -Math.PI) {
+            angle += 2 * Math.PI;
+        }
+        return angle;
+    }
+
+    /**
+     * Steps the simulation at the frame period until closed.
+     */
+    private class Simulation implements Runnable {
+
+        @Override
+        public void run() {
+            long next = System.nanoTime();
+            while (running) {
+                step();
+                if (framePeriodNanos > 0) {
+                    next += framePeriodNanos;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    } else if (wait < -100 * framePeriodNanos) {//Too far behind to catch up
+                        next = System.nanoTime();
+                    }
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package roombaif;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers frames of sensor data to any number of subscribers without making
+ * the publishing (serial reader) thread wait for them.
+ *
+ * Every subscriber has its own bounded queue of frames and its own executor.
+ * The publisher copies each frame into the queue of every subscriber and
+ * returns; the frames are passed to the subscriber's listener on its
+ * executor. What happens when a subscriber's queue is full is set by its
+ * OverflowPolicy.
+ *
+ * @author Braden Phillips
+ */
+public class SensorEventBus {
+
+    /**
+     * What to do with a new frame when a subscriber's queue is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Keep only the newest undelivered frame. The queue capacity is
+         * always 1.
+         */
+        LATEST_WINS,
+        /**
+         * Discard the oldest undelivered frame to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Make the publisher wait for room. This stalls the publishing thread,
+         * so it should only be used where the publisher can be throttled (e.g.
+         * simulation or replay), never with a live serial port.
+         */
+        BLOCK
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+    /* Instance variables */
+    private final int frameWidth;
+    private final CopyOnWriteArrayList<SensorSubscription> subscriptions;
+
+    /**
+     * Constructor
+     *
+     * @param frameWidth the number of sensor values in each frame
+     */
+    public SensorEventBus(int frameWidth) {
+        this.frameWidth = frameWidth;
+        subscriptions = new CopyOnWriteArrayList<SensorSubscription>();
+    }
+
+    /**
+     * Subscribe a listener with its own delivery thread.
+     *
+     * @param listener
+     * @param policy what to do when the listener falls behind
+     * @param capacity the maximum number of undelivered frames to queue
+     * @return the subscription, used to monitor lag and drops and to
+     * unsubscribe
+     */
+    public SensorSubscription subscribe(SensorFrameListener listener,
+            OverflowPolicy policy, int capacity) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "sensor-subscriber-"
+                                + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        return subscribe(listener, policy, capacity, executor, executor);
+    }
+
+    /**
+     * Subscribe a listener that is run on the given executor. Frames are
+     * delivered to the listener one at a time, in order, even if the executor
+     * has many threads.
+     *
+     * @param listener
+     * @param policy what to do when the listener falls behind
+     * @param capacity the maximum number of undelivered frames to queue
+     * @param executor runs the listener
+     * @return the subscription, used to monitor lag and drops and to
+     * unsubscribe
+     */
+    public SensorSubscription subscribe(SensorFrameListener listener,
+            OverflowPolicy policy, int capacity, Executor executor) {
+        return subscribe(listener, policy, capacity, executor, null);
+    }
+
+    private SensorSubscription subscribe(SensorFrameListener listener,
+            OverflowPolicy policy, int capacity, Executor executor,
+            ExecutorService ownedExecutor) {
+        SensorSubscription subscription = new SensorSubscription(this,
+                listener, policy, capacity, frameWidth, executor, ownedExecutor);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Get the number of current subscribers.
+     *
+     * @return the number of subscriptions
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Queue a frame for every subscriber. Never waits on a subscriber unless
+     * it uses OverflowPolicy.BLOCK.
+     *
+     * @param sequence the frame sequence number
+     * @param values the sensor data, copied before this returns
+     */
+    public void publish(long sequence, int[] values) {
+        for (SensorSubscription s : subscriptions) {
+            s.offer(sequence, values);
+        }
+    }
+
+    /**
+     * Remove every subscriber and stop the delivery threads the bus created.
+     */
+    public void shutdown() {
+        for (SensorSubscription s : subscriptions) {
+            s.unsubscribe();
+        }
+    }
+
+    void remove(SensorSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+}
@@ -0,0 +1,238 @@
+package roombaif;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A filter applied to one sensor packet's values, frame by frame, before
+ * they are published.
+ *
+ * Filters are made from a specification: a list of stages applied in turn,
+ * <pre>
+ *   ema ALPHA              exponential moving average, 0 &lt; ALPHA &lt;= 1
+ *   median N               median of the last N values (the lower middle
+ *                          value of an even number)
+ *   hysteresis LOW HIGH    1 once the value rises to HIGH, 0 once it falls to LOW
+ *   hysteresis-low LOW HIGH   1 once the value falls to LOW, 0 once it rises to HIGH
+ *   debounce N             a change only passes once it has lasted N frames
+ * </pre>
+ * e.g. "hysteresis-low 600 1200" turns a cliff signal into a cliff flag that
+ * does not chatter at the edge, and "median 3" removes single frame spikes
+ * from a value at the cost of a frame's delay.
+ *
+ * Each stage keeps its state in primitive fields and arrays allocated when it
+ * is made, so filtering a value does not allocate. A filter is stateful: make
+ * one for each sensor stream.
+ *
+ * Beware: this class is not thread safe. A RoombaIF calls filter from the
+ * thread publishing its frames.
+ *
+ * @author Braden Phillips
+ */
+public abstract class SensorFilter {
+
+    /**
+     * Filter the next value of the stream.
+     *
+     * @param value the raw value
+     * @return the filtered value
+     */
+    public abstract int filter(int value);
+
+    /**
+     * Make a filter from a specification.
+     *
+     * @param spec the stages, separated by white space
+     * @return the filter
+     * @throws IllegalArgumentException if the specification is malformed
+     */
+    public static SensorFilter parse(String spec) {
+        String[] tokens = spec.trim().split("\\s+");
+        List<SensorFilter> stages = new ArrayList<SensorFilter>();
+        int t = 0;
+        try {
+            while (t < tokens.length) {
+                String name = tokens[t++];
+                if (name.equals("ema")) {
+                    stages.add(new Ema(Double.parseDouble(tokens[t++])));
+                } else if (name.equals("median")) {
+                    stages.add(new Median(Integer.parseInt(tokens[t++])));
+                } else if (name.equals("hysteresis") || name.equals("hysteresis-low")) {
+                    int low = Integer.decode(tokens[t++]);
+                    int high = Integer.decode(tokens[t++]);
+                    stages.add(new Hysteresis(low, high, name.equals("hysteresis-low")));
+                } else if (name.equals("debounce")) {
+                    stages.add(new Debounce(Integer.parseInt(tokens[t++])));
+                } else {
+                    throw new IllegalArgumentException("unknown filter " + name);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("missing parameter in " + spec);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("bad number in " + spec);
+        }
+        if (stages.isEmpty()) {
+            throw new IllegalArgumentException("no filter stages in " + spec);
+        }
+        return (stages.size() == 1) ? stages.get(0)
+                : new Chain(stages.toArray(new SensorFilter[stages.size()]));
+    }
+
+    /**
+     * Applies stages in turn.
+     */
+    private static class Chain extends SensorFilter {
+
+        private final SensorFilter[] stages;
+
+        Chain(SensorFilter[] stages) {
+            this.stages = stages;
+        }
+
+        @Override
+        public int filter(int value) {
+            for (SensorFilter s : stages) {
+                value = s.filter(value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Exponential moving average, seeded with the first value.
+     */
+    private static class Ema extends SensorFilter {
+
+        private final double alpha;
+        private double average;
+        private boolean primed = false;
+
+        Ema(double alpha) {
+            if (!(alpha > 0 && alpha <= 1)) {
+                throw new IllegalArgumentException("ema alpha must be in (0, 1]");
+            }
+            this.alpha = alpha;
+        }
+
+        @Override
+        public int filter(int value) {
+            average = primed ? average + alpha * (value - average) : value;
+            primed = true;
+            return (int) Math.round(average);
+        }
+    }
+
+    /**
+     * Median of the last n values, or of those seen so far. Of an even
+     * number, the lower middle value, so that a window partly filled by a
+     * falling value does not hold back the fall.
+     */
+    private static class Median extends SensorFilter {
+
+        private final int[] ring;
+        private final int[] sorted;
+        private int next = 0;
+        private int count = 0;
+
+        Median(int n) {
+            if (n < 1) {
+                throw new IllegalArgumentException("median needs at least 1 value");
+            }
+            ring = new int[n];
+            sorted = new int[n];
+        }
+
+        @Override
+        public int filter(int value) {
+            ring[next] = value;
+            next = (next + 1 == ring.length) ? 0 : next + 1;
+            if (count < ring.length) {
+                count++;
+            }
+            // Insertion sort: n is small and the window is nearly sorted
+            for (int i = 0; i < count; i++) {
+                int v = ring[i];
+                int j = i - 1;
+                while (j >= 0 && sorted[j] > v) {
+                    sorted[j + 1] = sorted[j];
+                    j--;
+                }
+                sorted[j + 1] = v;
+            }
+            return sorted[(count - 1) >> 1];
+        }
+    }
+
+    /**
+     * Schmitt trigger: a flag that only changes once the value crosses the
+     * far threshold.
+     */
+    private static class Hysteresis extends SensorFilter {
+
+        private final int low;
+        private final int high;
+        private final boolean activeLow;
+        private boolean on = false;
+        private boolean primed = false;
+
+        Hysteresis(int low, int high, boolean activeLow) {
+            if (low > high) {
+                throw new IllegalArgumentException("hysteresis LOW must not exceed HIGH");
+            }
+            this.low = low;
+            this.high = high;
+            this.activeLow = activeLow;
+        }
+
+        @Override
+        public int filter(int value) {
+            if (!primed) {//Start in the state nearest the first value
+                on = activeLow ? value <= (low + high) / 2 : value >= (low + high) / 2;
+                primed = true;
+            } else if (activeLow) {
+                on = on ? value < high : value <= low;
+            } else {
+                on = on ? value > low : value >= high;
+            }
+            return on ? 1 : 0;
+        }
+    }
+
+    /**
+     * Passes a new value only once it has been seen in n consecutive frames.
+     */
+    private static class Debounce extends SensorFilter {
+
+        private final int n;
+        private int output;
+        private int candidate;
+        private int run = 0;
+        private boolean primed = false;
+
+        Debounce(int n) {
+            if (n < 1) {
+                throw new IllegalArgumentException("debounce needs at least 1 frame");
+            }
+            this.n = n;
+        }
+
+        @Override
+        public int filter(int value) {
+            if (!primed) {
+                output = value;
+                primed = true;
+            } else if (value == output) {
+                run = 0;
+            } else {
+                run = (value == candidate) ? run + 1 : 1;
+                candidate = value;
+                if (run >= n) {
+                    output = value;
+                    run = 0;
+                }
+            }
+            return output;
+        }
+    }
+}
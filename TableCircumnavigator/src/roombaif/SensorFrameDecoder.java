@@ -0,0 +1,178 @@
+package roombaif;
+
+/**
+ * Decodes a Roomba sensor data stream into frames of sensor values.
+ *
+ * Raw bytes are buffered in a fixed size ring rather than a list of boxed
+ * Bytes, so decoding a frame does not allocate. The decoder hunts for the
+ * sensor stream header, waits until a whole frame is buffered, and then
+ * checks the n-bytes field, the packet IDs and the checksum. If any check
+ * fails the header byte is discarded and the hunt resumes from the next byte.
+ *
+ * The layout of a frame is described by a SensorFrameLayout.
+ *
+ * The decoder counts the bytes fed to it, the frames decoded, the bytes
+ * discarded while hunting for a header, and the candidate frames that failed
+ * their checks. The counts may be read from any thread.
+ *
+ * Beware: this class is not thread safe. It is intended to be fed from a
+ * single serial reader thread.
+ *
+ * @author Braden Phillips
+ */
+public class SensorFrameDecoder {
+
+    /**
+     * The frameDecoded method is called for every valid frame found in the
+     * stream.
+     */
+    public interface FrameHandler {
+
+        /**
+         * @param values the decoded sensor values, in the same order as the
+         * sensor packets requested. The array is reused for the next frame so
+         * it must be copied if it is to be kept.
+         */
+        public void frameDecoded(int[] values);
+    }
+
+    /* Instance variables */
+    private final SensorFrameLayout layout;
+    private final int frameLength;
+    private final byte[] ring;
+    private final int mask;
+    private final int[] values;
+    private final FrameHandler handler;
+    private int head = 0;   // ring index of the oldest buffered byte
+    private int count = 0;  // number of bytes buffered
+    private volatile long byteCount = 0;
+    private volatile long frameCount = 0;
+    private volatile long resyncByteCount = 0;
+    private volatile long invalidFrameCount = 0;
+
+    /**
+     * Constructor
+     *
+     * @param layout the layout of each frame
+     * @param handler called for every valid frame decoded
+     */
+    public SensorFrameDecoder(SensorFrameLayout layout, FrameHandler handler) {
+        this.layout = layout;
+        this.handler = handler;
+        frameLength = layout.getFrameLength();
+        // The ring never holds more than one partial frame after draining, so
+        // twice the frame length (rounded up to a power of two) is plenty.
+        int capacity = Integer.highestOneBit(2 * frameLength - 1) << 1;
+        ring = new byte[capacity];
+        mask = capacity - 1;
+        values = new int[layout.getPacketCount()];
+    }
+
+    /**
+     * Get the length of a complete frame in bytes, including the header,
+     * n-bytes, packet IDs and checksum.
+     *
+     * @return the frame length
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Get the number of bytes currently buffered awaiting a complete frame.
+     *
+     * @return the number of buffered bytes
+     */
+    public int getBufferedCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes fed to the decoder
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return the number of valid frames decoded
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the number of bytes discarded while hunting for a frame header,
+     * including those of invalid frames
+     */
+    public long getResyncByteCount() {
+        return resyncByteCount;
+    }
+
+    /**
+     * @return the number of candidate frames that failed the n-bytes, packet
+     * ID or checksum checks
+     */
+    public long getInvalidFrameCount() {
+        return invalidFrameCount;
+    }
+
+    /**
+     * Discard any buffered bytes.
+     */
+    public void reset() {
+        head = 0;
+        count = 0;
+    }
+
+    /**
+     * Feed raw bytes from the serial port to the decoder. The handler is
+     * called once for every valid frame completed by these bytes.
+     *
+     * @param data
+     * @param offset index of the first byte in data to decode
+     * @param length number of bytes to decode
+     */
+    public void decode(byte[] data, int offset, int length) {
+        byteCount += length;
+        while (length > 0) {
+            int n = Math.min(length, ring.length - count);
+            int tail = (head + count) & mask;
+            int firstPart = Math.min(n, ring.length - tail);
+            System.arraycopy(data, offset, ring, tail, firstPart);
+            System.arraycopy(data, offset + firstPart, ring, 0, n - firstPart);
+            count += n;
+            offset += n;
+            length -= n;
+            drain();
+        }
+    }
+
+    /**
+     * Consume as many frames from the ring as possible. On return either the
+     * ring is empty or it holds a header followed by a partial frame.
+     */
+    private void drain() {
+        while (count > 0) {
+            if (ring[head] != SensorFrameLayout.SENSOR_STREAM_HEADER) {//Hunting: dump anything ahead of a possible header
+                discard(1);
+                resyncByteCount++;
+            } else if (count < frameLength) {//Wait for the rest of the frame
+                return;
+            } else if (layout.decode(ring, head, mask, values)) {//A valid frame at the start of the ring
+                discard(frameLength);
+                frameCount++;
+                handler.frameDecoded(values);
+            } else {//It was not a header after all
+                discard(1);
+                resyncByteCount++;
+                invalidFrameCount++;
+            }
+        }
+    }
+
+    private void discard(int n) {
+        head = (head + n) & mask;
+        count -= n;
+    }
+}
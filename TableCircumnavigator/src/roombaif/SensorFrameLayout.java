@@ -0,0 +1,133 @@
+package roombaif;
+
+/**
+ * The fixed byte layout of a sensor stream frame for a list of requested
+ * sensor packets.
+ *
+ * The offsets, widths, signedness and expected IDs of every packet are
+ * computed once so that a frame can be validated and decoded in a single
+ * pass over flat arrays, without consulting the SensorPacket of each field.
+ * Every field is decoded as a two byte value: a one byte field reads its only
+ * byte twice and masks out the high half. Sign extension is done with the
+ * (value ^ signBit) - signBit identity, where signBit is zero for unsigned
+ * fields.
+ *
+ * Instances are immutable and may be shared between threads.
+ *
+ * @author Braden Phillips
+ */
+public final class SensorFrameLayout {
+
+    /* Sensor stream header */
+    public static final byte SENSOR_STREAM_HEADER = (byte) 19;
+
+    /* Instance variables */
+    private final SensorPacket[] sensorPackets;
+    private final int frameLength;
+    private final byte nBytes;
+    private final int[] idOffsets;
+    private final byte[] ids;
+    private final int[] highOffsets;
+    private final int[] lowOffsets;
+    private final int[] highMasks;
+    private final int[] signBits;
+
+    /**
+     * Constructor
+     *
+     * @param sensorPackets the sensor packets in each frame, in stream order
+     */
+    public SensorFrameLayout(SensorPacket[] sensorPackets) {
+        this.sensorPackets = java.util.Arrays.copyOf(sensorPackets,
+                sensorPackets.length);
+        int n = sensorPackets.length;
+        idOffsets = new int[n];
+        ids = new byte[n];
+        highOffsets = new int[n];
+        lowOffsets = new int[n];
+        highMasks = new int[n];
+        signBits = new int[n];
+        int i = 2; // index of packet ID 1
+        for (int p = 0; p < n; p++) {
+            SensorPacket s = sensorPackets[p];
+            idOffsets[p] = i;
+            ids[p] = s.id();
+            highOffsets[p] = i + 1;
+            lowOffsets[p] = i + s.length();
+            highMasks[p] = (s.length() > 1) ? 0xff00 : 0;
+            signBits[p] = s.signed() ? 1 << (8 * s.length() - 1) : 0;
+            i += s.length() + 1;
+        }
+        frameLength = i + 1; // the checksum
+        nBytes = (byte) (frameLength - 3);
+    }
+
+    /**
+     * Get the sensor packets in each frame.
+     *
+     * @return SensorPacket[]
+     */
+    public SensorPacket[] getSensorPackets() {
+        return java.util.Arrays.copyOf(sensorPackets, sensorPackets.length);
+    }
+
+    /**
+     * Get the number of sensor packets in each frame.
+     *
+     * @return the number of sensor values decoded from each frame
+     */
+    public int getPacketCount() {
+        return ids.length;
+    }
+
+    /**
+     * Get the length of a complete frame in bytes, including the header,
+     * n-bytes, packet IDs and checksum.
+     *
+     * @return the frame length
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Validate a frame and decode its sensor values.
+     *
+     * The frame is read from buffer[(start + i) & mask] for i from 0 to
+     * getFrameLength() - 1, so a ring buffer with a power of two length can
+     * be passed directly. For a linear buffer pass a mask of -1.
+     *
+     * values is written even if the frame turns out to be invalid.
+     *
+     * @param buffer
+     * @param start index of the frame header in buffer
+     * @param mask index mask
+     * @param values receives the decoded sensor values, in packet order
+     * @return true if the frame has the expected header, n-bytes, packet IDs
+     * and checksum
+     */
+    public boolean decode(byte[] buffer, int start, int mask, int[] values) {
+        if (buffer[start & mask] != SENSOR_STREAM_HEADER
+                || buffer[(start + 1) & mask] != nBytes) {
+            return false;
+        }
+        int badIds = 0;
+        for (int p = 0; p < ids.length; p++) {
+            badIds |= buffer[(start + idOffsets[p]) & mask] ^ ids[p];
+            int raw = (((buffer[(start + highOffsets[p]) & mask] & 0xff) << 8) & highMasks[p])
+                    | (buffer[(start + lowOffsets[p]) & mask] & 0xff);
+            values[p] = (raw ^ signBits[p]) - signBits[p];
+        }
+        if (badIds != 0) {
+            return false;
+        }
+        /* Desipte what it says in the Roomba documentation, the checksum calculated
+         * by the Roomba actually includes the header byte (0x13).
+         */
+        int checksum = 0;
+        for (int j = 0; j < frameLength; j++) {
+            checksum += buffer[(start + j) & mask] & 0xff;
+        }
+        return (checksum & 0xff) == 0;
+    }
+}
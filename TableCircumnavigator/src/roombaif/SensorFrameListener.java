@@ -0,0 +1,17 @@
+package roombaif;
+
+/**
+ * The sensorFrameReceived method is called with each good frame of sensor
+ * data delivered to a subscriber of a SensorEventBus.
+ *
+ */
+public interface SensorFrameListener {
+
+    /**
+     * @param sequence the frame sequence number
+     * @param values the sensor data in the same order as the sensor packets
+     * requested. The array is reused for the next frame so it must be copied
+     * if it is to be kept.
+     */
+    public void sensorFrameReceived(long sequence, int[] values);
+}
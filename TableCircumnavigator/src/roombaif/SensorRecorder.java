@@ -0,0 +1,478 @@
+package roombaif;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the frames of sensor data published by a RoombaIF, and the drive
+ * and motors commands sent to it, to an append-only binary log.
+ *
+ * The log is a series of segment files, prefix-000000.rlog, prefix-000001.rlog
+ * and so on, each started when the last reaches the segment size. Every
+ * segment begins with a header:
+ * <pre>
+ *   int   MAGIC
+ *   short VERSION
+ *   short number of sensor packets, n
+ *   byte  packet ID, n times, in stream order
+ *   long  wall clock time the recording started, in ms
+ * </pre>
+ * followed by records, each a type byte and a timestamp in ns since the
+ * recording started:
+ * <pre>
+ *   FRAME  long time, long sequence, each value in its packet's width
+ *   DRIVE  long time, short velocity, short radius
+ *   MOTORS long time, byte motors data byte
+ * </pre>
+ * All numbers are big-endian. A segment may end with a partial record if the
+ * recorder was not closed.
+ *
+ * The RoombaIF hands each record to the recorder on the thread that decodes
+ * the frame or sends the command. The record is copied into a preallocated
+ * ring of slots, without allocating or taking a lock, and written to the file
+ * by the recorder's own thread. If the ring is full the record is dropped and
+ * counted rather than making the caller wait.
+ *
+ * @author Braden Phillips
+ */
+public class SensorRecorder {
+
+    private static final Logger logger = LoggerFactory.getLogger(SensorRecorder.class);
+
+    /* Log format */
+    public static final int MAGIC = 0x524c4f47; // "RLOG"
+    public static final short VERSION = 1;
+    public static final String SUFFIX = ".rlog";
+    public static final byte FRAME = 1;
+    public static final byte DRIVE = 2;
+    public static final byte MOTORS = 3;
+
+    /* Defaults */
+    public static final int DEFAULT_CAPACITY = 4096;            // records
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    private static final int WRITE_BUFFER_BYTES = 64 << 10;
+    private static final long IDLE_PARK_NANOS = 1000000L;
+    /* Set in the tail once closing, so that no more slots can be claimed */
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    /* Instance variables */
+    private final File directory;
+    private final String prefix;
+    private final SensorPacket[] sensorPackets;
+    private final long segmentBytes;
+    private final int frameBytes;
+    // The ring: a slot is free for position p when slotSequences[p & mask]
+    // is p, and holds the record at p when it is p + 1
+    private final int mask;
+    private final int width;
+    private final AtomicLongArray slotSequences;
+    private final byte[] types;
+    private final long[] times;
+    private final long[] sequences;
+    private final int[] values;
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head = 0;
+    private volatile long end = -1;     // the tail when closed
+    // Writer state, only touched by the writer thread once started
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+    private FileChannel channel;
+    private long segmentPosition;
+    private long startMillis;
+    private volatile long startNanos;
+    private volatile boolean running = false;
+    private volatile boolean failed = false;
+    private Thread writerThread;
+    // Statistics
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private volatile long recordCount = 0;
+    private volatile long byteCount = 0;
+    private volatile int segmentCount = 0;
+
+    /**
+     * Constructor
+     *
+     * @param directory the directory for the segment files
+     * @param prefix the name of the segment files, before the segment number
+     * @param sensorPackets the sensor packets in each frame, as requested by
+     * the RoombaIF to be recorded
+     * @param capacity the number of records the ring holds, rounded up to a
+     * power of two
+     * @param segmentBytes the size at which a new segment is started
+     */
+    public SensorRecorder(File directory, String prefix,
+            SensorPacket[] sensorPackets, int capacity, long segmentBytes) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.sensorPackets = Arrays.copyOf(sensorPackets, sensorPackets.length);
+        this.segmentBytes = segmentBytes;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        width = Math.max(sensorPackets.length, 1);
+        slotSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slotSequences.set(i, i);
+        }
+        types = new byte[size];
+        times = new long[size];
+        sequences = new long[size];
+        values = new int[size * width];
+        int n = 1 + 8 + 8;
+        for (SensorPacket s : sensorPackets) {
+            n += s.length();
+        }
+        frameBytes = n;
+    }
+
+    /**
+     * Constructor with the default capacity and segment size.
+     *
+     * @param directory
+     * @param prefix
+     * @param sensorPackets
+     */
+    public SensorRecorder(File directory, String prefix, SensorPacket[] sensorPackets) {
+        this(directory, prefix, sensorPackets, DEFAULT_CAPACITY, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Open the first segment and start the writer thread.
+     *
+     * @throws IOException if the segment cannot be created
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        openSegment();
+        tail.set(tail.get() & ~CLOSED);
+        end = -1;
+        failed = false;
+        running = true;
+        writerThread = new Thread(new Writer(), "Sensor recorder");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        logger.info("recorder-started directory={} prefix={} packets={}",
+                new Object[]{directory, prefix, sensorPackets.length});
+    }
+
+    /**
+     * Write the records in the ring, close the segment and stop the writer
+     * thread.
+     *
+     * The tail is closed first, so every record claimed before then is
+     * written, and a record that loses the race with close is counted as
+     * dropped.
+     */
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        long t;
+        do {
+            t = tail.get();
+        } while (!tail.compareAndSet(t, t | CLOSED));
+        end = t;
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        if (failed) {//The writer gave up: count what it never wrote
+            droppedCount.addAndGet(t - head);
+            head = t;
+            closeChannelQuietly();
+        }
+        logger.info("recorder-closed records={} bytes={} segments={} dropped={}",
+                new Object[]{recordCount, byteCount, segmentCount, droppedCount.get()});
+    }
+
+    /**
+     * Get the sensor packets in each frame recorded.
+     *
+     * @return SensorPacket[]
+     */
+    public SensorPacket[] getSensorPackets() {
+        return Arrays.copyOf(sensorPackets, sensorPackets.length);
+    }
+
+    /**
+     * @return the number of records written
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the number of records dropped because the ring was full, the
+     * recorder was closing or writing failed
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of bytes written, including segment headers
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return the number of segments started
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Get the segment files of a recording, in order.
+     *
+     * @param directory
+     * @param prefix
+     * @return the segments, empty if there are none
+     */
+    public static File[] listSegments(File directory, final String prefix) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix + "-") && name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Record a frame of sensor data. Called by RoombaIF when it publishes the
+     * frame.
+     *
+     * @param sequence of the frame
+     * @param nanos the nanoTime the frame arrived
+     * @param frame the sensor values, in packet order
+     * @return false if the ring was full and the frame was dropped
+     */
+    boolean recordFrame(long sequence, long nanos, int[] frame) {
+        long position = claim();
+        if (position < 0) {
+            return false;
+        }
+        int slot = (int) position & mask;
+        types[slot] = FRAME;
+        times[slot] = nanos;
+        sequences[slot] = sequence;
+        System.arraycopy(frame, 0, values, slot * width, sensorPackets.length);
+        slotSequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Record a drive command. Called by RoombaIF when it is sent.
+     *
+     * @param nanos the nanoTime the command was sent
+     * @param velocity in mm/s
+     * @param radius in mm
+     * @return false if the ring was full and the command was dropped
+     */
+    boolean recordDrive(long nanos, short velocity, short radius) {
+        return recordCommand(DRIVE, nanos, ((velocity & 0xffff) << 16) | (radius & 0xffff));
+    }
+
+    /**
+     * Record a motors command. Called by RoombaIF when it is sent.
+     *
+     * @param nanos the nanoTime the command was sent
+     * @param motors the Open Interface motors data byte
+     * @return false if the ring was full and the command was dropped
+     */
+    boolean recordMotors(long nanos, int motors) {
+        return recordCommand(MOTORS, nanos, motors & 0xff);
+    }
+
+    /* Private helper functions */
+    private boolean recordCommand(byte type, long nanos, int data) {
+        long position = claim();
+        if (position < 0) {
+            return false;
+        }
+        int slot = (int) position & mask;
+        types[slot] = type;
+        times[slot] = nanos;
+        sequences[slot] = data;
+        slotSequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Claim the next free slot of the ring. Frames and commands arrive on
+     * different threads, so the tail is claimed with a compare and set.
+     *
+     * @return the position claimed, or -1 if the ring is full
+     */
+    private long claim() {
+        if (!running) {
+            return -1;
+        }
+        while (true) {
+            long position = tail.get();
+            if (position < 0 || failed) {//Closing or failed
+                droppedCount.incrementAndGet();
+                return -1;
+            }
+            long available = slotSequences.get((int) position & mask);
+            if (available < position) {
+                droppedCount.incrementAndGet();
+                return -1;
+            }
+            if (available == position && tail.compareAndSet(position, position + 1)) {
+                return position;
+            }
+        }
+    }
+
+    private void openSegment() throws IOException {
+        File file = new File(directory, String.format("%s-%06d%s", prefix, segmentCount, SUFFIX));
+        channel = new FileOutputStream(file).getChannel();
+        segmentCount++;
+        segmentPosition = 0;
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) sensorPackets.length);
+        for (SensorPacket s : sensorPackets) {
+            buffer.put(s.id());
+        }
+        buffer.putLong(startMillis);
+        logger.debug("recorder-segment-opened file={}", file);
+    }
+
+    private void closeChannelQuietly() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.warn("recorder-close-failed directory={} prefix={}",
+                        directory, prefix);
+            }
+            channel = null;
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        flush();
+        channel.force(false);
+        channel.close();
+        channel = null;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            int n = channel.write(buffer);
+            segmentPosition += n;
+            byteCount += n;
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write the record in slot to the buffer, rotating the segment first if
+     * the record would take it past the segment size.
+     */
+    private void write(int slot) throws IOException {
+        byte type = types[slot];
+        int length = (type == FRAME) ? frameBytes : (type == DRIVE) ? 13 : 10;
+        if (segmentPosition + buffer.position() + length > segmentBytes
+                && segmentPosition + buffer.position() > 0) {
+            closeSegment();
+            openSegment();
+        }
+        if (buffer.remaining() < length) {
+            flush();
+        }
+        buffer.put(type);
+        buffer.putLong(times[slot] - startNanos);
+        switch (type) {
+            case FRAME:
+                buffer.putLong(sequences[slot]);
+                int base = slot * width;
+                for (int p = 0; p < sensorPackets.length; p++) {
+                    if (sensorPackets[p].length() > 1) {
+                        buffer.putShort((short) values[base + p]);
+                    } else {
+                        buffer.put((byte) values[base + p]);
+                    }
+                }
+                break;
+            case DRIVE:
+                buffer.putInt((int) sequences[slot]);
+                break;
+            default:
+                buffer.put((byte) sequences[slot]);
+        }
+    }
+
+    /**
+     * Drains the ring into the current segment. The buffer is flushed to the
+     * file whenever the ring is empty, so a crash loses little.
+     */
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    boolean stopping = !running;
+                    int written = drain();
+                    if (written == 0) {
+                        if (buffer.position() > 0) {
+                            flush();
+                        }
+                        if (stopping && head == end) {//Every record claimed is written
+                            break;
+                        }
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                }
+                closeSegment();
+            } catch (IOException ex) {
+                failed = true;
+                logger.error("recorder-write-failed directory={} prefix={}",
+                        new Object[]{directory, prefix, ex});
+            }
+        }
+
+        private int drain() throws IOException {
+            int written = 0;
+            while (slotSequences.get((int) head & mask) == head + 1) {
+                int slot = (int) head & mask;
+                write(slot);
+                slotSequences.lazySet(slot, head + mask + 1);
+                head++;
+                written++;
+            }
+            recordCount += written;
+            return written;
+        }
+    }
+}
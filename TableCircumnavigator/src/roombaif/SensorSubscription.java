@@ -0,0 +1,213 @@
+package roombaif;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A subscriber to a SensorEventBus: a listener, its bounded queue of frames
+ * and the executor that delivers them.
+ *
+ * The queue is a ring of preallocated frame slots, so queueing and
+ * delivering a frame does not allocate.
+ *
+ * @author Braden Phillips
+ */
+public class SensorSubscription {
+
+    private static final Logger logger = LoggerFactory.getLogger(SensorSubscription.class);
+
+    /* Instance variables */
+    private final SensorEventBus bus;
+    private final SensorFrameListener listener;
+    private final SensorEventBus.OverflowPolicy policy;
+    private final int frameWidth;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final int[] slots;          // capacity frames of frameWidth values
+    private final long[] sequences;
+    private final int[] delivery;       // only touched by the delivery task
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Runnable deliveryTask = new DeliveryTask();
+    private int head = 0;
+    private int count = 0;
+    private boolean deliveryScheduled = false;
+    private boolean subscribed = true;
+    private volatile long lastPublished = 0;
+    private volatile long lastDelivered = 0;
+    private volatile long deliveredCount = 0;
+    private volatile long droppedCount = 0;
+
+    SensorSubscription(SensorEventBus bus, SensorFrameListener listener,
+            SensorEventBus.OverflowPolicy policy, int capacity, int frameWidth,
+            Executor executor, ExecutorService ownedExecutor) {
+        if (policy == SensorEventBus.OverflowPolicy.LATEST_WINS || capacity < 1) {
+            capacity = 1;
+        }
+        this.bus = bus;
+        this.listener = listener;
+        this.policy = policy;
+        this.frameWidth = frameWidth;
+        this.executor = executor;
+        this.ownedExecutor = ownedExecutor;
+        slots = new int[capacity * frameWidth];
+        sequences = new long[capacity];
+        delivery = new int[frameWidth];
+    }
+
+    /**
+     * Get the overflow policy of this subscription.
+     *
+     * @return the policy
+     */
+    public SensorEventBus.OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Get how far behind the publisher this subscriber is.
+     *
+     * @return the sequence number of the latest frame published minus that of
+     * the latest frame delivered
+     */
+    public long getLag() {
+        return lastPublished - lastDelivered;
+    }
+
+    /**
+     * Get the number of frames discarded because the queue was full.
+     *
+     * @return the drop count
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Get the number of frames delivered to the listener.
+     *
+     * @return the delivered count
+     */
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * Get the number of frames queued awaiting delivery.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop delivering frames to the listener. Frames already queued are
+     * discarded.
+     */
+    public void unsubscribe() {
+        bus.remove(this);
+        lock.lock();
+        try {
+            subscribed = false;
+            count = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    void offer(long sequence, int[] values) {
+        boolean schedule;
+        lock.lock();
+        try {
+            if (!subscribed) {
+                return;
+            }
+            int capacity = sequences.length;
+            if (count == capacity) {
+                if (policy == SensorEventBus.OverflowPolicy.BLOCK) {
+                    while (count == capacity && subscribed) {
+                        notFull.awaitUninterruptibly();
+                    }
+                    if (!subscribed) {
+                        return;
+                    }
+                } else {//LATEST_WINS and DROP_OLDEST both discard the oldest
+                    head = (head + 1) % capacity;
+                    count--;
+                    droppedCount++;
+                }
+            }
+            int slot = (head + count) % capacity;
+            System.arraycopy(values, 0, slots, slot * frameWidth, frameWidth);
+            sequences[slot] = sequence;
+            count++;
+            lastPublished = sequence;
+            schedule = !deliveryScheduled;
+            deliveryScheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        if (schedule) {
+            try {
+                executor.execute(deliveryTask);
+            } catch (RejectedExecutionException ex) {
+                lock.lock();
+                try {
+                    deliveryScheduled = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deliver queued frames until the queue is empty. Only one DeliveryTask
+     * runs at a time for each subscription.
+     */
+    private class DeliveryTask implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                long sequence;
+                lock.lock();
+                try {
+                    if (count == 0) {
+                        deliveryScheduled = false;
+                        return;
+                    }
+                    System.arraycopy(slots, head * frameWidth, delivery, 0, frameWidth);
+                    sequence = sequences[head];
+                    head = (head + 1) % sequences.length;
+                    count--;
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    listener.sensorFrameReceived(sequence, delivery);
+                } catch (RuntimeException ex) {
+                    logger.error("sensor-listener-failed sequence={}", sequence, ex);
+                }
+                lastDelivered = sequence;
+                deliveredCount++;
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package roombaif;
+
+/**
+ * The byte stream between RoombaSerialIF and a Roomba.
+ *
+ * The usual transport is a JsscSerialTransport on a real serial port (or a
+ * pty). A LoopbackRoomba is an in-process stand-in that speaks the Open
+ * Interface protocol, for testing and benchmarking without a robot.
+ *
+ * @author Braden Phillips
+ */
+public interface SerialTransport {
+
+    /**
+     * The bytesReceived method is called with the bytes received from the
+     * Roomba, on the transport's reading thread.
+     */
+    public interface Receiver {
+
+        /**
+         * @param data may be reused by the transport once this returns
+         * @param offset index of the first byte received
+         * @param length number of bytes received
+         */
+        public void bytesReceived(byte[] data, int offset, int length);
+    }
+
+    /**
+     * Get a name for the transport, e.g. the serial port name.
+     *
+     * @return the name
+     */
+    public String getName();
+
+    /**
+     * Open the transport and start passing received bytes to receiver.
+     *
+     * @param receiver
+     * @throws RoombaIFException
+     */
+    public void open(Receiver receiver) throws RoombaIFException;
+
+    /**
+     * Write all of bytes to the Roomba.
+     *
+     * @param bytes
+     * @throws RoombaIFException
+     */
+    public void write(byte[] bytes) throws RoombaIFException;
+
+    /**
+     * Write part of bytes to the Roomba.
+     *
+     * @param bytes
+     * @param offset index of the first byte to write
+     * @param length number of bytes to write
+     * @throws RoombaIFException
+     */
+    public void write(byte[] bytes, int offset, int length) throws RoombaIFException;
+
+    /**
+     * Stop receiving and close the transport.
+     *
+     * @throws RoombaIFException
+     */
+    public void close() throws RoombaIFException;
+}
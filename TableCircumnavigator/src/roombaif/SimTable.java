@@ -0,0 +1,175 @@
+package roombaif;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A table for the simulated Roomba: a polygonal table top, whose edges are
+ * drop-offs, and optional polygonal obstacles on it that the Roomba bumps
+ * into.
+ *
+ * Coordinates are in mm. Polygons may be given in either winding order.
+ *
+ * @author Braden Phillips
+ */
+public class SimTable {
+
+    /* Instance variables */
+    private final double[] outline;         // x0, y0, x1, y1, ...
+    private final List<double[]> obstacles;
+
+    /**
+     * Constructor
+     *
+     * @param outline the vertices of the table top as x0, y0, x1, y1, ...
+     */
+    public SimTable(double[] outline) {
+        if (outline.length < 6 || outline.length % 2 != 0) {
+            throw new IllegalArgumentException("a table needs at least 3 vertices");
+        }
+        this.outline = java.util.Arrays.copyOf(outline, outline.length);
+        obstacles = new ArrayList<double[]>();
+    }
+
+    /**
+     * Create a rectangular table with one corner at the origin.
+     *
+     * @param width along x in mm
+     * @param depth along y in mm
+     * @return the table
+     */
+    public static SimTable rectangle(double width, double depth) {
+        return new SimTable(new double[]{0, 0, width, 0, width, depth, 0, depth});
+    }
+
+    /**
+     * Parse a polygon written as space separated x,y vertices, e.g.
+     * "0,0 1200,0 1200,800 0,800".
+     *
+     * @param vertices
+     * @return the vertices as x0, y0, x1, y1, ...
+     */
+    public static double[] parsePolygon(String vertices) {
+        String[] points = vertices.trim().split("\\s+");
+        double[] result = new double[2 * points.length];
+        for (int i = 0; i < points.length; i++) {
+            String[] xy = points[i].split(",");
+            if (xy.length != 2) {
+                throw new IllegalArgumentException("bad vertex " + points[i]);
+            }
+            result[2 * i] = Double.parseDouble(xy[0]);
+            result[2 * i + 1] = Double.parseDouble(xy[1]);
+        }
+        return result;
+    }
+
+    /**
+     * Add an obstacle on the table.
+     *
+     * @param polygon the vertices of the obstacle as x0, y0, x1, y1, ...
+     * @return this table
+     */
+    public SimTable addObstacle(double[] polygon) {
+        obstacles.add(java.util.Arrays.copyOf(polygon, polygon.length));
+        return this;
+    }
+
+    /**
+     * Get the vertices of the table top.
+     *
+     * @return x0, y0, x1, y1, ...
+     */
+    public double[] getOutline() {
+        return java.util.Arrays.copyOf(outline, outline.length);
+    }
+
+    /**
+     * Get the length of the table's edge.
+     *
+     * @return the perimeter in mm
+     */
+    public double getPerimeter() {
+        double perimeter = 0;
+        int n = outline.length;
+        for (int i = 0; i < n; i += 2) {
+            double dx = outline[(i + 2) % n] - outline[i];
+            double dy = outline[(i + 3) % n] - outline[i + 1];
+            perimeter += Math.sqrt(dx * dx + dy * dy);
+        }
+        return perimeter;
+    }
+
+    /**
+     * Check whether a point is on the table top.
+     *
+     * @param x
+     * @param y
+     * @return true if (x, y) is inside the table outline
+     */
+    public boolean isOnTable(double x, double y) {
+        return contains(outline, x, y);
+    }
+
+    /**
+     * Find the nearest obstacle point within a given distance of a point.
+     *
+     * @param x
+     * @param y
+     * @param distance
+     * @param nearest receives the x and y of the nearest obstacle point
+     * @return true if an obstacle is within distance of (x, y)
+     */
+    public boolean findObstacle(double x, double y, double distance, double[] nearest) {
+        double best = distance * distance;
+        boolean found = false;
+        for (double[] polygon : obstacles) {
+            if (contains(polygon, x, y)) {
+                nearest[0] = x;
+                nearest[1] = y;
+                return true;
+            }
+            int n = polygon.length;
+            for (int i = 0; i < n; i += 2) {
+                double ax = polygon[i];
+                double ay = polygon[i + 1];
+                double bx = polygon[(i + 2) % n];
+                double by = polygon[(i + 3) % n];
+                double dx = bx - ax;
+                double dy = by - ay;
+                double lengthSquared = dx * dx + dy * dy;
+                double t = (lengthSquared == 0) ? 0
+                        : ((x - ax) * dx + (y - ay) * dy) / lengthSquared;
+                t = Math.max(0, Math.min(1, t));
+                double px = ax + t * dx;
+                double py = ay + t * dy;
+                double d = (px - x) * (px - x) + (py - y) * (py - y);
+                if (d <= best) {
+                    best = d;
+                    nearest[0] = px;
+                    nearest[1] = py;
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Even-odd rule point in polygon test.
+     */
+    private static boolean contains(double[] polygon, double x, double y) {
+        boolean inside = false;
+        int n = polygon.length;
+        for (int i = 0, j = n - 2; i < n; j = i, i += 2) {
+            double xi = polygon[i];
+            double yi = polygon[i + 1];
+            double xj = polygon[j];
+            double yj = polygon[j + 1];
+            if (((yi > y) != (yj > y))
+                    && (x < (xj - xi) * (y - yi) / (yj - yi) + xi)) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
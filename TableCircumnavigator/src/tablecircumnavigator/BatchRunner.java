@@ -0,0 +1,496 @@
+package tablecircumnavigator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.RunType;
+import org.jsoar.kernel.SoarProperties;
+import org.jsoar.kernel.events.AfterHaltEvent;
+import org.jsoar.util.events.SoarEvent;
+import org.jsoar.util.events.SoarEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import roombaif.RoombaIF;
+import roombaif.RoombaReplayIF;
+import roombaif.RoombaSimIF;
+import roombaif.SensorPacket;
+import roombaif.SensorRecorder;
+import roombaif.SimTable;
+
+/**
+ * Evaluates a set of Soar rules against many scenarios at once, headless.
+ *
+ * A scenario is a simulated table, with the Roomba's starting pose, or a
+ * recording to replay. Each is run by its own agent, in lockstep with its
+ * Roomba: one frame of sensor data, then a few decision cycles, and so on.
+ * The agent's random number generator, which breaks ties between indifferent
+ * operators, is seeded from the scenario's name and batch.seed. A scenario is
+ * therefore repeatable and runs as fast as its thread allows, and the
+ * scenarios are spread over the cores by a ForkJoinPool.
+ *
+ * A simulated scenario ends when the Roomba has been once round the centre
+ * of the table, when it falls, when the agent halts or when the time limit
+ * is reached. A replay ends with its recording. For each the results are the
+ * simulated time to complete the circuit, the bumps, cliffs and falls (wheel
+ * drops) seen in the sensor data, and the decision cycles run. They are
+ * written as CSV.
+ *
+ * The scenario file has one scenario per line:
+ * <pre>
+ *   name | x,y x,y ... | x,y,degrees [| obstacle x,y x,y ... ; ...]
+ *   name | replay:directory/prefix
+ * </pre>
+ * giving the table outline in mm, the starting pose and optionally the
+ * obstacles on the table. Blank lines and lines starting with # are ignored.
+ *
+ * System properties:
+ * <ul>
+ * <li>batch.threads - the parallelism of the pool (default: the number of
+ * processors)</li>
+ * <li>batch.decisions.per.frame - decision cycles run for each 15 ms frame
+ * (default 5)</li>
+ * <li>batch.max.seconds - simulated time limit of each scenario (default
+ * 600)</li>
+ * <li>batch.seed - varies the seeds of the agents (default 0)</li>
+ * </ul>
+ *
+ * @author Braden Phillips
+ */
+public class BatchRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchRunner.class);
+
+    /* Bits of the BUMPS_AND_WHEEL_DROPS packet */
+    private static final int BUMPS = 0x3;
+    private static final int WHEEL_DROPS = 0xc;
+
+    private static final SensorPacket[] CLIFF_PACKETS = {
+        SensorPacket.CLIFF_LEFT, SensorPacket.CLIFF_FRONT_LEFT,
+        SensorPacket.CLIFF_FRONT_RIGHT, SensorPacket.CLIFF_RIGHT
+    };
+
+    /* Delivers sensor frames to the input latches on the stepping thread */
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * A simulated table and starting pose, or a recording.
+     */
+    public static class Scenario {
+
+        public final String name;
+        public final SimTable table;
+        public final double x;
+        public final double y;
+        public final double heading;
+        public final String replay;
+
+        /**
+         * Constructor for a simulated scenario.
+         *
+         * @param name
+         * @param table
+         * @param x in mm
+         * @param y in mm
+         * @param heading in radians anticlockwise from the x axis
+         */
+        public Scenario(String name, SimTable table, double x, double y, double heading) {
+            this.name = name;
+            this.table = table;
+            this.x = x;
+            this.y = y;
+            this.heading = heading;
+            this.replay = null;
+        }
+
+        /**
+         * Constructor for a replay.
+         *
+         * @param name
+         * @param replay the recording, as directory/prefix
+         */
+        public Scenario(String name, String replay) {
+            this.name = name;
+            this.table = null;
+            this.x = 0;
+            this.y = 0;
+            this.heading = 0;
+            this.replay = replay;
+        }
+    }
+
+    /**
+     * The outcome of a scenario.
+     */
+    public static class Result {
+
+        public static final String CSV_HEADER = "scenario,completed,circuit_seconds,"
+                + "simulated_seconds,frames,decisions,bumps,cliffs,falls,halted,wall_ms";
+        public final String scenario;
+        public final boolean completed;
+        public final double circuitSeconds;
+        public final double simulatedSeconds;
+        public final long frames;
+        public final long decisions;
+        public final int bumps;
+        public final int cliffs;
+        public final int falls;
+        public final boolean halted;
+        public final long wallMillis;
+
+        Result(String scenario, boolean completed, double circuitSeconds,
+                double simulatedSeconds, long frames, long decisions, int bumps,
+                int cliffs, int falls, boolean halted, long wallMillis) {
+            this.scenario = scenario;
+            this.completed = completed;
+            this.circuitSeconds = circuitSeconds;
+            this.simulatedSeconds = simulatedSeconds;
+            this.frames = frames;
+            this.decisions = decisions;
+            this.bumps = bumps;
+            this.cliffs = cliffs;
+            this.falls = falls;
+            this.halted = halted;
+            this.wallMillis = wallMillis;
+        }
+
+        /**
+         * @return the result as a line of CSV, matching CSV_HEADER
+         */
+        public String toCsv() {
+            return String.format(Locale.ROOT, "%s,%b,%.3f,%.3f,%d,%d,%d,%d,%d,%b,%d",
+                    scenario, completed, circuitSeconds, simulatedSeconds, frames,
+                    decisions, bumps, cliffs, falls, halted, wallMillis);
+        }
+    }
+
+    /* Instance variables */
+    private final String rulesFile;
+    private final String mappingFile;
+    private final int decisionsPerFrame;
+    private final long maxFrames;
+    private final long seed;
+
+    /**
+     * Constructor
+     *
+     * @param rulesFile the Soar rules to evaluate
+     * @param mappingFile from the sensor packets to the input-link, loaded
+     * for each scenario as a mapping keeps the state of its agent's input-link
+     * @param decisionsPerFrame decision cycles run for each frame
+     * @param maxSeconds simulated time limit of each scenario
+     * @param seed varies the seeds of the agents
+     */
+    public BatchRunner(String rulesFile, String mappingFile,
+            int decisionsPerFrame, double maxSeconds, long seed) {
+        this.rulesFile = rulesFile;
+        this.mappingFile = mappingFile;
+        this.decisionsPerFrame = decisionsPerFrame;
+        this.maxFrames = (long) (maxSeconds / RoombaSimIF.STEP_SECONDS);
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("USAGE: BatchRunner rules_file scenario_file [results_csv]");
+            System.out.println();
+            System.out.println("e.g. BatchRunner soar/table-circumnavigator.soar config/table-scenarios.txt");
+            return;
+        }
+        BatchRunner runner = new BatchRunner(args[0], Robot.MAPPING,
+                Integer.getInteger("batch.decisions.per.frame", 5),
+                Double.parseDouble(System.getProperty("batch.max.seconds", "600")),
+                Long.getLong("batch.seed", 0));
+        List<Scenario> scenarios = loadScenarios(args[1]);
+        ForkJoinPool pool = new ForkJoinPool(Integer.getInteger("batch.threads",
+                Runtime.getRuntime().availableProcessors()));
+        List<Result> results;
+        try {
+            results = runner.runAll(scenarios, pool);
+        } finally {
+            pool.shutdown();
+        }
+        PrintWriter out = (args.length > 2)
+                ? new PrintWriter(new FileWriter(args[2])) : new PrintWriter(System.out);
+        try {
+            out.println(Result.CSV_HEADER);
+            for (Result r : results) {
+                out.println(r.toCsv());
+            }
+        } finally {
+            out.flush();
+            if (args.length > 2) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Run the scenarios on a pool, each as an independent agent.
+     *
+     * @param scenarios
+     * @param pool
+     * @return the results, in the order of the scenarios
+     * @throws InterruptedException
+     * @throws ExecutionException if a scenario could not be run
+     */
+    public List<Result> runAll(List<Scenario> scenarios, ForkJoinPool pool)
+            throws InterruptedException, ExecutionException {
+        long start = System.nanoTime();
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+        for (final Scenario s : scenarios) {
+            tasks.add(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    return run(s);
+                }
+            });
+        }
+        List<Result> results = new ArrayList<Result>();
+        int completed = 0;
+        for (Future<Result> f : pool.invokeAll(tasks)) {
+            Result r = f.get();
+            results.add(r);
+            completed += r.completed ? 1 : 0;
+        }
+        long wallMillis = (System.nanoTime() - start) / 1000000L;
+        logger.info("batch-finished scenarios={} completed={} threads={} wall-ms={}",
+                new Object[]{results.size(), completed, pool.getParallelism(), wallMillis});
+        return results;
+    }
+
+    /**
+     * Run one scenario on the calling thread.
+     *
+     * @param scenario
+     * @return its result
+     * @throws Exception if the rules cannot be loaded or the Roomba opened
+     */
+    public Result run(Scenario scenario) throws Exception {
+        long start = System.nanoTime();
+        InputLinkMapping mapping = InputLinkMapping.load(mappingFile);
+        SensorPacket[] packets = mapping.getSensorPackets();
+        RoombaIF roomba;
+        if (scenario.replay != null) {
+            File recording = new File(scenario.replay);
+            roomba = new RoombaReplayIF(SensorRecorder.listSegments(
+                    recording.getAbsoluteFile().getParentFile(), recording.getName()),
+                    packets, -1);
+        } else {
+            roomba = new RoombaSimIF(packets, scenario.table, scenario.x, scenario.y,
+                    scenario.heading, -1);
+        }
+        Robot robot = new Robot("batch-" + scenario.name, roomba, mapping);
+        Agent agent = robot.getAgent();
+        final boolean[] halted = new boolean[1];
+        agent.getEvents().addListener(AfterHaltEvent.class, new SoarEventListener() {
+            @Override
+            public void onEvent(SoarEvent event) {
+                halted[0] = true;
+            }
+        });
+        robot.open(rulesFile, SAME_THREAD);
+        agent.getRandom().setSeed(seed ^ scenario.name.hashCode());
+        FrameCounter counter = new FrameCounter(packets);
+        Circuit circuit = (scenario.table != null) ? new Circuit(scenario.table) : null;
+        double circuitSeconds = -1;
+        long frames = 0;
+        long decisions;
+        try {
+            while (frames < maxFrames && !halted[0]) {
+                if (roomba instanceof RoombaSimIF) {
+                    RoombaSimIF sim = (RoombaSimIF) roomba;
+                    sim.step();
+                    if (circuit.update(sim.getX(), sim.getY())) {
+                        circuitSeconds = (frames + 1) * RoombaSimIF.STEP_SECONDS;
+                    }
+                } else if (!((RoombaReplayIF) roomba).step()) {
+                    break;
+                }
+                frames++;
+                counter.count(roomba);
+                if (circuitSeconds >= 0
+                        || (roomba instanceof RoombaSimIF && ((RoombaSimIF) roomba).hasFallen())) {
+                    break;
+                }
+                agent.runFor(decisionsPerFrame, RunType.DECISIONS);
+            }
+        } finally {
+            decisions = agent.getProperties().get(SoarProperties.D_CYCLE_COUNT);
+            robot.close();
+        }
+        boolean completed = (circuit != null) ? circuitSeconds >= 0 : !halted[0];
+        logger.info("scenario-finished scenario={} completed={} circuit-seconds={} falls={}",
+                new Object[]{scenario.name, completed,
+                    String.format(Locale.ROOT, "%.1f", circuitSeconds), counter.falls});
+        return new Result(scenario.name, completed, circuitSeconds,
+                frames * RoombaSimIF.STEP_SECONDS, frames, decisions, counter.bumps,
+                counter.cliffs, counter.falls, halted[0],
+                (System.nanoTime() - start) / 1000000L);
+    }
+
+    /**
+     * Load a scenario file.
+     *
+     * @param path
+     * @return the scenarios, in the order given
+     * @throws IOException
+     */
+    public static List<Scenario> loadScenarios(String path) throws IOException {
+        List<Scenario> scenarios = new ArrayList<Scenario>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\|");
+                String name = fields[0].trim();
+                if (fields.length == 2 && fields[1].trim().startsWith("replay:")) {
+                    scenarios.add(new Scenario(name,
+                            fields[1].trim().substring("replay:".length())));
+                    continue;
+                }
+                if (fields.length < 3) {
+                    throw new IOException(path + ":" + lineNumber
+                            + ": expected name | table | start");
+                }
+                SimTable table = new SimTable(SimTable.parsePolygon(fields[1]));
+                if (fields.length > 3) {
+                    for (String obstacle : fields[3].split(";")) {
+                        if (!obstacle.trim().isEmpty()) {
+                            table.addObstacle(SimTable.parsePolygon(obstacle));
+                        }
+                    }
+                }
+                String[] pose = fields[2].trim().split(",");
+                scenarios.add(new Scenario(name, table, Double.parseDouble(pose[0]),
+                        Double.parseDouble(pose[1]),
+                        Math.toRadians(Double.parseDouble(pose[2]))));
+            }
+        } finally {
+            reader.close();
+        }
+        return scenarios;
+    }
+
+    /**
+     * Counts the bumps, cliffs and wheel drops that start in each frame.
+     */
+    private static class FrameCounter {
+
+        private final int bumpsIndex;
+        private final int[] cliffIndexes = new int[CLIFF_PACKETS.length];
+        private final int[] values;
+        private int lastBumps = 0;
+        private int lastCliffs = 0;
+        int bumps = 0;
+        int cliffs = 0;
+        int falls = 0;
+
+        FrameCounter(SensorPacket[] packets) {
+            values = new int[packets.length];
+            int index = -1;
+            for (int i = 0; i < packets.length; i++) {
+                if (packets[i] == SensorPacket.BUMPS_AND_WHEEL_DROPS) {
+                    index = i;
+                }
+            }
+            bumpsIndex = index;
+            for (int c = 0; c < CLIFF_PACKETS.length; c++) {
+                cliffIndexes[c] = -1;
+                for (int i = 0; i < packets.length; i++) {
+                    if (packets[i] == CLIFF_PACKETS[c]) {
+                        cliffIndexes[c] = i;
+                    }
+                }
+            }
+        }
+
+        void count(RoombaIF roomba) {
+            roomba.readSensorData(values);
+            if (bumpsIndex >= 0) {
+                int current = values[bumpsIndex];
+                bumps += Integer.bitCount(current & ~lastBumps & BUMPS);
+                if ((current & WHEEL_DROPS) != 0 && (lastBumps & WHEEL_DROPS) == 0) {
+                    falls++;
+                }
+                lastBumps = current;
+            }
+            int cliffBits = 0;
+            for (int c = 0; c < cliffIndexes.length; c++) {
+                if (cliffIndexes[c] >= 0 && values[cliffIndexes[c]] != 0) {
+                    cliffBits |= 1 << c;
+                }
+            }
+            cliffs += Integer.bitCount(cliffBits & ~lastCliffs);
+            lastCliffs = cliffBits;
+        }
+    }
+
+    /**
+     * Tracks the Roomba's bearing from the centre of the table, unwrapped, to
+     * tell when it has been once round.
+     */
+    private static class Circuit {
+
+        private final double centreX;
+        private final double centreY;
+        private double lastBearing = Double.NaN;
+        private double turned = 0;
+
+        Circuit(SimTable table) {
+            double[] outline = table.getOutline();
+            double sx = 0;
+            double sy = 0;
+            for (int i = 0; i < outline.length; i += 2) {
+                sx += outline[i];
+                sy += outline[i + 1];
+            }
+            centreX = sx / (outline.length / 2);
+            centreY = sy / (outline.length / 2);
+        }
+
+        /**
+         * @return true the first time the Roomba has turned 360 degrees about
+         * the centre
+         */
+        boolean update(double x, double y) {
+            double bearing = Math.atan2(y - centreY, x - centreX);
+            if (!Double.isNaN(lastBearing)) {
+                double delta = bearing - lastBearing;
+                if (delta > Math.PI) {
+                    delta -= 2 * Math.PI;
+                } else if (delta < -Math.PI) {
+                    delta += 2 * Math.PI;
+                }
+                boolean before = Math.abs(turned) >= 2 * Math.PI;
+                turned += delta;
+                lastBearing = bearing;
+                return !before && Math.abs(turned) >= 2 * Math.PI;
+            }
+            lastBearing = bearing;
+            return false;
+        }
+    }
+}
@@ -1,10 +0,0 @@
-package tablecircumnavigator;
-
-/**
- *
- * @author Braden Phillips
- */
-public class DriveCommand {
-        public int velocity;
-        public int radius;
-}
@@ -0,0 +1,88 @@
+package tablecircumnavigator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import roombaif.RoombaIF;
+import roombaif.RoombaIFException;
+
+/**
+ * Sends drive commands from the agent's output-link to a Roomba:
+ * <pre>
+ *   ^drive (^velocity mm/s ^radius mm)
+ * </pre>
+ *
+ * Each command is traced at debug level on the "tablecircumnavigator.commands"
+ * logger, with the sequence number of the sensor frame the agent was acting
+ * on. The trace costs a single level check when that logger is off.
+ *
+ * @author Braden Phillips
+ */
+public class DriveCommandHandler implements OutputDispatcher.CommandHandler {
+
+    /* The command's name and arguments, for OutputDispatcher.register */
+    public static final String NAME = "drive";
+    public static final String[] ARGS = {"velocity", "radius"};
+    public static final int[] DEFAULTS = {OutputDispatcher.REQUIRED, OutputDispatcher.REQUIRED};
+
+    private static final Logger logger = LoggerFactory.getLogger(DriveCommandHandler.class);
+    private static final Logger commandLogger = LoggerFactory.getLogger("tablecircumnavigator.commands");
+
+    /* Instance variables */
+    private final RoombaIF roomba;
+    private volatile boolean enabled = true;
+    private volatile RunRecorder runRecorder;
+
+    /**
+     * Constructor
+     *
+     * @param roomba where to send the drive commands
+     */
+    public DriveCommandHandler(RoombaIF roomba) {
+        this.roomba = roomba;
+    }
+
+    /**
+     * Enable or disable sending commands to the Roomba, e.g. while shutting
+     * down.
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Record the commands sent in a run history.
+     *
+     * @param runRecorder the recorder of the run, or null
+     */
+    public void setRunRecorder(RunRecorder runRecorder) {
+        this.runRecorder = runRecorder;
+    }
+
+    @Override
+    public boolean handleCommand(int[] args) {
+        if (!enabled) {
+            return true;
+        }
+        short velocity = (short) args[0];
+        short radius = (short) args[1];
+        if (commandLogger.isDebugEnabled()) {
+            commandLogger.debug("drive-command-received velocity={} radius={} frame={}",
+                    new Object[]{velocity, radius,
+                        roomba.getLatencyMonitor().getCurrentFrame()});
+        }
+        try {
+            roomba.driveCommand(velocity, radius);
+            RunRecorder recorder = runRecorder;
+            if (recorder != null) {
+                recorder.driveCommanded(velocity, radius);
+            }
+            return true;
+        } catch (RoombaIFException ex) {
+            logger.error("drive-command-failed velocity={} radius={}",
+                    velocity, radius, ex);
+            return false;
+        }
+    }
+}
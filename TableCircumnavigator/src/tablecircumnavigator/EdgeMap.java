@@ -0,0 +1,330 @@
+package tablecircumnavigator;
+
+import java.util.concurrent.Executor;
+import roombaif.PoseEstimator;
+import roombaif.RoombaIF;
+import roombaif.SensorEventBus;
+import roombaif.SensorFrameListener;
+import roombaif.SensorPacket;
+import roombaif.SensorSubscription;
+
+/**
+ * A map of the table's edges and obstacles, built as the robot drives, so
+ * that it can slow down before an edge it has already found rather than
+ * react to its cliff sensors every lap.
+ *
+ * The map is a sparse grid of square cells held in an open addressing hash
+ * table of primitive arrays, keyed by cell coordinates. It subscribes to
+ * every frame on the Roomba's sensor event bus and, at the pose estimated by
+ * the Roomba's PoseEstimator, marks:
+ * + the cell under each cliff sensor that is triggered as an edge;
+ * + the cell in front of each bumper that is triggered as an obstacle.
+ * Marking a frame touches at most six cells, so costs O(1). The table only
+ * grows, by doubling, when it is half full.
+ *
+ * Two queries summarise the map for the agent:
+ * + edgeAhead: the distance from the front of the robot to the nearest known
+ *   edge or obstacle straight ahead, across the robot's width;
+ * + getCoverage: the fraction of the perimeter found, as the fraction of 10
+ *   degree sectors around the robot's starting point that hold an edge. The
+ *   cliff sensors only touch the edge here and there, so the sectors between
+ *   two edge hits close to each other are counted too.
+ *
+ * The map is updated on the subscriber's thread and queried on the agent's,
+ * so its methods are synchronized. The pose is the latest estimated, which
+ * may be a frame or two newer than the frame being marked if the subscriber
+ * falls behind.
+ *
+ * @author Braden Phillips
+ */
+public class EdgeMap implements SensorFrameListener {
+
+    /* Cell states */
+    public static final byte EDGE = 1;
+    public static final byte OBSTACLE = 2;
+
+    /* Roomba 500 geometry */
+    private static final double ROBOT_RADIUS = 170.0;       // mm
+    private static final double CLIFF_SENSOR_RADIUS = 160.0; // mm from centre
+    private static final double[] CLIFF_SENSOR_BEARINGS = {
+        Math.toRadians(60), Math.toRadians(20), Math.toRadians(-20), Math.toRadians(-60)
+    };
+    private static final SensorPacket[] CLIFF_PACKETS = {
+        SensorPacket.CLIFF_LEFT, SensorPacket.CLIFF_FRONT_LEFT,
+        SensorPacket.CLIFF_FRONT_RIGHT, SensorPacket.CLIFF_RIGHT
+    };
+    private static final double BUMP_BEARING = Math.toRadians(30);
+    private static final int BUMP_RIGHT = 0x1;
+    private static final int BUMP_LEFT = 0x2;
+    /* Offsets across the robot of the rays searched by edgeAhead */
+    private static final double[] RAY_OFFSETS = {-120.0, 0.0, 120.0};
+    private static final int SECTORS = 36;
+    /* Edge hits closer than this are taken to be on one stretch of edge */
+    private static final double LINK_DISTANCE = 2 * ROBOT_RADIUS;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /* Instance variables */
+    private final RoombaIF roomba;
+    private final PoseEstimator poseEstimator;
+    private final double cellSize;
+    private final int bumpsIndex;
+    private final int[] cliffIndexes = new int[CLIFF_PACKETS.length];
+    private final double[] pose = new double[3];
+    private final double[] queryPose = new double[3];
+    private final boolean[] sectors = new boolean[SECTORS];
+    private long[] keys;
+    private byte[] cells;
+    private int cellCount = 0;
+    private int sectorCount = 0;
+    private int lastEdgeSector = -1;
+    private double lastEdgeX;
+    private double lastEdgeY;
+    private SensorSubscription subscription;
+
+    /**
+     * Constructor
+     *
+     * @param roomba the Roomba, streaming odometry and cliff or bump packets
+     * @param cellSize the side of a cell in mm
+     */
+    public EdgeMap(RoombaIF roomba, double cellSize) {
+        this.roomba = roomba;
+        this.cellSize = cellSize;
+        poseEstimator = roomba.getPoseEstimator();
+        SensorPacket[] packets = roomba.getSensorPacketsRequested();
+        bumpsIndex = indexOf(packets, SensorPacket.BUMPS_AND_WHEEL_DROPS);
+        for (int i = 0; i < CLIFF_PACKETS.length; i++) {
+            cliffIndexes[i] = indexOf(packets, CLIFF_PACKETS[i]);
+        }
+        keys = new long[1024];
+        cells = new byte[keys.length];
+        java.util.Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Check whether a Roomba streams what a map needs: odometry, and cliff
+     * flags or bumps.
+     *
+     * @param roomba
+     * @return true if an EdgeMap can be built for it
+     */
+    public static boolean canMap(RoombaIF roomba) {
+        if (!roomba.getPoseEstimator().isAvailable()) {
+            return false;
+        }
+        SensorPacket[] packets = roomba.getSensorPacketsRequested();
+        boolean sensors = indexOf(packets, SensorPacket.BUMPS_AND_WHEEL_DROPS) >= 0;
+        for (SensorPacket p : CLIFF_PACKETS) {
+            sensors |= indexOf(packets, p) >= 0;
+        }
+        return sensors;
+    }
+
+    /**
+     * Start mapping every frame.
+     *
+     * @param executor runs the frame subscriber, or null for a thread of its
+     * own
+     */
+    public void start(Executor executor) {
+        SensorEventBus bus = roomba.getSensorEventBus();
+        subscription = (executor == null)
+                ? bus.subscribe(this, SensorEventBus.OverflowPolicy.DROP_OLDEST, 16)
+                : bus.subscribe(this, SensorEventBus.OverflowPolicy.DROP_OLDEST, 16, executor);
+    }
+
+    /**
+     * Stop mapping.
+     */
+    public void stop() {
+        if (subscription != null) {
+            subscription.unsubscribe();
+            subscription = null;
+        }
+    }
+
+    @Override
+    public void sensorFrameReceived(long sequence, int[] values) {
+        int bumps = (bumpsIndex >= 0) ? values[bumpsIndex] & (BUMP_LEFT | BUMP_RIGHT) : 0;
+        boolean cliff = false;
+        for (int i : cliffIndexes) {
+            cliff |= i >= 0 && values[i] != 0;
+        }
+        if (bumps == 0 && !cliff) {
+            return;
+        }
+        poseEstimator.readPose(pose);
+        double x = pose[PoseEstimator.X];
+        double y = pose[PoseEstimator.Y];
+        double heading = pose[PoseEstimator.HEADING];
+        synchronized (this) {
+            for (int i = 0; i < cliffIndexes.length; i++) {
+                if (cliffIndexes[i] >= 0 && values[cliffIndexes[i]] != 0) {
+                    double b = heading + CLIFF_SENSOR_BEARINGS[i];
+                    mark(x + CLIFF_SENSOR_RADIUS * Math.cos(b),
+                            y + CLIFF_SENSOR_RADIUS * Math.sin(b), EDGE);
+                }
+            }
+            double reach = ROBOT_RADIUS + cellSize / 2;
+            if ((bumps & BUMP_LEFT) != 0) {
+                double b = heading + BUMP_BEARING;
+                mark(x + reach * Math.cos(b), y + reach * Math.sin(b), OBSTACLE);
+            }
+            if ((bumps & BUMP_RIGHT) != 0) {
+                double b = heading - BUMP_BEARING;
+                mark(x + reach * Math.cos(b), y + reach * Math.sin(b), OBSTACLE);
+            }
+        }
+    }
+
+    /**
+     * Mark a cell, e.g. with an edge known in advance.
+     *
+     * @param x in mm, in the frame of the pose estimator
+     * @param y in mm
+     * @param state EDGE or OBSTACLE
+     */
+    public synchronized void mark(double x, double y, byte state) {
+        long key = key(x, y);
+        int slot = find(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            cellCount++;
+            if (state == EDGE) {
+                addSector(x, y);
+            }
+            if (2 * cellCount > keys.length) {
+                grow();
+            }
+            slot = find(key);
+        } else if (state == EDGE && (cells[slot] & EDGE) == 0) {
+            addSector(x, y);
+        }
+        cells[slot] |= state;
+    }
+
+    /**
+     * Get the state of a cell.
+     *
+     * @param x in mm, in the frame of the pose estimator
+     * @param y in mm
+     * @return EDGE and/or OBSTACLE, or 0 if nothing is known there
+     */
+    public synchronized byte get(double x, double y) {
+        int slot = find(key(x, y));
+        return (keys[slot] == EMPTY) ? 0 : cells[slot];
+    }
+
+    /**
+     * Find the nearest known edge or obstacle straight ahead of the robot's
+     * latest pose. Searches rays along the robot's heading, across its
+     * width, a cell at a time.
+     *
+     * @param range the distance in mm to search ahead of the robot
+     * @return the distance in mm from the front of the robot, 0 if already
+     * reached, or -1 if none is known within range
+     */
+    public synchronized double edgeAhead(double range) {
+        poseEstimator.readPose(queryPose);
+        double x = queryPose[PoseEstimator.X];
+        double y = queryPose[PoseEstimator.Y];
+        double c = Math.cos(queryPose[PoseEstimator.HEADING]);
+        double s = Math.sin(queryPose[PoseEstimator.HEADING]);
+        double step = cellSize / 2;
+        for (double d = 0; d <= ROBOT_RADIUS + range; d += step) {
+            for (double offset : RAY_OFFSETS) {
+                if (get(x + d * c - offset * s, y + d * s + offset * c) != 0) {
+                    return Math.max(0, d - ROBOT_RADIUS);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the fraction of the perimeter found so far: the fraction of 10
+     * degree sectors around the robot's starting point that hold an edge.
+     *
+     * @return 0 to 1
+     */
+    public synchronized double getCoverage() {
+        return sectorCount / (double) SECTORS;
+    }
+
+    /**
+     * @return the number of cells marked
+     */
+    public synchronized int getCellCount() {
+        return cellCount;
+    }
+
+    /* Private helper functions */
+    private long key(double x, double y) {
+        long ix = (long) Math.floor(x / cellSize);
+        long iy = (long) Math.floor(y / cellSize);
+        return (ix << 32) | (iy & 0xffffffffL);
+    }
+
+    /**
+     * Find the slot holding key, or the empty slot where it belongs.
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        long h = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h >>> 40) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        byte[] oldCells = cells;
+        keys = new long[oldKeys.length * 2];
+        cells = new byte[keys.length];
+        java.util.Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                cells[slot] = oldCells[i];
+            }
+        }
+    }
+
+    private void addSector(double x, double y) {
+        double bearing = Math.atan2(y, x) + Math.PI;    // 0 to 2 pi
+        int sector = Math.min(SECTORS - 1, (int) (bearing * SECTORS / (2 * Math.PI)));
+        if (lastEdgeSector >= 0
+                && Math.hypot(x - lastEdgeX, y - lastEdgeY) < LINK_DISTANCE) {
+            // Fill the sectors between this hit and the last, the short way
+            int gap = (sector - lastEdgeSector + SECTORS) % SECTORS;
+            int from = (gap <= SECTORS / 2) ? lastEdgeSector : sector;
+            int n = Math.min(gap, SECTORS - gap);
+            for (int i = 1; i < n; i++) {
+                setSector((from + i) % SECTORS);
+            }
+        }
+        setSector(sector);
+        lastEdgeSector = sector;
+        lastEdgeX = x;
+        lastEdgeY = y;
+    }
+
+    private void setSector(int sector) {
+        if (!sectors[sector]) {
+            sectors[sector] = true;
+            sectorCount++;
+        }
+    }
+
+    private static int indexOf(SensorPacket[] packets, SensorPacket packet) {
+        for (int i = 0; i < packets.length; i++) {
+            if (packets[i] == packet) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,291 @@
+package tablecircumnavigator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import roombaif.LivenessMonitor;
+import roombaif.MetricsRegistry;
+import roombaif.RoombaIF;
+import roombaif.RoombaSerialIF;
+import roombaif.RoombaSimIF;
+
+/**
+ * Drives a fleet of Roombas, real or simulated, each with its own table
+ * circumnavigator agent, from one JVM.
+ *
+ * Every robot is a Robot. Their agents, the simulations, the sensor stream
+ * liveness checks and the delivery of sensor frames to the agents' input
+ * latches all share one bounded pool of threads, rather than each robot
+ * having threads of its own. (Each real Roomba still has a serial reader and
+ * a command writer thread, which spend their time waiting on the port.)
+ *
+ * Every few seconds the fleet's throughput, in decisions and frames per
+ * second, is logged.
+ *
+ * System properties:
+ * <ul>
+ * <li>fleet.threads - the size of the pool (default: the number of
+ * processors)</li>
+ * <li>fleet.decision.period.us - the time between each robot's decisions, 0
+ * to run flat out (default 0)</li>
+ * <li>fleet.report.seconds - the time between throughput reports (default
+ * 5)</li>
+ * <li>fleet.duration.seconds - how long to run, 0 to run until enter is
+ * pressed (default 0)</li>
+ * <li>sim.table, sim.start and sim.speedup as for TableCircumnavigator,
+ * except that the speedup must leave a frame period of at least 1 ns, so a
+ * speedup of 0 (flat out) is rejected: the simulations are stepped on the
+ * pool</li>
+ * <li>record.dir and history.db as for TableCircumnavigator. The robots
+ * share one history.</li>
+ * </ul>
+ *
+ * @author Braden Phillips
+ */
+public class FleetHost {
+
+    private static final Logger logger = LoggerFactory.getLogger(FleetHost.class);
+
+    /* Instance variables */
+    private final ScheduledThreadPoolExecutor pool;
+    private final LivenessMonitor livenessMonitor;
+    private final List<Robot> robots = new ArrayList<Robot>();
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private RunHistory history;
+
+    /**
+     * Constructor
+     *
+     * @param threads the size of the shared pool
+     */
+    public FleetHost(int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        pool = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "fleet-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        livenessMonitor = new LivenessMonitor(pool, LivenessMonitor.DEFAULT_PERIOD_MILLIS);
+        MetricsRegistry.Gauge decisions = new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return sum("decisions");
+            }
+        };
+        MetricsRegistry.Gauge frames = new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return sum("frames");
+            }
+        };
+        metrics.gauge("robots", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return getRobots().size();
+            }
+        });
+        metrics.gauge("decisions", decisions);
+        metrics.rate("decisions-per-second", decisions);
+        metrics.gauge("frames", frames);
+        metrics.rate("frames-per-second", frames);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("USAGE: FleetHost roomba[*count] ...");
+            System.out.println();
+            System.out.println("e.g. sim*20 for twenty simulated roombas,");
+            System.out.println("     /dev/ttyUSB0 /dev/ttyUSB1 for two real roombas");
+            return;
+        }
+        FleetHost fleet = new FleetHost(Integer.getInteger("fleet.threads",
+                Runtime.getRuntime().availableProcessors()));
+        long decisionPeriod = Long.getLong("fleet.decision.period.us", 0);
+        long reportSeconds = Long.getLong("fleet.report.seconds", 5);
+        long durationSeconds = Long.getLong("fleet.duration.seconds", 0);
+        try {
+            fleet.setHistory(TableCircumnavigator.openHistory());
+            int index = 0;
+            for (String arg : args) {
+                int star = arg.lastIndexOf('*');
+                String port = (star < 0) ? arg : arg.substring(0, star);
+                int count = (star < 0) ? 1 : Integer.parseInt(arg.substring(star + 1));
+                for (int i = 0; i < count; i++, index++) {
+                    fleet.add("robot-" + index, port, index);
+                }
+            }
+            fleet.start(decisionPeriod);
+            fleet.reportEvery(reportSeconds);
+            if (durationSeconds > 0) {
+                Thread.sleep(durationSeconds * 1000L);
+            } else {
+                System.out.println("Press enter to exit...");
+                System.in.read();
+            }
+            fleet.report();
+        } finally {
+            fleet.close();
+        }
+    }
+
+    /**
+     * Create, open and add a robot.
+     *
+     * @param name
+     * @param port a serial port, "dummy" or "sim"
+     * @param index of the robot in the fleet
+     * @return the robot
+     * @throws IllegalArgumentException if a simulation would run flat out
+     * @throws Exception if the robot cannot be opened
+     */
+    public Robot add(String name, String port, int index) throws Exception {
+        InputLinkMapping mapping = InputLinkMapping.load(Robot.MAPPING);
+        RoombaIF roomba = TableCircumnavigator.createRoomba(port,
+                mapping.getSensorPackets(), index);
+        if (roomba instanceof RoombaSimIF) {
+            RoombaSimIF sim = (RoombaSimIF) roomba;
+            if (sim.getFramePeriodNanos() <= 0) {//Would run flat out on a thread of its own
+                throw new IllegalArgumentException("sim.speedup="
+                        + System.getProperty("sim.speedup") + " gives a frame period of "
+                        + sim.getFramePeriodNanos() + " ns; a fleet's simulations are"
+                        + " stepped on the pool and need a positive speedup that leaves"
+                        + " a frame period of at least 1 ns");
+            }
+            sim.setExecutor(pool);
+        } else if (roomba instanceof RoombaSerialIF) {
+            ((RoombaSerialIF) roomba).setLiveness(livenessMonitor,
+                    RoombaSerialIF.DEFAULT_STALE_MILLIS, true);
+        }
+        Robot robot = new Robot(name, roomba, mapping);
+        robot.setHistory(history);
+        robot.open(Robot.RULES, pool);
+        synchronized (robots) {
+            robots.add(robot);
+        }
+        return robot;
+    }
+
+    /**
+     * Start every robot that is not running and has not halted.
+     *
+     * @param decisionPeriodMicros the time between each robot's decisions, or
+     * 0 to run flat out
+     */
+    public void start(long decisionPeriodMicros) {
+        for (Robot robot : getRobots()) {
+            if ((robot.getState() == Robot.State.OPEN
+                    || robot.getState() == Robot.State.STOPPED) && !robot.isHalted()) {
+                robot.start(pool, decisionPeriodMicros);
+            }
+        }
+        logger.info("fleet-started robots={} threads={} decision-period-us={}",
+                new Object[]{getRobots().size(), pool.getCorePoolSize(),
+                    decisionPeriodMicros});
+    }
+
+    /**
+     * Log the fleet's throughput periodically.
+     *
+     * @param seconds the time between reports
+     */
+    public void reportEvery(long seconds) {
+        if (seconds <= 0) {
+            return;
+        }
+        pool.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Log the fleet's throughput, and each robot's at debug level.
+     */
+    public void report() {
+        logger.info("fleet-throughput robots={} decisions-per-second={} frames-per-second={}",
+                new Object[]{metrics.getValue("robots"),
+                    String.format("%.0f", metrics.getValue("decisions-per-second").doubleValue()),
+                    String.format("%.0f", metrics.getValue("frames-per-second").doubleValue())});
+        if (logger.isDebugEnabled()) {
+            for (Robot robot : getRobots()) {
+                MetricsRegistry m = robot.getMetrics();
+                logger.debug("robot-throughput robot={} state={} decisions-per-second={} frames-per-second={}",
+                        new Object[]{robot.getName(), robot.getState(),
+                            String.format("%.0f", m.getValue("decisions-per-second").doubleValue()),
+                            String.format("%.0f", m.getValue("frames-per-second").doubleValue())});
+            }
+        }
+    }
+
+    /**
+     * Close every robot and shut down the pool.
+     */
+    public void close() {
+        for (Robot robot : getRobots()) {
+            robot.stop();
+        }
+        for (Robot robot : getRobots()) {
+            try {
+                robot.close();
+            } catch (Exception ex) {
+                logger.error("robot-close-failed robot={}", robot.getName(), ex);
+            }
+        }
+        if (history != null) {
+            history.close();
+        }
+        livenessMonitor.shutdown();
+        pool.shutdownNow();
+        logger.info("fleet-closed");
+    }
+
+    /**
+     * Record the runs of the robots added from now on in a history, closed
+     * with the fleet.
+     *
+     * @param history the history, opened, or null
+     */
+    public void setHistory(RunHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * @return the robots, in the order they were added
+     */
+    public List<Robot> getRobots() {
+        synchronized (robots) {
+            return new ArrayList<Robot>(robots);
+        }
+    }
+
+    /**
+     * Get the fleet-wide metrics: robots, decisions and frames, and their
+     * rates per second.
+     *
+     * @return the metrics
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    private long sum(String metric) {
+        long total = 0;
+        for (Robot robot : getRobots()) {
+            Number value = robot.getMetrics().getValue(metric);
+            if (value != null) {
+                total += value.longValue();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,348 @@
+package tablecircumnavigator;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jsoar.kernel.io.quick.QMemory;
+import roombaif.SensorFilter;
+import roombaif.SensorPacket;
+
+/**
+ * A mapping from Roomba sensor packets to input-link values, read from a
+ * mapping file.
+ *
+ * Each non-blank line of the file that does not start with # has the form
+ * <pre>
+ *   path = "constant"
+ *   path = PACKET [&amp; mask] [* scale | &gt; threshold] [latch]
+ *   stream PACKET ...
+ *   filter PACKET stage ...
+ * </pre>
+ * where path is a Quick Memory path and PACKET is the name of a SensorPacket.
+ * A quoted constant is written once by writeStatic. Otherwise the value is
+ * the sensor value of PACKET, and
+ * <ul>
+ * <li>&amp; mask gives 1 if any of the bits in mask are set, else 0;</li>
+ * <li>* scale gives the value multiplied by scale, as a double;</li>
+ * <li>&gt; threshold gives 1 if the value is greater than threshold, else 0.</li>
+ * </ul>
+ * A packet marked latch on any line is latched: a caller that samples the
+ * sensor data less often than it is streamed should OR together the raw
+ * values of that packet received since the previous sample, so that short
+ * events such as a momentary bump are not lost. Latching is meant for bit
+ * field and boolean packets.
+ *
+ * A stream line names packets to request from the Roomba without writing
+ * them to the input-link, e.g. the odometry packets used by the Roomba's
+ * PoseEstimator.
+ *
+ * A filter line gives the SensorFilter specification for a packet, e.g.
+ * "filter CLIFF_LEFT_SIGNAL hysteresis-low 600 1200". The Roomba
+ * replaces the packet's values with the filtered values before they are
+ * published, so they are filtered whether or not they are latched.
+ *
+ * The sensor packets to request from the Roomba are those named in the file,
+ * in the order they first appear.
+ *
+ * The mapping is compiled into flat arrays, one entry per value path, so
+ * updating the input-link is a single loop that only writes the values that
+ * changed.
+ *
+ * @author Braden Phillips
+ */
+public class InputLinkMapping {
+
+    private static final int KIND_VALUE = 0;
+    private static final int KIND_MASK = 1;
+    private static final int KIND_SCALE = 2;
+    private static final int KIND_THRESHOLD = 3;
+
+    /* Instance variables */
+    private final SensorPacket[] sensorPackets;
+    private final boolean[] latched;
+    private final Map<SensorPacket, String> filterSpecs;
+    private final String[] staticPaths;
+    private final String[] staticValues;
+    private final String[] paths;
+    private final int[] kinds;
+    private final int[] packetIndices;
+    private final int[] operands;
+    private final double[] scales;
+    private final long[] lastValues;    // double values are stored as raw bits
+    private boolean initialised = false;
+
+    private InputLinkMapping(SensorPacket[] sensorPackets,
+            Map<SensorPacket, String> filterSpecs,
+            List<String[]> statics, List<Writer> writers) {
+        this.sensorPackets = sensorPackets;
+        this.filterSpecs = filterSpecs;
+        latched = new boolean[sensorPackets.length];
+        staticPaths = new String[statics.size()];
+        staticValues = new String[statics.size()];
+        for (int i = 0; i < statics.size(); i++) {
+            staticPaths[i] = statics.get(i)[0];
+            staticValues[i] = statics.get(i)[1];
+        }
+        int n = writers.size();
+        paths = new String[n];
+        kinds = new int[n];
+        packetIndices = new int[n];
+        operands = new int[n];
+        scales = new double[n];
+        lastValues = new long[n];
+        for (int i = 0; i < n; i++) {
+            Writer w = writers.get(i);
+            paths[i] = w.path;
+            kinds[i] = w.kind;
+            packetIndices[i] = w.packetIndex;
+            operands[i] = w.operand;
+            scales[i] = w.scale;
+            latched[w.packetIndex] |= w.latch;
+        }
+    }
+
+    /**
+     * Read a mapping file.
+     *
+     * @param fileName
+     * @return the compiled mapping
+     * @throws IOException if the file cannot be read or a line is malformed
+     */
+    public static InputLinkMapping load(String fileName) throws IOException {
+        Map<SensorPacket, Integer> packets = new LinkedHashMap<SensorPacket, Integer>();
+        Map<SensorPacket, String> filterSpecs = new LinkedHashMap<SensorPacket, String>();
+        List<String[]> statics = new ArrayList<String[]>();
+        List<Writer> writers = new ArrayList<Writer>();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.startsWith("stream ")) {
+                    String[] names = line.substring("stream ".length()).trim().split("\\s+");
+                    for (String name : names) {
+                        SensorPacket packet;
+                        try {
+                            packet = SensorPacket.valueOf(name);
+                        } catch (IllegalArgumentException ex) {
+                            throw error(fileName, lineNumber, "unknown sensor packet " + name);
+                        }
+                        if (!packets.containsKey(packet)) {
+                            packets.put(packet, packets.size());
+                        }
+                    }
+                    continue;
+                }
+                if (line.startsWith("filter ")) {
+                    String[] tokens = line.substring("filter ".length()).trim().split("\\s+", 2);
+                    SensorPacket packet;
+                    try {
+                        packet = SensorPacket.valueOf(tokens[0]);
+                    } catch (IllegalArgumentException ex) {
+                        throw error(fileName, lineNumber, "unknown sensor packet " + tokens[0]);
+                    }
+                    if (tokens.length < 2) {
+                        throw error(fileName, lineNumber, "no filter for " + packet);
+                    }
+                    try {
+                        SensorFilter.parse(tokens[1]);
+                    } catch (IllegalArgumentException ex) {
+                        throw error(fileName, lineNumber, ex.getMessage());
+                    }
+                    filterSpecs.put(packet, tokens[1]);
+                    if (!packets.containsKey(packet)) {
+                        packets.put(packet, packets.size());
+                    }
+                    continue;
+                }
+                int equals = line.indexOf('=');
+                if (equals < 1) {
+                    throw error(fileName, lineNumber, "expected path = value");
+                }
+                String path = line.substring(0, equals).trim();
+                String value = line.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    statics.add(new String[]{path, value.substring(1, value.length() - 1)});
+                    continue;
+                }
+                String[] tokens = value.split("\\s+");
+                boolean latch = tokens.length > 1
+                        && tokens[tokens.length - 1].equals("latch");
+                if (latch) {
+                    tokens = java.util.Arrays.copyOf(tokens, tokens.length - 1);
+                }
+                SensorPacket packet;
+                try {
+                    packet = SensorPacket.valueOf(tokens[0]);
+                } catch (IllegalArgumentException ex) {
+                    throw error(fileName, lineNumber, "unknown sensor packet " + tokens[0]);
+                }
+                Integer index = packets.get(packet);
+                if (index == null) {
+                    index = packets.size();
+                    packets.put(packet, index);
+                }
+                int kind = KIND_VALUE;
+                int operand = 0;
+                double scale = 1.0;
+                try {
+                    if (tokens.length == 1) {
+                        kind = KIND_VALUE;
+                    } else if (tokens.length == 3 && tokens[1].equals("&")) {
+                        kind = KIND_MASK;
+                        operand = Integer.decode(tokens[2]);
+                    } else if (tokens.length == 3 && tokens[1].equals("*")) {
+                        kind = KIND_SCALE;
+                        scale = Double.parseDouble(tokens[2]);
+                    } else if (tokens.length == 3 && tokens[1].equals(">")) {
+                        kind = KIND_THRESHOLD;
+                        operand = Integer.decode(tokens[2]);
+                    } else {
+                        throw error(fileName, lineNumber, "cannot parse " + value);
+                    }
+                } catch (NumberFormatException ex) {
+                    throw error(fileName, lineNumber, "bad number in " + value);
+                }
+                writers.add(new Writer(path, kind, index, operand, scale, latch));
+            }
+        } finally {
+            reader.close();
+        }
+        SensorPacket[] sensorPackets = packets.keySet().toArray(
+                new SensorPacket[packets.size()]);
+        return new InputLinkMapping(sensorPackets, filterSpecs, statics, writers);
+    }
+
+    /**
+     * One parsed value line, before compilation into the flat arrays.
+     */
+    private static class Writer {
+
+        final String path;
+        final int kind;
+        final int packetIndex;
+        final int operand;
+        final double scale;
+        final boolean latch;
+
+        Writer(String path, int kind, int packetIndex, int operand, double scale,
+                boolean latch) {
+            this.path = path;
+            this.kind = kind;
+            this.packetIndex = packetIndex;
+            this.operand = operand;
+            this.scale = scale;
+            this.latch = latch;
+        }
+    }
+
+    private static IOException error(String fileName, int lineNumber, String message) {
+        return new IOException(fileName + ":" + lineNumber + ": " + message);
+    }
+
+    /**
+     * Get the sensor packets that must be requested from the Roomba, in the
+     * order their values are expected by update.
+     *
+     * @return SensorPacket[]
+     */
+    public SensorPacket[] getSensorPackets() {
+        return java.util.Arrays.copyOf(sensorPackets, sensorPackets.length);
+    }
+
+    /**
+     * Make the sensor filters named in the mapping. Filters are stateful, so
+     * each Roomba needs its own.
+     *
+     * @return new filters, by packet
+     */
+    public Map<SensorPacket, SensorFilter> createFilters() {
+        Map<SensorPacket, SensorFilter> filters = new LinkedHashMap<SensorPacket, SensorFilter>();
+        for (Map.Entry<SensorPacket, String> e : filterSpecs.entrySet()) {
+            filters.put(e.getKey(), SensorFilter.parse(e.getValue()));
+        }
+        return filters;
+    }
+
+    /**
+     * Check whether a packet should be latched between samples.
+     *
+     * @param packetIndex index into getSensorPackets
+     * @return true if the packet is marked latch
+     */
+    public boolean isLatched(int packetIndex) {
+        return latched[packetIndex];
+    }
+
+    /**
+     * Get the number of input-link values written by update.
+     *
+     * @return the number of value paths
+     */
+    public int getValueCount() {
+        return paths.length;
+    }
+
+    /**
+     * Write the constant structure of the mapping to qmemory.
+     *
+     * @param qmemory
+     */
+    public void writeStatic(QMemory qmemory) {
+        for (int i = 0; i < staticPaths.length; i++) {
+            qmemory.setString(staticPaths[i], staticValues[i]);
+        }
+    }
+
+    /**
+     * Write the values that changed since the previous update to qmemory. The
+     * first update writes every value.
+     *
+     * Beware: this is not synchronized. Call it from one thread only.
+     *
+     * @param sensorData the sensor data, in the order of getSensorPackets
+     * @param qmemory
+     * @return the number of values written
+     */
+    public int update(int[] sensorData, QMemory qmemory) {
+        int changes = 0;
+        for (int i = 0; i < paths.length; i++) {
+            int raw = sensorData[packetIndices[i]];
+            long value;
+            switch (kinds[i]) {
+                case KIND_MASK:
+                    value = ((raw & operands[i]) != 0) ? 1 : 0;
+                    break;
+                case KIND_SCALE:
+                    value = Double.doubleToLongBits(raw * scales[i]);
+                    break;
+                case KIND_THRESHOLD:
+                    value = (raw > operands[i]) ? 1 : 0;
+                    break;
+                default:
+                    value = raw;
+            }
+            if (initialised && value == lastValues[i]) {
+                continue;
+            }
+            lastValues[i] = value;
+            changes++;
+            if (kinds[i] == KIND_SCALE) {
+                qmemory.setDouble(paths[i], Double.longBitsToDouble(value));
+            } else {
+                qmemory.setInteger(paths[i], (int) value);
+            }
+        }
+        initialised = true;
+        return changes;
+    }
+}
@@ -0,0 +1,49 @@
+package tablecircumnavigator;
+
+import org.jsoar.kernel.SoarException;
+import org.jsoar.util.commands.SoarCommand;
+import org.jsoar.util.commands.SoarCommandContext;
+import roombaif.RoombaIF;
+
+/**
+ * A Soar command line command that prints the Roomba interface's metrics and
+ * latency histograms.
+ *
+ * Usage: roomba-metrics [latency|reset]
+ * <ul>
+ * <li>no argument prints the metrics</li>
+ * <li>latency also prints the latency of each stage in us</li>
+ * <li>reset clears the latency histograms</li>
+ * </ul>
+ *
+ * @author Braden Phillips
+ */
+public class MetricsCommand implements SoarCommand {
+
+    public static final String NAME = "roomba-metrics";
+
+    /* Instance variables */
+    private final RoombaIF roomba;
+
+    /**
+     * Constructor
+     *
+     * @param roomba
+     */
+    public MetricsCommand(RoombaIF roomba) {
+        this.roomba = roomba;
+    }
+
+    @Override
+    public String execute(SoarCommandContext context, String[] args) throws SoarException {
+        if (args.length == 1) {
+            return roomba.getMetrics().dump();
+        } else if (args.length == 2 && args[1].equals("latency")) {
+            return roomba.getMetrics().dump() + roomba.getLatencyMonitor().dump();
+        } else if (args.length == 2 && args[1].equals("reset")) {
+            roomba.getLatencyMonitor().reset();
+            return "latency histograms reset";
+        }
+        throw new SoarException("Usage: " + NAME + " [latency|reset]");
+    }
+}
@@ -0,0 +1,72 @@
+package tablecircumnavigator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import roombaif.RoombaIF;
+import roombaif.RoombaIFException;
+
+/**
+ * Sends motors commands from the agent's output-link to a Roomba, switching
+ * its brushes and vacuum:
+ * <pre>
+ *   ^motors (^side-brush on ^side-brush-clockwise off ^main-brush on
+ *            ^main-brush-outward off ^vacuum on)
+ * </pre>
+ * Arguments that are not given are off.
+ *
+ * @author Braden Phillips
+ */
+public class MotorsCommandHandler implements OutputDispatcher.CommandHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(MotorsCommandHandler.class);
+    private static final Logger commandLogger = LoggerFactory.getLogger("tablecircumnavigator.commands");
+
+    /* The command's name and arguments, for OutputDispatcher.register */
+    public static final String NAME = "motors";
+    public static final String[] ARGS = {
+        "side-brush", "side-brush-clockwise", "main-brush", "main-brush-outward", "vacuum"
+    };
+    public static final int[] DEFAULTS = {0, 0, 0, 0, 0};
+
+    /* Instance variables */
+    private final RoombaIF roomba;
+    private volatile boolean enabled = true;
+
+    /**
+     * Constructor
+     *
+     * @param roomba where to send the motors commands
+     */
+    public MotorsCommandHandler(RoombaIF roomba) {
+        this.roomba = roomba;
+    }
+
+    /**
+     * Enable or disable sending commands to the Roomba, e.g. while shutting
+     * down.
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public boolean handleCommand(int[] args) {
+        if (!enabled) {
+            return true;
+        }
+        if (commandLogger.isDebugEnabled()) {
+            commandLogger.debug("motors-command-received side-brush={} main-brush={} vacuum={}",
+                    new Object[]{args[0], args[2], args[4]});
+        }
+        try {
+            roomba.motorsCommand(args[0] != 0, args[1] != 0, args[2] != 0,
+                    args[3] != 0, args[4] != 0);
+            return true;
+        } catch (RoombaIFException ex) {
+            logger.error("motors-command-failed", ex);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package tablecircumnavigator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jsoar.kernel.events.OutputEvent;
+import org.jsoar.kernel.io.InputOutput;
+import org.jsoar.kernel.io.InputWmes;
+import org.jsoar.kernel.memory.Wme;
+import org.jsoar.kernel.symbols.DoubleSymbol;
+import org.jsoar.kernel.symbols.Identifier;
+import org.jsoar.kernel.symbols.IntegerSymbol;
+import org.jsoar.kernel.symbols.StringSymbol;
+import org.jsoar.kernel.symbols.Symbol;
+import org.jsoar.kernel.symbols.SymbolFactory;
+import org.jsoar.util.events.SoarEvent;
+import org.jsoar.util.events.SoarEventListener;
+import org.jsoar.util.events.SoarEventManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import roombaif.LatencyHistogram;
+import roombaif.MetricsRegistry;
+
+/**
+ * Dispatches the commands the agent places on its output-link to handlers,
+ * without reflection.
+ *
+ * Each command type is registered with its name, the names of its integer
+ * arguments and their defaults. The argument names are interned as symbols
+ * when the type is registered, so reading a command is a single pass over its
+ * WMEs that compares attributes by identity and stores the values in an array
+ * reused for every command of the type. Booleans may be given as 1 and 0,
+ * true and false, yes and no, or on and off; doubles are rounded.
+ *
+ * In the output phase every new command on the output-link is read and
+ * passed to the handler for its name, and is then given a ^status of
+ * complete, or error if an argument without a default was missing or could
+ * not be read, or the handler failed. Commands with no handler are left
+ * alone.
+ *
+ * The time to read and handle each command is recorded in a histogram per
+ * command type, and published as the metrics output-NAME-count and
+ * output-NAME-p99-us.
+ *
+ * @author Braden Phillips
+ */
+public class OutputDispatcher implements SoarEventListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutputDispatcher.class);
+
+    /** The default for an argument that must be given */
+    public static final int REQUIRED = Integer.MIN_VALUE;
+
+    /**
+     * Handles one type of command.
+     */
+    public interface CommandHandler {
+
+        /**
+         * Handle a command.
+         *
+         * @param args the command's arguments, in the order registered. The
+         * array is reused for the next command.
+         * @return true if the command was carried out
+         */
+        public boolean handleCommand(int[] args);
+    }
+
+    /**
+     * A registered command type and its precompiled accessor.
+     */
+    private static class CommandType {
+
+        final String name;
+        final Symbol[] argSymbols;
+        final int[] defaults;
+        final int[] args;
+        final CommandHandler handler;
+        final LatencyHistogram cost = new LatencyHistogram();
+
+        CommandType(String name, Symbol[] argSymbols, int[] defaults,
+                CommandHandler handler) {
+            this.name = name;
+            this.argSymbols = argSymbols;
+            this.defaults = defaults;
+            this.args = new int[defaults.length];
+            this.handler = handler;
+        }
+    }
+
+    /* Instance variables */
+    private final SymbolFactory symbols;
+    private final Map<Symbol, CommandType> types = new LinkedHashMap<Symbol, CommandType>();
+    private SoarEventManager events;
+
+    /**
+     * Constructor
+     *
+     * @param symbols the agent's symbol factory, to intern names with
+     */
+    public OutputDispatcher(SymbolFactory symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * Register a command type. Register every type before attaching.
+     *
+     * @param name the attribute of the command on the output-link
+     * @param argNames the attributes of its arguments
+     * @param defaults the value of each argument when it is not given, or
+     * REQUIRED
+     * @param handler handles the commands
+     */
+    public void register(String name, String[] argNames, int[] defaults,
+            CommandHandler handler) {
+        if (argNames.length != defaults.length) {
+            throw new IllegalArgumentException("Each argument of " + name + " needs a default");
+        }
+        Symbol[] argSymbols = new Symbol[argNames.length];
+        for (int i = 0; i < argNames.length; i++) {
+            argSymbols[i] = symbols.createString(argNames[i]);
+        }
+        types.put(symbols.createString(name),
+                new CommandType(name, argSymbols, defaults.clone(), handler));
+    }
+
+    /**
+     * Publish the count and 99th percentile cost of each command type.
+     *
+     * @param metrics
+     */
+    public void addMetrics(MetricsRegistry metrics) {
+        for (final CommandType type : types.values()) {
+            metrics.gauge("output-" + type.name + "-count", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return type.cost.getCount();
+                }
+            });
+            metrics.gauge("output-" + type.name + "-p99-us", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return type.cost.getValueAtPercentile(99) / 1000L;
+                }
+            });
+        }
+    }
+
+    /**
+     * Start dispatching commands in every output phase.
+     *
+     * @param events the agent's event manager
+     */
+    public void attach(SoarEventManager events) {
+        this.events = events;
+        events.addListener(OutputEvent.class, this);
+    }
+
+    /**
+     * Stop dispatching commands.
+     */
+    public void detach() {
+        if (events != null) {
+            events.removeListener(OutputEvent.class, this);
+            events = null;
+        }
+    }
+
+    /**
+     * Log the cost of each command type.
+     *
+     * @param robot the name to log them under
+     */
+    public void logCosts(String robot) {
+        for (CommandType type : types.values()) {
+            logger.info("output-cost-us robot={} command={} {}",
+                    new Object[]{robot, type.name, type.cost});
+        }
+    }
+
+    /**
+     * Dispatch the new commands on the output-link. Called on the agent
+     * thread in every output phase.
+     *
+     * @param event
+     */
+    @Override
+    public void onEvent(SoarEvent event) {
+        InputOutput io = ((OutputEvent) event).getInputOutput();
+        for (Wme command : io.getPendingCommands()) {
+            CommandType type = types.get(command.getAttribute());
+            Identifier id = command.getValue().asIdentifier();
+            if (type == null || id == null) {
+                continue;
+            }
+            long start = System.nanoTime();
+            boolean ok = read(type, id) && type.handler.handleCommand(type.args);
+            InputWmes.add(io, id, "status", ok ? "complete" : "error");
+            type.cost.record(System.nanoTime() - start);
+        }
+    }
+
+    /* Private helper functions */
+    private boolean read(CommandType type, Identifier id) {
+        int[] args = type.args;
+        System.arraycopy(type.defaults, 0, args, 0, args.length);
+        Symbol[] argSymbols = type.argSymbols;
+        for (Iterator<Wme> it = id.getWmes(); it.hasNext();) {
+            Wme wme = it.next();
+            Symbol attribute = wme.getAttribute();
+            for (int i = 0; i < argSymbols.length; i++) {
+                if (argSymbols[i] == attribute) {
+                    args[i] = toInt(wme.getValue());
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == REQUIRED) {
+                logger.warn("output-command-invalid command={} argument={}",
+                        type.name, type.argSymbols[i]);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convert a value to an integer, or REQUIRED if it cannot be.
+     */
+    private static int toInt(Symbol value) {
+        IntegerSymbol i = value.asInteger();
+        if (i != null) {
+            return (int) i.getValue();
+        }
+        DoubleSymbol d = value.asDouble();
+        if (d != null) {
+            return (int) Math.round(d.getValue());
+        }
+        StringSymbol s = value.asString();
+        if (s != null) {
+            String v = s.getValue();
+            if (v.equals("true") || v.equals("yes") || v.equals("on")) {
+                return 1;
+            }
+            if (v.equals("false") || v.equals("no") || v.equals("off")) {
+                return 0;
+            }
+        }
+        return REQUIRED;
+    }
+}
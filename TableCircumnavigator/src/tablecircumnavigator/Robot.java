@@ -0,0 +1,432 @@
+package tablecircumnavigator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.RunType;
+import org.jsoar.kernel.SoarException;
+import org.jsoar.kernel.SoarProperties;
+import org.jsoar.kernel.events.AfterHaltEvent;
+import org.jsoar.kernel.io.quick.DefaultQMemory;
+import org.jsoar.kernel.io.quick.QMemory;
+import org.jsoar.kernel.io.quick.SoarQMemoryAdapter;
+import org.jsoar.util.commands.SoarCommands;
+import org.jsoar.util.events.SoarEvent;
+import org.jsoar.util.events.SoarEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import roombaif.LatencyMonitor;
+import roombaif.MetricsRegistry;
+import roombaif.RoombaIF;
+import roombaif.RoombaIFException;
+import roombaif.SensorFilter;
+import roombaif.SensorPacket;
+import roombaif.SensorRecorder;
+
+/**
+ * One Roomba and the table circumnavigator agent that drives it: a RoombaIF,
+ * a Soar agent, the Quick Memory for its input-link, and the output handlers,
+ * wired together.
+ *
+ * A robot can be run in two ways. Its agent can be attached to a
+ * ThreadedAgent, e.g. to use the debugger, or started on a thread pool shared
+ * with other robots, where it runs a few decisions at a time so that many
+ * robots can share a few threads.
+ *
+ * Its lifecycle is NEW, OPEN (connected and ready to run), RUNNING on a pool,
+ * STOPPED, and finally CLOSED. A robot whose agent halts, e.g. after a wheel
+ * drop, is stopped, its Roomba told to stop driving, and it cannot be started
+ * again. Its metrics are those of its Roomba interface plus the agent's
+ * decision count and rate.
+ *
+ * If the system property record.dir is set, the robot's sensor frames and
+ * commands are recorded there by a SensorRecorder, in segments named after
+ * the robot. Given a RunHistory, each time the robot is opened and closed is
+ * recorded there as a run, sampling the sensors every history.sample.ms
+ * (default 1000).
+ *
+ * If the Roomba streams odometry, its estimated pose is written to the
+ * input-link under pose, and rewritten when it moves by pose.resolution.mm
+ * (default 10) or pose.resolution.degrees (default 5). An EdgeMap of the
+ * table is built from the pose and the cliff and bump sensors, with cells of
+ * map.cell.mm (default 20), and its summary is written under map: the known
+ * edge within map.range.mm (default 300) ahead, in steps of
+ * map.resolution.mm (default 20), and the perimeter coverage.
+ *
+ * The agent's drive and motors commands are sent to the Roomba by an
+ * OutputDispatcher, which publishes the cost of each command type as
+ * metrics and logs it when the robot is closed.
+ *
+ * The rules are loaded through the shared RuleCache, so robots with the same
+ * rules only parse them once, unless rules.cache is false. A rule file that
+ * runs commands other than sp, e.g. source, is always sourced.
+ *
+ * @author Braden Phillips
+ */
+public class Robot {
+
+    private static final Logger logger = LoggerFactory.getLogger(Robot.class);
+
+    public static final String RULES = "soar/table-circumnavigator.soar";
+    public static final String MAPPING = "config/table-circumnavigator.map";
+
+    /* Decisions run each time a robot gets a pool thread, running flat out */
+    private static final int DECISIONS_PER_SLICE = 10;
+
+    /**
+     * The stages of a robot's life.
+     */
+    public enum State {
+
+        NEW, OPEN, RUNNING, STOPPED, CLOSED
+    }
+
+    /* Instance variables */
+    private final String name;
+    private final RoombaIF roomba;
+    private final InputLinkMapping mapping;
+    private final Agent agent;
+    private final QMemory qmemory;
+    private final OutputDispatcher outputDispatcher;
+    private final Object runLock = new Object();
+    private SensorInputAdapter sensorInputAdapter;
+    private DriveCommandHandler driveCommandHandler;
+    private MotorsCommandHandler motorsCommandHandler;
+    private String mbeanName;
+    private SensorRecorder recorder;
+    private RunHistory history;
+    private RunRecorder runRecorder;
+    private EdgeMap edgeMap;
+    private ScheduledExecutorService pool;
+    private volatile ScheduledFuture<?> scheduledRun;
+    private volatile State state = State.NEW;
+    private volatile boolean halted = false;
+
+    /**
+     * Constructor
+     *
+     * @param name names the agent and the robot's MBean, unique in the JVM
+     * @param roomba the Roomba, not yet opened. It must stream the packets
+     * of the mapping.
+     * @param mapping from the Roomba's sensor packets to the input-link
+     */
+    public Robot(String name, RoombaIF roomba, InputLinkMapping mapping) {
+        this.name = name;
+        this.roomba = roomba;
+        this.mapping = mapping;
+        agent = new Agent(name);
+        qmemory = DefaultQMemory.create();
+        outputDispatcher = new OutputDispatcher(agent.getSymbols());
+        MetricsRegistry.Gauge decisions = new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return agent.getProperties().get(SoarProperties.D_CYCLE_COUNT);
+            }
+        };
+        roomba.getMetrics().gauge("decisions", decisions);
+        roomba.getMetrics().rate("decisions-per-second", decisions);
+        agent.getEvents().addListener(AfterHaltEvent.class, new SoarEventListener() {
+            @Override
+            public void onEvent(SoarEvent event) {
+                halted = true;
+            }
+        });
+    }
+
+    /**
+     * Load the rules, connect to the Roomba and wire it to the agent.
+     *
+     * @param rulesFile the Soar rules to load
+     * @param executor delivers sensor frames to the input latch, or null for
+     * a thread of its own
+     * @throws SoarException
+     * @throws RoombaIFException
+     */
+    public void open(String rulesFile, Executor executor)
+            throws SoarException, RoombaIFException {
+        if (state != State.NEW) {
+            throw new IllegalStateException(name + " is " + state);
+        }
+        agent.initialize();
+        if (Boolean.parseBoolean(System.getProperty("rules.cache", "true"))) {
+            RuleCache.getShared().load(agent, rulesFile);
+        } else {
+            SoarCommands.source(agent.getInterpreter(), rulesFile);
+        }
+        startRecorder();
+        for (Map.Entry<SensorPacket, SensorFilter> f : mapping.createFilters().entrySet()) {
+            roomba.setSensorFilter(f.getKey(), f.getValue());
+        }
+        roomba.openIF(true);
+        // Update the input-link once per decision cycle. The sensor adapter
+        // must see the input event before the Quick Memory adapter does.
+        sensorInputAdapter = new SensorInputAdapter(roomba, mapping, qmemory);
+        sensorInputAdapter.setPoseOutput("pose",
+                Double.parseDouble(System.getProperty("pose.resolution.mm", "10")),
+                Double.parseDouble(System.getProperty("pose.resolution.degrees", "5")));
+        if (EdgeMap.canMap(roomba)) {
+            edgeMap = new EdgeMap(roomba,
+                    Double.parseDouble(System.getProperty("map.cell.mm", "20")));
+            edgeMap.start(executor);
+            sensorInputAdapter.setEdgeMapOutput("map", edgeMap,
+                    Double.parseDouble(System.getProperty("map.range.mm", "300")),
+                    Double.parseDouble(System.getProperty("map.resolution.mm", "20")));
+        }
+        sensorInputAdapter.attach(agent.getEvents(), executor);
+        SoarQMemoryAdapter.attach(agent.getInputOutput(), null, qmemory);
+        // Send the agent's drive and motors commands to the Roomba
+        driveCommandHandler = new DriveCommandHandler(roomba);
+        motorsCommandHandler = new MotorsCommandHandler(roomba);
+        outputDispatcher.register(DriveCommandHandler.NAME, DriveCommandHandler.ARGS,
+                DriveCommandHandler.DEFAULTS, driveCommandHandler);
+        outputDispatcher.register(MotorsCommandHandler.NAME, MotorsCommandHandler.ARGS,
+                MotorsCommandHandler.DEFAULTS, motorsCommandHandler);
+        outputDispatcher.addMetrics(roomba.getMetrics());
+        outputDispatcher.attach(agent.getEvents());
+        if (history != null) {
+            runRecorder = new RunRecorder(history, name, roomba,
+                    Long.getLong("history.sample.ms", 1000));
+            runRecorder.start(agent.getEvents(), executor);
+            driveCommandHandler.setRunRecorder(runRecorder);
+        }
+        // Publish the metrics over JMX and at the Soar command line
+        agent.getInterpreter().addCommand(MetricsCommand.NAME, new MetricsCommand(roomba));
+        mbeanName = "tablecircumnavigator:type=Robot,name=" + ObjectName.quote(name);
+        try {
+            roomba.getMetrics().registerMBean(mbeanName);
+        } catch (JMException ex) {
+            logger.warn("metrics-mbean-failed robot={}", name, ex);
+        }
+        state = State.OPEN;
+        logger.info("robot-opened robot={} port={}", name, roomba.getPortName());
+    }
+
+    /**
+     * Run the agent on a shared pool until stopped.
+     *
+     * @param pool the threads shared by the robots
+     * @param decisionPeriodMicros the time between decisions, or 0 to run as
+     * many as the pool allows
+     * @throws IllegalStateException if the robot is not OPEN or STOPPED, or
+     * its agent has halted
+     */
+    public synchronized void start(ScheduledExecutorService pool,
+            long decisionPeriodMicros) {
+        if (state != State.OPEN && state != State.STOPPED) {
+            throw new IllegalStateException(name + " is " + state);
+        }
+        if (halted) {
+            throw new IllegalStateException(name + " halted (" + agent.getReasonForStop()
+                    + ") and cannot be restarted");
+        }
+        this.pool = pool;
+        state = State.RUNNING;
+        if (decisionPeriodMicros > 0) {
+            scheduledRun = pool.scheduleAtFixedRate(new Slice(1, false),
+                    decisionPeriodMicros, decisionPeriodMicros, TimeUnit.MICROSECONDS);
+        } else {
+            pool.execute(new Slice(DECISIONS_PER_SLICE, true));
+        }
+    }
+
+    /**
+     * Stop running the agent on the pool. Returns once the decisions in
+     * progress are complete.
+     */
+    public synchronized void stop() {
+        if (state != State.RUNNING) {
+            return;
+        }
+        state = State.STOPPED;
+        if (scheduledRun != null) {
+            scheduledRun.cancel(false);
+            scheduledRun = null;
+        }
+        synchronized (runLock) {//Wait for the slice in progress
+        }
+    }
+
+    /**
+     * Stop the agent, stop the Roomba and close its interface.
+     *
+     * @throws RoombaIFException
+     */
+    public synchronized void close() throws RoombaIFException {
+        if (state == State.NEW || state == State.CLOSED) {
+            state = State.CLOSED;
+            return;
+        }
+        stop();
+        state = State.CLOSED;
+        driveCommandHandler.setEnabled(false);
+        motorsCommandHandler.setEnabled(false);
+        outputDispatcher.detach();
+        outputDispatcher.logCosts(name);
+        sensorInputAdapter.setEnabled(false);
+        sensorInputAdapter.detach();
+        logger.info("input-link-changes-per-cycle robot={} mean={}", name,
+                sensorInputAdapter.getMeanChangeCount());
+        if (edgeMap != null) {
+            edgeMap.stop();
+            logger.info("edge-map robot={} cells={} coverage={}", new Object[]{name,
+                edgeMap.getCellCount(), edgeMap.getCoverage()});
+        }
+        if (runRecorder != null) {
+            runRecorder.stop(agent.getProperties().get(SoarProperties.D_CYCLE_COUNT));
+        }
+        agent.dispose();
+        try {
+            roomba.driveCommand((short) 0, (short) 0);
+        } finally {
+            roomba.closeIF();
+            if (recorder != null) {
+                roomba.setRecorder(null);
+                recorder.close();
+            }
+            try {
+                roomba.getMetrics().unregisterMBean(mbeanName);
+            } catch (JMException ex) {
+                logger.warn("metrics-mbean-failed robot={}", name, ex);
+            }
+        }
+        LatencyMonitor latency = roomba.getLatencyMonitor();
+        for (LatencyMonitor.Stage stage : LatencyMonitor.Stage.values()) {
+            logger.info("latency-us robot={} stage={} {}", new Object[]{name,
+                stage.name().toLowerCase(), latency.getHistogram(stage)});
+        }
+        logger.info("robot-closed robot={}", name);
+    }
+
+    /**
+     * Record the robot's runs in a history. Takes effect when the robot is
+     * opened.
+     *
+     * @param history the history, opened, or null
+     */
+    public void setHistory(RunHistory history) {
+        this.history = history;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if the agent has halted, in which case the robot cannot be
+     * started again
+     */
+    public boolean isHalted() {
+        return halted;
+    }
+
+    public RoombaIF getRoomba() {
+        return roomba;
+    }
+
+    /**
+     * Get the agent, e.g. to attach it to a ThreadedAgent. Do not use it from
+     * other threads while the robot is running on a pool.
+     *
+     * @return the agent
+     */
+    public Agent getAgent() {
+        return agent;
+    }
+
+    /**
+     * Get the robot's metrics: its Roomba interface's and the agent's
+     * decisions.
+     *
+     * @return the metrics
+     */
+    public MetricsRegistry getMetrics() {
+        return roomba.getMetrics();
+    }
+
+    /* Private helper functions */
+    /**
+     * Stop running a halted agent and stop the Roomba. Called by a Slice
+     * holding runLock, so it must not take the robot's lock as stop does.
+     */
+    private void stopHalted() {
+        state = State.STOPPED;
+        ScheduledFuture<?> run = scheduledRun;
+        if (run != null) {
+            run.cancel(false);
+        }
+        logger.warn("robot-halted robot={} decisions={}", name,
+                agent.getProperties().get(SoarProperties.D_CYCLE_COUNT));
+        try {
+            roomba.driveCommand((short) 0, (short) 0);
+        } catch (RoombaIFException ex) {
+            logger.error("robot-halt-stop-failed robot={}", name, ex);
+        }
+    }
+
+    private void startRecorder() {
+        String directory = System.getProperty("record.dir");
+        if (directory == null) {
+            return;
+        }
+        recorder = new SensorRecorder(new File(directory),
+                name.replaceAll("[^A-Za-z0-9_.-]", "-"),
+                roomba.getSensorPacketsRequested());
+        try {
+            recorder.start();
+            roomba.setRecorder(recorder);
+        } catch (IOException ex) {
+            logger.error("recorder-start-failed robot={} directory={}",
+                    new Object[]{name, directory, ex});
+            recorder = null;
+        }
+    }
+
+    /**
+     * Runs some decisions on a pool thread. Running flat out, it resubmits
+     * itself so that other robots get a turn in between.
+     */
+    private class Slice implements Runnable {
+
+        private final int decisions;
+        private final boolean resubmit;
+
+        Slice(int decisions, boolean resubmit) {
+            this.decisions = decisions;
+            this.resubmit = resubmit;
+        }
+
+        @Override
+        public void run() {
+            synchronized (runLock) {
+                if (state != State.RUNNING) {
+                    return;
+                }
+                try {
+                    agent.runFor(decisions, RunType.DECISIONS);
+                } catch (RuntimeException ex) {
+                    logger.error("robot-run-failed robot={}", name, ex);
+                    state = State.STOPPED;
+                    return;
+                }
+                if (halted) {//runFor would return at once from now on
+                    stopHalted();
+                    return;
+                }
+            }
+            if (resubmit && state == State.RUNNING) {
+                pool.execute(this);
+            }
+        }
+    }
+}
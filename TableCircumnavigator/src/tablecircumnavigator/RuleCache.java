@@ -0,0 +1,317 @@
+package tablecircumnavigator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.SoarException;
+import org.jsoar.kernel.rete.ReteSerializer;
+import org.jsoar.util.commands.SoarCommands;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads Soar rules into agents from a cache of compiled rete networks, rather
+ * than parsing the rules every time.
+ *
+ * A rule file is keyed by the SHA-256 hash of its contents. The first time a
+ * rule file is loaded (a cold load) it is sourced as usual and the agent's
+ * rete network is saved with the ReteSerializer. Every later load of the same
+ * contents (a warm load) replaces the new agent's rete with the saved one,
+ * skipping the parser and the production reorderer. Agents in one JVM share
+ * the saved network in memory; with a cache directory it is also written to
+ * a file named after the hash, so a later launch starts warm. If a saved
+ * network cannot be read, e.g. it was saved by another version of jsoar, the
+ * rules are sourced and the network saved again.
+ *
+ * Only the productions are cached, so only a rule file whose top level
+ * commands are all sp or gp is loaded through the cache. A file that runs any
+ * other command, e.g. to set watch levels or learning, or that sources other
+ * files (whose contents are not in the hash), is always sourced.
+ *
+ * Each load is logged as startup-time-ms with stage=rules-loaded and the
+ * cache state: cold, memory, disk, or bypass for a file that is not cached.
+ *
+ * @author Braden Phillips
+ */
+public class RuleCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(RuleCache.class);
+    private static final String SUFFIX = ".rete";
+    private static RuleCache shared;
+
+    /* Instance variables */
+    private final File directory;
+    private final ConcurrentMap<String, byte[]> networks = new ConcurrentHashMap<String, byte[]>();
+    private volatile long coldLoads = 0;
+    private volatile long warmLoads = 0;
+    private volatile long bypassedLoads = 0;
+
+    /**
+     * Constructor
+     *
+     * @param directory where to keep the saved networks, or null to keep
+     * them in memory only
+     */
+    public RuleCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the cache shared by the robots in this JVM, in the directory named
+     * by the system property rules.cache.dir, if set.
+     *
+     * @return the shared cache
+     */
+    public static synchronized RuleCache getShared() {
+        if (shared == null) {
+            String path = System.getProperty("rules.cache.dir");
+            shared = new RuleCache((path == null) ? null : new File(path));
+        }
+        return shared;
+    }
+
+    /**
+     * Load a rule file into an agent, from the cache if its contents have
+     * been loaded before.
+     *
+     * @param agent an initialized agent with no productions
+     * @param rulesFile the Soar rules
+     * @throws SoarException if the rules cannot be read or sourced
+     */
+    public void load(Agent agent, String rulesFile) throws SoarException {
+        long start = System.nanoTime();
+        byte[] contents;
+        try {
+            contents = readFile(new File(rulesFile));
+        } catch (IOException ex) {
+            throw new SoarException("Cannot read " + rulesFile + ": " + ex.getMessage());
+        }
+        String command = findOtherCommand(new String(contents, StandardCharsets.ISO_8859_1));
+        if (command != null) {
+            SoarCommands.source(agent.getInterpreter(), rulesFile);
+            bypassedLoads++;
+            logger.info("startup-time-ms stage=rules-loaded rules={} cache=bypass command={} productions={} ms={}",
+                    new Object[]{rulesFile, command, agent.getProductions().getProductionCount(),
+                        (System.nanoTime() - start) / 1000000.0});
+            return;
+        }
+        String key = hash(contents);
+        String from = "memory";
+        byte[] network = networks.get(key);
+        if (network == null && directory != null) {
+            network = readNetwork(key);
+            from = "disk";
+        }
+        if (network != null && replace(agent, network, rulesFile)) {
+            networks.putIfAbsent(key, network);
+            warmLoads++;
+        } else {
+            from = "cold";
+            SoarCommands.source(agent.getInterpreter(), rulesFile);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                ReteSerializer.saveRete(agent, out);
+                networks.put(key, out.toByteArray());
+                if (directory != null) {
+                    writeNetwork(key, out.toByteArray());
+                }
+            } catch (IOException ex) {
+                logger.warn("rule-cache-save-failed rules={}", rulesFile, ex);
+            }
+            coldLoads++;
+        }
+        logger.info("startup-time-ms stage=rules-loaded rules={} cache={} productions={} ms={}",
+                new Object[]{rulesFile, from, agent.getProductions().getProductionCount(),
+                    (System.nanoTime() - start) / 1000000.0});
+    }
+
+    /**
+     * @return the number of loads that sourced the rules
+     */
+    public long getColdLoads() {
+        return coldLoads;
+    }
+
+    /**
+     * @return the number of loads from a saved network
+     */
+    public long getWarmLoads() {
+        return warmLoads;
+    }
+
+    /**
+     * @return the number of loads that sourced a file that is not cached
+     */
+    public long getBypassedLoads() {
+        return bypassedLoads;
+    }
+
+    /**
+     * Find the first top level command in a rule file other than sp or gp.
+     * Comments are skipped, as is the body of each production, in braces
+     * (skipping |strings|) or in double quotes.
+     *
+     * @param rules the contents of the file
+     * @return the command, or null if the file only defines productions
+     */
+    static String findOtherCommand(String rules) {
+        int n = rules.length();
+        int i = 0;
+        while (true) {
+            while (i < n && (Character.isWhitespace(rules.charAt(i)) || rules.charAt(i) == ';')) {
+                i++;
+            }
+            if (i == n) {
+                return null;
+            }
+            if (rules.charAt(i) == '#') {
+                while (i < n && rules.charAt(i) != '\n') {
+                    i++;
+                }
+                continue;
+            }
+            int wordStart = i;
+            while (i < n && !Character.isWhitespace(rules.charAt(i))
+                    && "{};\"".indexOf(rules.charAt(i)) < 0) {
+                i++;
+            }
+            String word = rules.substring(wordStart, i);
+            if (!word.equals("sp") && !word.equals("gp")) {
+                return word.isEmpty() ? rules.substring(i, i + 1) : word;
+            }
+            while (i < n && Character.isWhitespace(rules.charAt(i))) {
+                i++;
+            }
+            i = skipBody(rules, i);
+            if (i < 0) {
+                return word + " (unterminated)";
+            }
+        }
+    }
+
+    /**
+     * @return the index after the production body starting at i, or -1
+     */
+    private static int skipBody(String rules, int i) {
+        int n = rules.length();
+        if (i < n && rules.charAt(i) == '"') {
+            for (i++; i < n; i++) {
+                if (rules.charAt(i) == '\\') {
+                    i++;
+                } else if (rules.charAt(i) == '"') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+        if (i == n || rules.charAt(i) != '{') {
+            return -1;
+        }
+        int depth = 0;
+        boolean inString = false;
+        for (; i < n; i++) {
+            char c = rules.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '|') {
+                inString = !inString;
+            } else if (!inString && c == '{') {
+                depth++;
+            } else if (!inString && c == '}' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /* Private helper functions */
+    private boolean replace(Agent agent, byte[] network, String rulesFile) {
+        try {
+            ReteSerializer.replaceRete(agent, new ByteArrayInputStream(network));
+            return true;
+        } catch (IOException ex) {
+            logger.warn("rule-cache-load-failed rules={} error=\"{}\"", rulesFile, ex.getMessage());
+        } catch (SoarException ex) {
+            logger.warn("rule-cache-load-failed rules={} error=\"{}\"", rulesFile, ex.getMessage());
+        }
+        return false;
+    }
+
+    private byte[] readNetwork(String key) {
+        File file = new File(directory, key + SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return readFile(file);
+        } catch (IOException ex) {
+            logger.warn("rule-cache-read-failed file={}", file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Write a network to a temporary file and rename it, so that concurrent
+     * launches never read a partial file.
+     */
+    private void writeNetwork(String key, byte[] network) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = new File(directory, key + SUFFIX);
+        File temp = File.createTempFile(key, ".tmp", directory);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(network);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Cannot rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String hash(byte[] contents) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(contents);
+            StringBuilder key = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package tablecircumnavigator;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A SQLite database of the runs of the robots: a summary of each run, with
+ * downsampled sensor data, the drive commands sent and the events seen
+ * (bumps, cliffs, wheel drops and emergency halts), so that the history of a
+ * fleet can be queried without scanning recordings.
+ *
+ * Rows are queued by the record methods, which never wait, and inserted by a
+ * writer thread in batches, one transaction per batch, with prepared
+ * statements. If the queue is full the row is dropped and counted. A batch
+ * that cannot be written is rolled back and its rows counted as dropped, and
+ * the writer goes on to the next. Run IDs are random, taken from a UUID, so
+ * that a run can be started without waiting for the database and processes
+ * sharing a database do not reuse each other's IDs.
+ *
+ * The database is put in WAL mode where the SQLite library supports it, so
+ * that queries do not stall the writer. Older libraries (before 3.7.0) keep
+ * the rollback journal.
+ *
+ * Tables:
+ * <pre>
+ *   runs     (run_id, robot, port, packets, started, ended, frames,
+ *             decisions, drive_commands, bumps, cliffs, wheel_drops,
+ *             emergency_halts)
+ *   samples  (run_id, time, sequence, sensor_values)
+ *   commands (run_id, time, velocity, radius)
+ *   events   (run_id, time, type, detail)
+ * </pre>
+ * Times are in ms since the epoch. sensor_values holds the values of the
+ * run's packets, in order, as big-endian ints.
+ *
+ * @author Braden Phillips
+ */
+public class RunHistory {
+
+    private static final Logger logger = LoggerFactory.getLogger(RunHistory.class);
+
+    /* Event types */
+    public static final String BUMP = "bump";
+    public static final String CLIFF = "cliff";
+    public static final String WHEEL_DROP = "wheel-drop";
+    public static final String EMERGENCY_HALT = "emergency-halt";
+
+    /* Writer parameters */
+    public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+    private static final int BATCH_SIZE = 512;
+    private static final long FLUSH_MILLIS = 250;
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS runs (run_id INTEGER PRIMARY KEY, robot TEXT,"
+        + " port TEXT, packets TEXT, started INTEGER, ended INTEGER, frames INTEGER,"
+        + " decisions INTEGER, drive_commands INTEGER, bumps INTEGER, cliffs INTEGER,"
+        + " wheel_drops INTEGER, emergency_halts INTEGER)",
+        "CREATE INDEX IF NOT EXISTS runs_started ON runs (started)",
+        "CREATE INDEX IF NOT EXISTS runs_robot ON runs (robot, started)",
+        "CREATE TABLE IF NOT EXISTS samples (run_id INTEGER, time INTEGER,"
+        + " sequence INTEGER, sensor_values BLOB)",
+        "CREATE INDEX IF NOT EXISTS samples_run_time ON samples (run_id, time)",
+        "CREATE TABLE IF NOT EXISTS commands (run_id INTEGER, time INTEGER,"
+        + " velocity INTEGER, radius INTEGER)",
+        "CREATE INDEX IF NOT EXISTS commands_run_time ON commands (run_id, time)",
+        "CREATE TABLE IF NOT EXISTS events (run_id INTEGER, time INTEGER,"
+        + " type TEXT, detail TEXT)",
+        "CREATE INDEX IF NOT EXISTS events_run_time ON events (run_id, time)",
+        "CREATE INDEX IF NOT EXISTS events_time ON events (time)",
+        "CREATE INDEX IF NOT EXISTS events_type_time ON events (type, time)"
+    };
+
+    /**
+     * An event read back from the database.
+     */
+    public static class Event {
+
+        public final long runId;
+        public final String robot;
+        public final long time;
+        public final String type;
+        public final String detail;
+
+        Event(long runId, String robot, long time, String type, String detail) {
+            this.runId = runId;
+            this.robot = robot;
+            this.time = time;
+            this.type = type;
+            this.detail = detail;
+        }
+
+        @Override
+        public String toString() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(time))
+                    + " run=" + runId + " robot=" + robot + " type=" + type
+                    + ((detail != null) ? " detail=" + detail : "");
+        }
+    }
+
+    /* Row kinds */
+    private static final int RUN_STARTED = 0;
+    private static final int RUN_ENDED = 1;
+    private static final int SAMPLE = 2;
+    private static final int COMMAND = 3;
+    private static final int EVENT = 4;
+
+    /**
+     * A row waiting to be written.
+     */
+    private static class Row {
+
+        final int kind;
+        final long runId;
+        final long time;
+        final Object[] columns;
+
+        Row(int kind, long runId, long time, Object... columns) {
+            this.kind = kind;
+            this.runId = runId;
+            this.time = time;
+            this.columns = columns;
+        }
+    }
+
+    /* Instance variables */
+    private final String url;
+    private final BlockingQueue<Row> queue;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private Connection connection;
+    private String journalMode;
+    private volatile boolean running = false;
+    private volatile boolean failed = false;
+    private Thread writerThread;
+    private volatile long writtenCount = 0;
+    private volatile long batchCount = 0;
+    private volatile long failedBatchCount = 0;
+
+    /**
+     * Constructor
+     *
+     * @param path the database file, created if it does not exist
+     */
+    public RunHistory(String path) {
+        this(path, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param path the database file, created if it does not exist
+     * @param queueCapacity the number of rows that may wait to be written
+     */
+    public RunHistory(String path, int queueCapacity) {
+        url = "jdbc:sqlite:" + path;
+        queue = new ArrayBlockingQueue<Row>(queueCapacity);
+    }
+
+    /**
+     * Open the database, create the tables and indexes it lacks and start the
+     * writer thread.
+     *
+     * @throws SQLException
+     */
+    public synchronized void open() throws SQLException {
+        if (running) {
+            return;
+        }
+        connection = connect();
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet result = statement.executeQuery("PRAGMA journal_mode=WAL");
+            journalMode = result.next() ? result.getString(1) : "unknown";
+            result.close();
+            statement.executeUpdate("PRAGMA synchronous=NORMAL");
+            for (String sql : SCHEMA) {
+                statement.executeUpdate(sql);
+            }
+        } finally {
+            statement.close();
+        }
+        connection.setAutoCommit(false);
+        failed = false;
+        running = true;
+        writerThread = new Thread(new Writer(), "Run history writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        logger.info("history-opened url={} journal-mode={}", url, journalMode);
+    }
+
+    /**
+     * Write the rows queued and close the database.
+     */
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        writerThread.interrupt();
+        try {
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (failed) {//Rows queued after the writer failed were never written
+            droppedCount.addAndGet(discardQueue());
+        }
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            logger.warn("history-close-failed url={}", url, ex);
+        }
+        logger.info("history-closed rows={} batches={} failed-batches={} dropped={}",
+                new Object[]{writtenCount, batchCount, failedBatchCount, droppedCount.get()});
+    }
+
+    /**
+     * @return the journal mode SQLite chose: "wal", or the rollback journal
+     * mode where WAL is not supported
+     */
+    public String getJournalMode() {
+        return journalMode;
+    }
+
+    /**
+     * @return the number of rows dropped because the queue was full or their
+     * batch could not be written
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of rows written
+     */
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * @return the number of batches rolled back because they could not be
+     * written
+     */
+    public long getFailedBatchCount() {
+        return failedBatchCount;
+    }
+
+    /**
+     * Start a run.
+     *
+     * @param robot
+     * @param port
+     * @param packets the names of the sensor packets sampled, in order
+     * @return the ID of the run, a random positive long
+     */
+    public long startRun(String robot, String port, String packets) {
+        long runId = UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE;
+        enqueue(new Row(RUN_STARTED, runId, System.currentTimeMillis(),
+                robot, port, packets));
+        return runId;
+    }
+
+    /**
+     * End a run, recording its summary.
+     *
+     * @param runId
+     * @param frames the number of sensor frames received
+     * @param decisions the number of decision cycles run
+     * @param driveCommands the number of drive commands sent
+     * @param bumps the number of bump events
+     * @param cliffs the number of cliff events
+     * @param wheelDrops the number of wheel drop events
+     * @param emergencyHalts the number of emergency halts
+     */
+    public void endRun(long runId, long frames, long decisions, long driveCommands,
+            long bumps, long cliffs, long wheelDrops, long emergencyHalts) {
+        enqueue(new Row(RUN_ENDED, runId, System.currentTimeMillis(), frames,
+                decisions, driveCommands, bumps, cliffs, wheelDrops, emergencyHalts));
+    }
+
+    /**
+     * Record a sample of the sensor data.
+     *
+     * @param runId
+     * @param time in ms since the epoch
+     * @param sequence the frame sequence number
+     * @param values the sensor values, copied
+     */
+    public void recordSample(long runId, long time, long sequence, int[] values) {
+        ByteBuffer blob = ByteBuffer.allocate(4 * values.length);
+        blob.asIntBuffer().put(values);
+        enqueue(new Row(SAMPLE, runId, time, sequence, blob.array()));
+    }
+
+    /**
+     * Record a drive command.
+     *
+     * @param runId
+     * @param time in ms since the epoch
+     * @param velocity in mm/s
+     * @param radius in mm
+     */
+    public void recordCommand(long runId, long time, short velocity, short radius) {
+        enqueue(new Row(COMMAND, runId, time, (int) velocity, (int) radius));
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param runId
+     * @param time in ms since the epoch
+     * @param type BUMP, CLIFF, WHEEL_DROP, EMERGENCY_HALT or another type
+     * @param detail e.g. which sensor, or null
+     */
+    public void recordEvent(long runId, long time, String type, String detail) {
+        enqueue(new Row(EVENT, runId, time, type, detail));
+    }
+
+    /**
+     * Find the events of a type in a period, e.g. the emergency halts in the
+     * last week. Uses a connection of its own, so it may be called while
+     * rows are being written.
+     *
+     * @param type the event type, or null for every type
+     * @param since in ms since the epoch
+     * @param until in ms since the epoch
+     * @return the events, oldest first
+     * @throws SQLException
+     */
+    public List<Event> queryEvents(String type, long since, long until)
+            throws SQLException {
+        String sql = "SELECT e.run_id, r.robot, e.time, e.type, e.detail"
+                + " FROM events e LEFT JOIN runs r ON r.run_id = e.run_id"
+                + " WHERE e.time >= ? AND e.time < ?"
+                + ((type != null) ? " AND e.type = ?" : "")
+                + " ORDER BY e.time";
+        List<Event> events = new ArrayList<Event>();
+        Connection reader = connect();
+        try {
+            PreparedStatement query = reader.prepareStatement(sql);
+            query.setLong(1, since);
+            query.setLong(2, until);
+            if (type != null) {
+                query.setString(3, type);
+            }
+            ResultSet result = query.executeQuery();
+            while (result.next()) {
+                events.add(new Event(result.getLong(1), result.getString(2),
+                        result.getLong(3), result.getString(4), result.getString(5)));
+            }
+            result.close();
+            query.close();
+        } finally {
+            reader.close();
+        }
+        return events;
+    }
+
+    /**
+     * Print the events of a type in the last few days.
+     *
+     * @param args database [type [days]]
+     * @throws SQLException
+     */
+    public static void main(String[] args) throws SQLException {
+        if (args.length < 1) {
+            System.out.println("USAGE: RunHistory database [event_type [days]]");
+            System.out.println();
+            System.out.println("e.g. RunHistory history.db emergency-halt 7");
+            return;
+        }
+        String type = (args.length > 1) ? args[1] : null;
+        double days = (args.length > 2) ? Double.parseDouble(args[2]) : 7;
+        RunHistory history = new RunHistory(args[0]);
+        long now = System.currentTimeMillis();
+        for (Event e : history.queryEvents(type, now - (long) (days * 86400000L), now + 1)) {
+            System.out.println(e);
+        }
+    }
+
+    /* Private helper functions */
+    private Connection connect() throws SQLException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException("The SQLite JDBC driver is not on the classpath", ex);
+        }
+        return DriverManager.getConnection(url);
+    }
+
+    private void enqueue(Row row) {
+        if (!running || failed || !queue.offer(row)) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private int discardQueue() {
+        List<Row> rows = new ArrayList<Row>();
+        queue.drainTo(rows);
+        return rows.size();
+    }
+
+    /**
+     * Writes the queued rows in batches.
+     */
+    private class Writer implements Runnable {
+
+        private final List<Row> batch = new ArrayList<Row>(BATCH_SIZE);
+        private PreparedStatement insertRun;
+        private PreparedStatement updateRun;
+        private PreparedStatement insertSample;
+        private PreparedStatement insertCommand;
+        private PreparedStatement insertEvent;
+
+        @Override
+        public void run() {
+            try {
+                insertRun = connection.prepareStatement("INSERT INTO runs"
+                        + " (run_id, started, robot, port, packets) VALUES (?, ?, ?, ?, ?)");
+                updateRun = connection.prepareStatement("UPDATE runs SET ended = ?,"
+                        + " frames = ?, decisions = ?, drive_commands = ?, bumps = ?,"
+                        + " cliffs = ?, wheel_drops = ?, emergency_halts = ?"
+                        + " WHERE run_id = ?");
+                insertSample = connection.prepareStatement("INSERT INTO samples"
+                        + " (run_id, time, sequence, sensor_values) VALUES (?, ?, ?, ?)");
+                insertCommand = connection.prepareStatement("INSERT INTO commands"
+                        + " (run_id, time, velocity, radius) VALUES (?, ?, ?, ?)");
+                insertEvent = connection.prepareStatement("INSERT INTO events"
+                        + " (run_id, time, type, detail) VALUES (?, ?, ?, ?)");
+                while (running || !queue.isEmpty()) {
+                    try {
+                        Row first = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        batch.add(first);
+                    } catch (InterruptedException ex) {
+                        //Closing: write what is left
+                    }
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    try {
+                        write();
+                    } catch (SQLException ex) {
+                        discardBatch(ex);
+                    }
+                }
+            } catch (SQLException ex) {
+                // The statements could not be prepared. Stay open so that
+                // close still closes the connection, but count the rows that
+                // will never be written
+                failed = true;
+                droppedCount.addAndGet(batch.size() + discardQueue());
+                batch.clear();
+                logger.error("history-writer-failed url={}", url, ex);
+            }
+        }
+
+        private void discardBatch(SQLException cause) {
+            failedBatchCount++;
+            droppedCount.addAndGet(batch.size());
+            logger.error("history-batch-failed url={} rows={} failed-batches={}",
+                    new Object[]{url, batch.size(), failedBatchCount, cause});
+            batch.clear();
+            try {
+                for (PreparedStatement statement : new PreparedStatement[]{
+                    insertRun, updateRun, insertSample, insertCommand, insertEvent}) {
+                    statement.clearBatch();
+                }
+                connection.rollback();
+            } catch (SQLException ex) {
+                logger.warn("history-rollback-failed url={}", url, ex);
+            }
+        }
+
+        private void write() throws SQLException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (Row row : batch) {
+                Object[] c = row.columns;
+                switch (row.kind) {
+                    case RUN_STARTED:
+                        bind(insertRun, row.runId, row.time, c);
+                        break;
+                    case RUN_ENDED:
+                        updateRun.setLong(1, row.time);
+                        for (int i = 0; i < c.length; i++) {
+                            updateRun.setObject(i + 2, c[i]);
+                        }
+                        updateRun.setLong(c.length + 2, row.runId);
+                        updateRun.addBatch();
+                        break;
+                    case SAMPLE:
+                        bind(insertSample, row.runId, row.time, c);
+                        break;
+                    case COMMAND:
+                        bind(insertCommand, row.runId, row.time, c);
+                        break;
+                    default:
+                        bind(insertEvent, row.runId, row.time, c);
+                }
+            }
+            // Runs first, so the rows that follow can be joined to them
+            insertRun.executeBatch();
+            insertSample.executeBatch();
+            insertCommand.executeBatch();
+            insertEvent.executeBatch();
+            updateRun.executeBatch();
+            connection.commit();
+            writtenCount += batch.size();
+            batchCount++;
+            batch.clear();
+        }
+
+        private void bind(PreparedStatement statement, long runId, long time,
+                Object[] columns) throws SQLException {
+            statement.setLong(1, runId);
+            statement.setLong(2, time);
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] instanceof byte[]) {
+                    statement.setBytes(i + 3, (byte[]) columns[i]);
+                } else {
+                    statement.setObject(i + 3, columns[i]);
+                }
+            }
+            statement.addBatch();
+        }
+    }
+}
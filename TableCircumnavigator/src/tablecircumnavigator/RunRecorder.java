@@ -0,0 +1,207 @@
+package tablecircumnavigator;
+
+import java.util.concurrent.Executor;
+import org.jsoar.kernel.events.AfterHaltEvent;
+import org.jsoar.util.events.SoarEvent;
+import org.jsoar.util.events.SoarEventListener;
+import org.jsoar.util.events.SoarEventManager;
+import roombaif.RoombaIF;
+import roombaif.SensorEventBus;
+import roombaif.SensorFrameListener;
+import roombaif.SensorPacket;
+import roombaif.SensorSubscription;
+
+/**
+ * Records one run of a robot in a RunHistory.
+ *
+ * It subscribes to every frame on the Roomba's sensor event bus, on its own
+ * thread (or an executor) rather than the thread reading from the Roomba, and
+ * records:
+ * + a sample of the sensor data every sample period;
+ * + an event when a bumper, wheel drop or cliff sensor is triggered;
+ * + an emergency halt when the agent halts (the table circumnavigator only
+ *   halts in its emergency-halt operator);
+ * + the drive commands passed to driveCommanded.
+ * When the run is stopped its summary is recorded.
+ *
+ * @author Braden Phillips
+ */
+public class RunRecorder implements SensorFrameListener {
+
+    /* Bits of the BUMPS_AND_WHEEL_DROPS packet */
+    private static final int BUMP_RIGHT = 0x1;
+    private static final int BUMP_LEFT = 0x2;
+    private static final int WHEEL_DROP_RIGHT = 0x4;
+    private static final int WHEEL_DROP_LEFT = 0x8;
+
+    private static final SensorPacket[] CLIFF_PACKETS = {
+        SensorPacket.CLIFF_LEFT, SensorPacket.CLIFF_FRONT_LEFT,
+        SensorPacket.CLIFF_FRONT_RIGHT, SensorPacket.CLIFF_RIGHT
+    };
+    private static final String[] CLIFF_LOCATIONS = {
+        "left", "front-left", "front-right", "right"
+    };
+
+    /* Instance variables */
+    private final RunHistory history;
+    private final String robot;
+    private final RoombaIF roomba;
+    private final long sampleMillis;
+    private final int bumpsIndex;
+    private final int[] cliffIndexes = new int[CLIFF_PACKETS.length];
+    private final SoarEventListener haltListener;
+    private SoarEventManager events;
+    private SensorSubscription subscription;
+    private long runId = -1;
+    // Frame state, only touched by the subscriber thread
+    private int lastBumps = 0;
+    private final boolean[] lastCliffs = new boolean[CLIFF_PACKETS.length];
+    private long nextSampleMillis = 0;
+    // Run summary
+    private volatile long driveCount = 0;
+    private volatile long bumpCount = 0;
+    private volatile long cliffCount = 0;
+    private volatile long wheelDropCount = 0;
+    private volatile long haltCount = 0;
+
+    /**
+     * Constructor
+     *
+     * @param history where to record the run
+     * @param robot the name of the robot
+     * @param roomba its Roomba
+     * @param sampleMillis the time between samples of the sensor data, or 0
+     * to record no samples
+     */
+    public RunRecorder(final RunHistory history, String robot, RoombaIF roomba,
+            long sampleMillis) {
+        this.history = history;
+        this.robot = robot;
+        this.roomba = roomba;
+        this.sampleMillis = sampleMillis;
+        SensorPacket[] packets = roomba.getSensorPacketsRequested();
+        bumpsIndex = indexOf(packets, SensorPacket.BUMPS_AND_WHEEL_DROPS);
+        for (int i = 0; i < CLIFF_PACKETS.length; i++) {
+            cliffIndexes[i] = indexOf(packets, CLIFF_PACKETS[i]);
+        }
+        haltListener = new SoarEventListener() {
+            @Override
+            public void onEvent(SoarEvent event) {
+                haltCount++;
+                history.recordEvent(runId, System.currentTimeMillis(),
+                        RunHistory.EMERGENCY_HALT, null);
+            }
+        };
+    }
+
+    /**
+     * Start the run.
+     *
+     * @param events the agent's events, for its halts
+     * @param executor runs the sensor frame subscriber, or null for a thread
+     * of its own
+     */
+    public void start(SoarEventManager events, Executor executor) {
+        StringBuilder packets = new StringBuilder();
+        for (SensorPacket s : roomba.getSensorPacketsRequested()) {
+            packets.append((packets.length() > 0) ? "," : "").append(s.name());
+        }
+        runId = history.startRun(robot, roomba.getPortName(), packets.toString());
+        this.events = events;
+        events.addListener(AfterHaltEvent.class, haltListener);
+        SensorEventBus bus = roomba.getSensorEventBus();
+        subscription = (executor == null)
+                ? bus.subscribe(this, SensorEventBus.OverflowPolicy.DROP_OLDEST, 256)
+                : bus.subscribe(this, SensorEventBus.OverflowPolicy.DROP_OLDEST, 256, executor);
+    }
+
+    /**
+     * Stop the run and record its summary.
+     *
+     * @param decisions the number of decision cycles the agent ran
+     */
+    public void stop(long decisions) {
+        if (subscription == null) {
+            return;
+        }
+        subscription.unsubscribe();
+        subscription = null;
+        events.removeListener(AfterHaltEvent.class, haltListener);
+        history.endRun(runId, roomba.getSensorFrameSequence(), decisions,
+                driveCount, bumpCount, cliffCount, wheelDropCount, haltCount);
+    }
+
+    /**
+     * @return the ID of the run in the history, -1 until started
+     */
+    public long getRunId() {
+        return runId;
+    }
+
+    /**
+     * Record a drive command sent to the Roomba.
+     *
+     * @param velocity in mm/s
+     * @param radius in mm
+     */
+    public void driveCommanded(short velocity, short radius) {
+        driveCount++;
+        history.recordCommand(runId, System.currentTimeMillis(), velocity, radius);
+    }
+
+    @Override
+    public void sensorFrameReceived(long sequence, int[] values) {
+        long now = System.currentTimeMillis();
+        if (bumpsIndex >= 0) {
+            int bumps = values[bumpsIndex];
+            int triggered = bumps & ~lastBumps;
+            lastBumps = bumps;
+            if (triggered != 0) {
+                bumpsTriggered(now, triggered);
+            }
+        }
+        for (int i = 0; i < cliffIndexes.length; i++) {
+            if (cliffIndexes[i] >= 0) {
+                boolean cliff = values[cliffIndexes[i]] != 0;
+                if (cliff && !lastCliffs[i]) {
+                    cliffCount++;
+                    history.recordEvent(runId, now, RunHistory.CLIFF, CLIFF_LOCATIONS[i]);
+                }
+                lastCliffs[i] = cliff;
+            }
+        }
+        if (sampleMillis > 0 && now >= nextSampleMillis) {
+            nextSampleMillis = now + sampleMillis;
+            history.recordSample(runId, now, sequence, values);
+        }
+    }
+
+    /* Private helper functions */
+    private void bumpsTriggered(long now, int triggered) {
+        if ((triggered & BUMP_RIGHT) != 0) {
+            bumpCount++;
+            history.recordEvent(runId, now, RunHistory.BUMP, "right");
+        }
+        if ((triggered & BUMP_LEFT) != 0) {
+            bumpCount++;
+            history.recordEvent(runId, now, RunHistory.BUMP, "left");
+        }
+        if ((triggered & WHEEL_DROP_RIGHT) != 0) {
+            wheelDropCount++;
+            history.recordEvent(runId, now, RunHistory.WHEEL_DROP, "right");
+        }
+        if ((triggered & WHEEL_DROP_LEFT) != 0) {
+            wheelDropCount++;
+            history.recordEvent(runId, now, RunHistory.WHEEL_DROP, "left");
+        }
+    }
+
+    private static int indexOf(SensorPacket[] packets, SensorPacket packet) {
+        for (int i = 0; i < packets.length; i++) {
+            if (packets[i] == packet) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,338 @@
+package tablecircumnavigator;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.jsoar.kernel.events.InputEvent;
+import org.jsoar.kernel.io.quick.QMemory;
+import org.jsoar.util.events.SoarEvent;
+import org.jsoar.util.events.SoarEventListener;
+import org.jsoar.util.events.SoarEventManager;
+import roombaif.PoseEstimator;
+import roombaif.RoombaIF;
+import roombaif.SensorEventBus;
+import roombaif.SensorFrameListener;
+import roombaif.SensorSubscription;
+
+/**
+ * Copies sensor data to the input-link once per decision cycle.
+ *
+ * The Roomba may stream several frames between two input phases of the
+ * agent. Rather than update Quick Memory for each of them, this adapter
+ * listens for the agent's InputEvent and copies only the latest frame, as
+ * described by an InputLinkMapping, writing only the values that changed.
+ *
+ * So that short events are not lost between input phases, it also
+ * subscribes to every frame on the Roomba's sensor event bus and ORs together
+ * the raw values of latched packets (see InputLinkMapping). A bump that lasts
+ * for a single frame is therefore seen by the agent for one decision cycle.
+ *
+ * If a pose output is set and the Roomba streams odometry, the pose estimated
+ * by its PoseEstimator is written too, as x and y in mm and heading in
+ * degrees. A value is only rewritten once it has moved by its resolution
+ * from the value last written, so a slowly moving robot does not change the
+ * input-link on every cycle.
+ *
+ * If an edge map output is set, the distance to the nearest known edge ahead
+ * and the fraction of the perimeter found are written from an EdgeMap, each
+ * rewritten only when it changes by its resolution.
+ *
+ * Each new frame written is reported to the Roomba's LatencyMonitor, so that
+ * the drive commands that follow are attributed to it.
+ *
+ * Attach the adapter before the SoarQMemoryAdapter so that its Quick Memory
+ * changes are synchronised with working memory in the same input phase.
+ *
+ * @author Braden Phillips
+ */
+public class SensorInputAdapter implements SoarEventListener {
+
+    /* Instance variables */
+    private final RoombaIF roomba;
+    private final InputLinkMapping mapping;
+    private final QMemory qmemory;
+    private final int[] latchedPackets;
+    private final AtomicIntegerArray latchedValues;
+    private final int[] sensorData;
+    private SoarEventManager events;
+    private SensorSubscription subscription;
+    private long lastSequence = -1;
+    private int lastLatchedBits = 0;
+    private final double[] pose = new double[3];
+    private final double[] poseWritten = new double[3];
+    private String[] posePaths;
+    private double[] poseResolutions;
+    private long lastPoseSequence = -1;
+    private EdgeMap edgeMap;
+    private String edgeAheadPath;
+    private String coveragePath;
+    private double edgeRange;
+    private double edgeResolution;
+    private int edgeAheadWritten;
+    private double coverageWritten;
+    private volatile boolean enabled = true;
+    private volatile int lastChangeCount = 0;
+    private volatile long totalChangeCount = 0;
+    private volatile long cycleCount = 0;
+
+    /**
+     * Constructor. Writes the static structure of the mapping and zeroed
+     * values to qmemory.
+     *
+     * @param roomba
+     * @param mapping
+     * @param qmemory
+     */
+    public SensorInputAdapter(RoombaIF roomba, InputLinkMapping mapping,
+            QMemory qmemory) {
+        this.roomba = roomba;
+        this.mapping = mapping;
+        this.qmemory = qmemory;
+        int n = mapping.getSensorPackets().length;
+        int latchCount = 0;
+        for (int i = 0; i < n; i++) {
+            latchCount += mapping.isLatched(i) ? 1 : 0;
+        }
+        latchedPackets = new int[latchCount];
+        for (int i = 0, j = 0; i < n; i++) {
+            if (mapping.isLatched(i)) {
+                latchedPackets[j++] = i;
+            }
+        }
+        latchedValues = new AtomicIntegerArray(n);
+        sensorData = new int[n];
+        mapping.writeStatic(qmemory);
+        mapping.update(sensorData, qmemory);
+    }
+
+    /**
+     * Start updating the input-link on every input phase.
+     *
+     * @param events the agent's event manager
+     */
+    public void attach(SoarEventManager events) {
+        attach(events, null);
+    }
+
+    /**
+     * Start updating the input-link on every input phase, latching frames on
+     * a shared executor.
+     *
+     * @param events the agent's event manager
+     * @param executor delivers frames to the latch, or null for a thread of
+     * its own
+     */
+    public void attach(SoarEventManager events, Executor executor) {
+        this.events = events;
+        events.addListener(InputEvent.class, this);
+        if (latchedPackets.length > 0) {
+            subscription = (executor == null)
+                    ? roomba.getSensorEventBus().subscribe(new Latch(),
+                    SensorEventBus.OverflowPolicy.DROP_OLDEST, 16)
+                    : roomba.getSensorEventBus().subscribe(new Latch(),
+                    SensorEventBus.OverflowPolicy.DROP_OLDEST, 16, executor);
+        }
+    }
+
+    /**
+     * Stop updating the input-link.
+     */
+    public void detach() {
+        if (events != null) {
+            events.removeListener(InputEvent.class, this);
+            events = null;
+        }
+        if (subscription != null) {
+            subscription.unsubscribe();
+            subscription = null;
+        }
+    }
+
+    /**
+     * Write the estimated pose of the Roomba to the input-link, if its sensor
+     * stream includes odometry. Call before attaching.
+     *
+     * @param path the Quick Memory path under which to write x, y and heading
+     * @param resolutionMm the change in x or y for which it is rewritten
+     * @param resolutionDegrees the change in heading for which it is
+     * rewritten
+     * @return true if the pose is available and will be written
+     */
+    public boolean setPoseOutput(String path, double resolutionMm,
+            double resolutionDegrees) {
+        if (!roomba.getPoseEstimator().isAvailable()) {
+            return false;
+        }
+        posePaths = new String[]{path + ".x", path + ".y", path + ".heading"};
+        poseResolutions = new double[]{resolutionMm, resolutionMm, resolutionDegrees};
+        for (int i = 0; i < posePaths.length; i++) {
+            poseWritten[i] = 0;
+            qmemory.setDouble(posePaths[i], 0);
+        }
+        return true;
+    }
+
+    /**
+     * Write a summary of an edge map to the input-link: path.edge-ahead, the
+     * distance in mm to the nearest known edge ahead (-1 if none is known
+     * within range), and path.coverage, the fraction of the perimeter found,
+     * in steps of 0.05. Call before attaching.
+     *
+     * @param path the Quick Memory path under which to write the summary
+     * @param map the edge map
+     * @param rangeMm how far ahead to look for an edge
+     * @param resolutionMm the change in edge-ahead for which it is rewritten
+     */
+    public void setEdgeMapOutput(String path, EdgeMap map, double rangeMm,
+            double resolutionMm) {
+        edgeMap = map;
+        edgeAheadPath = path + ".edge-ahead";
+        coveragePath = path + ".coverage";
+        edgeRange = rangeMm;
+        edgeResolution = Math.max(1, resolutionMm);
+        edgeAheadWritten = -1;
+        coverageWritten = 0;
+        qmemory.setInteger(edgeAheadPath, edgeAheadWritten);
+        qmemory.setDouble(coveragePath, coverageWritten);
+    }
+
+    /**
+     * Enable or disable updates without detaching, e.g. while shutting down.
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Update the input-link from the latest frame. Called on the agent thread
+     * at the start of every input phase.
+     *
+     * @param event
+     */
+    @Override
+    public void onEvent(SoarEvent event) {
+        if (!enabled) {
+            return;
+        }
+        long sequence = roomba.readSensorData(sensorData);
+        int latchedBits = 0;
+        for (int i : latchedPackets) {
+            int latched = latchedValues.getAndSet(i, 0);
+            sensorData[i] |= latched;
+            latchedBits |= latched;
+        }
+        int changes = 0;
+        // Update if there is a new frame, or latched values are to be
+        // written or were written last time and must now be cleared
+        if (sequence != lastSequence || (latchedBits | lastLatchedBits) != 0) {
+            changes = mapping.update(sensorData, qmemory);
+            if (sequence != lastSequence) {
+                roomba.getLatencyMonitor().frameInput(sequence);
+            }
+            lastSequence = sequence;
+        }
+        lastLatchedBits = latchedBits;
+        if (posePaths != null) {
+            changes += updatePose();
+        }
+        if (edgeMap != null) {
+            changes += updateEdgeMap();
+        }
+        lastChangeCount = changes;
+        totalChangeCount += changes;
+        cycleCount++;
+    }
+
+    /**
+     * Get the number of input-link values changed in the latest input phase.
+     *
+     * @return the number of values written
+     */
+    public int getLastChangeCount() {
+        return lastChangeCount;
+    }
+
+    /**
+     * Get the mean number of input-link values changed per input phase.
+     *
+     * @return the mean number of values written
+     */
+    public double getMeanChangeCount() {
+        long cycles = cycleCount;
+        return (cycles == 0) ? 0.0 : (double) totalChangeCount / cycles;
+    }
+
+    /**
+     * Rewrite the pose values that have moved by their resolution.
+     *
+     * @return the number of values written
+     */
+    private int updatePose() {
+        long sequence = roomba.getPoseEstimator().readPose(pose);
+        if (sequence == lastPoseSequence) {
+            return 0;
+        }
+        lastPoseSequence = sequence;
+        pose[PoseEstimator.HEADING] = Math.toDegrees(pose[PoseEstimator.HEADING]);
+        int changes = 0;
+        for (int i = 0; i < posePaths.length; i++) {
+            double change = Math.abs(pose[i] - poseWritten[i]);
+            if (i == PoseEstimator.HEADING && change > 180) {
+                change = 360 - change;
+            }
+            if (change >= poseResolutions[i]) {
+                double r = poseResolutions[i];
+                double value = (r > 0) ? Math.rint(pose[i] / r) * r : pose[i];
+                poseWritten[i] = value;
+                qmemory.setDouble(posePaths[i], value);
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Rewrite the edge map summary values that have changed.
+     *
+     * @return the number of values written
+     */
+    private int updateEdgeMap() {
+        int changes = 0;
+        double ahead = edgeMap.edgeAhead(edgeRange);
+        // Round down, so the edge is never further than written
+        int value = (ahead < 0) ? -1 : (int) (Math.floor(ahead / edgeResolution) * edgeResolution);
+        if (value != edgeAheadWritten) {
+            edgeAheadWritten = value;
+            qmemory.setInteger(edgeAheadPath, value);
+            changes++;
+        }
+        double coverage = Math.rint(edgeMap.getCoverage() * 20) / 20;
+        if (coverage != coverageWritten) {
+            coverageWritten = coverage;
+            qmemory.setDouble(coveragePath, coverage);
+            changes++;
+        }
+        return changes;
+    }
+
+    /**
+     * ORs every frame's latched packets into latchedValues.
+     */
+    private class Latch implements SensorFrameListener {
+
+        @Override
+        public void sensorFrameReceived(long sequence, int[] values) {
+            for (int i : latchedPackets) {
+                int v = values[i];
+                if (v == 0) {
+                    continue;
+                }
+                int old;
+                do {
+                    old = latchedValues.get(i);
+                } while (!latchedValues.compareAndSet(i, old, old | v));
+            }
+        }
+    }
+}
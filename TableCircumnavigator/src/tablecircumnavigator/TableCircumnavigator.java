@@ -1,11 +1,20 @@
 package tablecircumnavigator;
 
+import java.io.File;
 import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.jsoar.runtime.ThreadedAgent;
+import org.jsoar.kernel.RunType;
 import org.jsoar.kernel.SoarException;
-import org.jsoar.kernel.io.quick.*;
-import org.jsoar.util.commands.*;
-import org.jsoar.kernel.io.beans.*;
+import org.jsoar.kernel.events.StopEvent;
+import org.jsoar.util.events.SoarEvent;
+import org.jsoar.util.events.SoarEventListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import roombaif.*;
 
@@ -14,16 +23,17 @@ import roombaif.*;
  * + launch an agent;
  * + connect to a Roomba;
  * + connect the Roomba's sensors to the agent's input link using Quick Memory;
- * + and send commands from the agent's output link to the Roomba using SoarBeans.
+ * + and send commands from the agent's output link to the Roomba through an OutputDispatcher.
  * 
  * @author Braden Phillips
  */
 public class TableCircumnavigator {
 
-    static private RoombaIF roomba;             // An interface to a Roomba
-    static private ThreadedAgent navigator;     // A Soar agent running in its own thread
-    static private QMemory qmemory;             // Quick memory interface to agent input-link
-    static private boolean shuttingDown = false;
+    private static final Logger logger = LoggerFactory.getLogger(TableCircumnavigator.class);
+    static private Robot robot;                 // A Roomba wired to a Soar agent
+    static private ThreadedAgent navigator;     // Runs the robot's agent in its own thread
+    static private RunHistory history;          // Where runs are recorded, or null
+    static private boolean shutdownComplete = false;
 
     /**
      * @param args the command line arguments
@@ -31,134 +41,188 @@ public class TableCircumnavigator {
      * @throws InterruptedException
      * @throws java.io.IOException 
      * @throws RoombaIFException  
+     * @throws SQLException
      */
     public static void main(String[] args)
             throws SoarException, InterruptedException, java.io.IOException,
-            RoombaIFException {
+            RoombaIFException, SQLException {
 
         if (args.length != 1) {
             System.out.println("USAGE: TableCircumnavigator serial_port");
             System.out.println();
             System.out.println("e.g. for Windows, serial_port = COM1");
             System.out.println("     for Linux, serial_port = /dev/ttyS0");
-            System.out.println("     for a simulated roomba, serial_port = dummy");
+            System.out.println("     for a dummy roomba with an input window, serial_port = dummy");
+            System.out.println("     for a headless simulated roomba, serial_port = sim");
+            System.out.println("       (set -Dsim.table=\"x,y x,y ...\" for the table outline in mm,");
+            System.out.println("        -Dsim.start=x,y,degrees and -Dsim.speedup=n, 0 for flat out)");
+            System.out.println("     to replay a recording, serial_port = replay:directory/prefix");
+            System.out.println("       (set -Dreplay.speedup=n, 0 for flat out)");
+            System.out.println("     set -Drecord.dir=directory to record the sensors and commands");
+            System.out.println("     set -Dhistory.db=file to keep a history of runs in SQLite");
+            System.out.println("     set -Drun.headless=true to run at once without the debugger");
+            System.out.println("       (and -Drun.max.decisions=n, -Drun.max.seconds=n to limit the run)");
             return;
         }
+        boolean headless = Boolean.getBoolean("run.headless");
+        if (headless) {
+            if (args[0].equalsIgnoreCase("dummy")) {
+                System.out.println("The dummy roomba needs a window: it cannot run headless");
+                return;
+            }
+            System.setProperty("java.awt.headless", "true");
+        }
 
-        // Create a new Soar agent to run in its own thread
-        openSoar();
-
-        // Load some Soar productions
-        SoarCommands.source(navigator.getInterpreter(), "soar/table-circumnavigator.soar");
-
-        // Connect to the Roomba
-        openRoomba(args[0]);
+        // Connect to the Roomba, streaming the sensors named in the mapping,
+        // and wire it to a new Soar agent loaded with some productions
+        InputLinkMapping inputLinkMapping = InputLinkMapping.load(Robot.MAPPING);
+        robot = new Robot("Table Circumnavigator",
+                createRoomba(args[0], inputLinkMapping.getSensorPackets(), 0),
+                inputLinkMapping);
+        history = openHistory();
+        robot.setHistory(history);
+        robot.open(Robot.RULES, null);
+        logger.info("startup-time-ms stage=robot-opened ms-since-jvm-start={}",
+                ManagementFactory.getRuntimeMXBean().getUptime());
+
+        // Run the agent in its own thread
+        navigator = ThreadedAgent.attach(robot.getAgent());
+        navigator.getPrinter().pushWriter(new OutputStreamWriter(System.out));
 
-        // Launch the debugger - the agent can be run from there
-        navigator.openDebuggerAndWait();
-        // Start the agent running. Returns immediately.
-        // navigator.runForever();
+        if (headless) {
+            runHeadless(Long.getLong("run.max.decisions", 0),
+                    Long.getLong("run.max.seconds", 0));
+        } else {
+            // Launch the debugger - the agent can be run from there
+            navigator.openDebuggerAndWait();
 
-        System.out.println();
-        System.out.println("Press enter to exit...");
-        System.in.read();
-        shuttingDown = true;
-        navigator.dispose();
-        roomba.driveCommand((short) 0, (short) 0);
-        roomba.closeIF();
-        System.out.println("Done.");
+            System.out.println();
+            System.out.println("Press enter to exit...");
+            System.in.read();
+        }
+        shutdown();
     }
 
-    private static class DriveCommandHandler implements SoarBeanOutputHandler<DriveCommand> {
-
-        @Override
-        public void handleOutputCommand(SoarBeanOutputContext context, DriveCommand driveCommand) {
-            if (shuttingDown) {
-                return;
+    /**
+     * Run the agent without the debugger until it stops itself, a run limit
+     * is reached or the JVM is shut down (e.g. by Ctrl-C or SIGTERM), which
+     * stops the Roomba.
+     *
+     * @param maxDecisions the decision cycles to run, or 0 for no limit
+     * @param maxSeconds the time to run, or 0 for no limit
+     * @throws InterruptedException
+     */
+    private static void runHeadless(long maxDecisions, long maxSeconds)
+            throws InterruptedException {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final String[] reason = new String[1];
+        robot.getAgent().getEvents().addListener(StopEvent.class, new SoarEventListener() {
+            @Override
+            public void onEvent(SoarEvent event) {
+                reason[0] = robot.getAgent().getReasonForStop();
+                stopped.countDown();
             }
-            short velocity = (short) driveCommand.velocity;
-            short radius = (short) driveCommand.radius;
-            context.setStatus("complete");//place a ^status complete annotation on the command
-            System.out.println();
-            System.out.println("Received a drive command: ");
-            System.out.println("    Velocity: " + velocity);
-            System.out.println("    Radius: " + radius);
-
-            try {
-                roomba.driveCommand(velocity, radius);
-            } catch (RoombaIFException ex) {
-                System.err.println(ex);
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        }, "Table Circumnavigator shutdown"));
+
+        // Without the debugger nothing else starts the agent's thread
+        navigator.initialize();
+        if (maxDecisions > 0) {
+            navigator.runFor(maxDecisions, RunType.DECISIONS);
+        } else {
+            navigator.runForever();
+        }
+        logger.info("run-started max-decisions={} max-seconds={}", maxDecisions, maxSeconds);
+        if (maxSeconds > 0) {
+            if (!stopped.await(maxSeconds, TimeUnit.SECONDS)) {
+                reason[0] = "run.max.seconds reached";
+                navigator.stop();
             }
+        } else {
+            stopped.await();
+        }
+        if (reason[0] == null) {
+            reason[0] = "run.max.decisions reached";
         }
+        logger.info("run-stopped reason=\"{}\" decisions={}", reason[0],
+                robot.getMetrics().getValue("decisions"));
     }
 
-    private static class SensorPacketReceiver implements SensorPacketListener {
-
-        private final int BumpRight = 0x1;
-        private final int BumpLeft = 0x2;
-        private final int WheelDropRight = 0x4;
-        private final int WheelDropLeft = 0x8;
-
-        @Override
-        public void sensorPacketReceived() {
-            if (shuttingDown) {
-                return;
-            }
-            int[] sensorData = roomba.getSensorData();
-            qmemory.setString("bump[0].location", "right");
-            qmemory.setInteger("bump[0].value", ((sensorData[0] & BumpRight) > 0) ? 1 : 0);
-            qmemory.setString("bump[1].location", "left");
-            qmemory.setInteger("bump[1].value", ((sensorData[0] & BumpLeft) > 0) ? 1 : 0);
-            qmemory.setString("wheel-drop[0].location", "right");
-            qmemory.setInteger("wheel-drop[0].value", ((sensorData[0] & WheelDropRight) > 0) ? 1 : 0);
-            qmemory.setString("wheel-drop[1].location", "left");
-            qmemory.setInteger("wheel-drop[1].value", ((sensorData[0] & WheelDropLeft) > 0) ? 1 : 0);
-            qmemory.setString("cliff[0].location", "left");
-            qmemory.setInteger("cliff[0].value", sensorData[1]);
-            qmemory.setString("cliff[1].location", "front-left");
-            qmemory.setInteger("cliff[1].value", sensorData[2]);
-            qmemory.setString("cliff[2].location", "front-right");
-            qmemory.setInteger("cliff[2].value", sensorData[3]);
-            qmemory.setString("cliff[3].location", "right");
-            qmemory.setInteger("cliff[3].value", sensorData[4]);
-            qmemory.setInteger("stasis.value", sensorData[5]);
-//            System.out.println("Received a sensor packet");
+    /**
+     * Stop the agent and the Roomba, and close the run history. Only the
+     * first call does anything, so it is safe from a shutdown hook.
+     */
+    private static synchronized void shutdown() {
+        if (shutdownComplete) {
+            return;
+        }
+        shutdownComplete = true;
+        navigator.detach();
+        try {
+            robot.close();
+        } catch (RoombaIFException ex) {
+            logger.error("robot-close-failed", ex);
+        }
+        if (history != null) {
+            history.close();
         }
+        logger.info("shutdown-complete");
     }
 
-    private static void openRoomba(String port) throws RoombaIFException {
-        SensorPacket[] sensorPackets = {
-            SensorPacket.BUMPS_AND_WHEEL_DROPS,
-            SensorPacket.CLIFF_LEFT,
-            SensorPacket.CLIFF_FRONT_LEFT,
-            SensorPacket.CLIFF_FRONT_RIGHT,
-            SensorPacket.CLIFF_RIGHT,
-            SensorPacket.STASIS
-        };
+    /**
+     * Open the run history named by the system property history.db.
+     *
+     * @return the history, or null if the property is not set
+     * @throws SQLException
+     */
+    static RunHistory openHistory() throws SQLException {
+        String path = System.getProperty("history.db");
+        if (path == null) {
+            return null;
+        }
+        RunHistory history = new RunHistory(path);
+        history.open();
+        return history;
+    }
 
+    /**
+     * Create the interface to a Roomba.
+     *
+     * @param port a serial port, "dummy", "sim" or "replay:directory/prefix"
+     * @param sensorPackets the sensor packets to stream
+     * @param index of the Roomba in a fleet. A simulated Roomba's heading is
+     * turned by 37 degrees for each, so a fleet does not move in step.
+     * @return the interface, not yet opened
+     */
+    static RoombaIF createRoomba(String port, SensorPacket[] sensorPackets, int index) {
         if (port.equalsIgnoreCase("dummy")) {
-            roomba = new RoombaDummyIF(sensorPackets);
+            return new RoombaDummyIF(sensorPackets);
+
+        } else if (port.equalsIgnoreCase("sim")) {
+            SimTable table = new SimTable(SimTable.parsePolygon(
+                    System.getProperty("sim.table", "0,0 1200,0 1200,800 0,800")));
+            String[] pose = System.getProperty("sim.start", "600,400,0").split(",");
+            double speedup = Double.parseDouble(System.getProperty("sim.speedup", "1"));
+            long framePeriod = (speedup > 0)
+                    ? (long) (RoombaSimIF.REAL_TIME_FRAME_PERIOD_NANOS / speedup) : 0;
+            return new RoombaSimIF(sensorPackets, table,
+                    Double.parseDouble(pose[0]), Double.parseDouble(pose[1]),
+                    Math.toRadians(Double.parseDouble(pose[2]) + 37 * index), framePeriod);
+
+        } else if (port.startsWith("replay:")) {
+            File recording = new File(port.substring("replay:".length()));
+            File directory = recording.getAbsoluteFile().getParentFile();
+            double speedup = Double.parseDouble(System.getProperty("replay.speedup", "1"));
+            return new RoombaReplayIF(SensorRecorder.listSegments(directory,
+                    recording.getName()), sensorPackets, speedup);
 
         } else {
-            roomba = new RoombaSerialIF(port, sensorPackets);
+            return new RoombaSerialIF(port, sensorPackets);
         }
-        roomba.openIF(true);
-        roomba.addSensorPacketListener(new SensorPacketReceiver());
-    }
-
-    private static void openSoar() {
-        navigator = ThreadedAgent.create();
-        navigator.initialize();
-        navigator.setName("Table Circumnavigator");
-        navigator.getPrinter().pushWriter(new OutputStreamWriter(System.out));
-        // Use the Quick Input framework for input to the agent
-        // https://github.com/soartech/jsoar/wiki/JSoarInput
-        qmemory = DefaultQMemory.create();
-        SoarQMemoryAdapter adapter = SoarQMemoryAdapter.attach(
-                navigator.getInputOutput(), null, qmemory);
-        // Handle output commands from the agent.
-        final SoarBeanOutputManager manager = new SoarBeanOutputManager(navigator.getEvents());
-        final SoarBeanOutputHandler<DriveCommand> driveCommandHandler = new DriveCommandHandler();
-        manager.registerHandler("drive", driveCommandHandler, DriveCommand.class);
     }
 }
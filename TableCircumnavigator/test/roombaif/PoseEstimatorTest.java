@@ -0,0 +1,126 @@
+package roombaif;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks dead reckoning from the encoder counts, across their wraparound,
+ * and from distance and angle.
+ *
+ * @author Braden Phillips
+ */
+public class PoseEstimatorTest {
+
+    private static final SensorPacket[] ENCODERS = {
+        SensorPacket.LEFT_ENCODER_COUNTS, SensorPacket.RIGHT_ENCODER_COUNTS
+    };
+    private static final SensorPacket[] DISTANCE_ANGLE = {
+        SensorPacket.DISTANCE, SensorPacket.ANGLE
+    };
+    private static final double MM = 1e-6;
+
+    @Test
+    public void drivesStraightAcrossTheWrap() {
+        PoseEstimator estimator = new PoseEstimator(ENCODERS);
+        assertTrue(estimator.usesEncoders());
+        int count = 65500;
+        estimator.update(new int[]{count, count});
+        for (int i = 0; i < 10; i++) {
+            count = (count + 10) & 0xffff;
+            estimator.update(new int[]{count, count});
+        }
+        double[] pose = new double[3];
+        estimator.readPose(pose);
+        assertEquals(100 * PoseEstimator.MM_PER_COUNT, pose[PoseEstimator.X], MM);
+        assertEquals(0, pose[PoseEstimator.Y], MM);
+        assertEquals(0, pose[PoseEstimator.HEADING], MM);
+        assertEquals(100, estimator.getLeftCounts());
+        assertEquals(100, estimator.getRightCounts());
+    }
+
+    @Test
+    public void reversesAcrossTheWrap() {
+        PoseEstimator estimator = new PoseEstimator(ENCODERS);
+        int count = 5;
+        estimator.update(new int[]{count, count});
+        for (int i = 0; i < 3; i++) {
+            count = (count - 10) & 0xffff;
+            estimator.update(new int[]{count, count});
+        }
+        double[] pose = new double[3];
+        estimator.readPose(pose);
+        assertEquals(-30 * PoseEstimator.MM_PER_COUNT, pose[PoseEstimator.X], MM);
+        assertEquals(-30, estimator.getLeftCounts());
+        assertEquals(30 * PoseEstimator.MM_PER_COUNT, estimator.getDistanceTravelled(), MM);
+    }
+
+    @Test
+    public void spinsOnTheSpot() {
+        PoseEstimator estimator = new PoseEstimator(ENCODERS);
+        // Counts per wheel for a quarter turn
+        double quarter = Math.PI / 2 * PoseEstimator.WHEEL_BASE / 2 / PoseEstimator.MM_PER_COUNT;
+        int left = 0;
+        int right = 0;
+        estimator.update(new int[]{left, right});
+        double[] pose = new double[3];
+        for (int i = 1; i <= 40; i++) {//A full turn in 40 frames
+            int target = (int) Math.round(4 * quarter * i / 40);
+            left = -target & 0xffff;
+            right = target & 0xffff;
+            estimator.update(new int[]{left, right});
+            if (i == 10) {
+                estimator.readPose(pose);
+                assertEquals(Math.PI / 2, pose[PoseEstimator.HEADING],
+                        PoseEstimator.MM_PER_COUNT / PoseEstimator.WHEEL_BASE);
+            }
+        }
+        estimator.readPose(pose);
+        assertEquals(0, pose[PoseEstimator.X], MM);
+        assertEquals(0, pose[PoseEstimator.Y], MM);
+        assertEquals(0, Math.sin(pose[PoseEstimator.HEADING]),
+                2 * PoseEstimator.MM_PER_COUNT / PoseEstimator.WHEEL_BASE);
+    }
+
+    @Test
+    public void fallsBackToDistanceAndAngle() {
+        PoseEstimator estimator = new PoseEstimator(DISTANCE_ANGLE);
+        assertTrue(estimator.isAvailable());
+        assertFalse(estimator.usesEncoders());
+        for (int i = 0; i < 5; i++) {
+            estimator.update(new int[]{10, 0});
+        }
+        estimator.update(new int[]{0, 90});
+        estimator.update(new int[]{20, 0});
+        double[] pose = new double[3];
+        estimator.readPose(pose);
+        assertEquals(50, pose[PoseEstimator.X], MM);
+        assertEquals(20, pose[PoseEstimator.Y], MM);
+        assertEquals(Math.PI / 2, pose[PoseEstimator.HEADING], MM);
+        assertEquals(70, estimator.getDistanceMm());
+        assertEquals(90, estimator.getAngleDegrees());
+    }
+
+    @Test
+    public void unavailableWithoutOdometry() {
+        PoseEstimator estimator = new PoseEstimator(new SensorPacket[]{SensorPacket.DISTANCE});
+        assertFalse(estimator.isAvailable());
+        estimator.update(new int[]{100});
+        double[] pose = new double[3];
+        assertEquals(0, estimator.readPose(pose));
+        assertEquals(0, pose[PoseEstimator.X], 0);
+    }
+
+    @Test
+    public void resetMovesThePose() {
+        PoseEstimator estimator = new PoseEstimator(DISTANCE_ANGLE);
+        estimator.reset(100, 200, 3 * Math.PI);
+        estimator.update(new int[]{10, 0});
+        double[] pose = new double[3];
+        estimator.readPose(pose);
+        assertEquals(90, pose[PoseEstimator.X], MM);
+        assertEquals(200, pose[PoseEstimator.Y], MM);
+        assertEquals(Math.PI, pose[PoseEstimator.HEADING], MM);
+    }
+}
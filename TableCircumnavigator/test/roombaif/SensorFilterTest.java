@@ -0,0 +1,97 @@
+package roombaif;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Checks each SensorFilter stage, chains of them, and the parsing of
+ * filter specifications.
+ *
+ * @author Braden Phillips
+ */
+public class SensorFilterTest {
+
+    @Test
+    public void emaSeedsWithFirstValue() {
+        assertArrayEquals(new int[]{100, 50, 25, 13},
+                run("ema 0.5", 100, 0, 0, 0));
+    }
+
+    @Test
+    public void medianRemovesSpikes() {
+        assertArrayEquals(new int[]{5, 5, 5, 5, 6, 6},
+                run("median 3", 5, 5, 900, 5, 6, 6));
+    }
+
+    @Test
+    public void medianOfAnEvenCountIsTheLowerMiddle() {
+        assertArrayEquals(new int[]{10, 10, 20, 20, 30},
+                run("median 4", 10, 20, 30, 40, 50));
+    }
+
+    @Test
+    public void hysteresisNeedsTheFarThreshold() {
+        assertArrayEquals(new int[]{0, 0, 1, 1, 1, 0, 0},
+                run("hysteresis 10 20", 0, 15, 20, 15, 11, 10, 15));
+    }
+
+    @Test
+    public void hysteresisLowTurnsOnWhenTheValueFalls() {
+        assertArrayEquals(new int[]{0, 0, 1, 1, 0},
+                run("hysteresis-low 600 1200", 2000, 800, 600, 1100, 1200));
+    }
+
+    @Test
+    public void hysteresisStartsNearestTheFirstValue() {
+        assertArrayEquals(new int[]{1}, run("hysteresis-low 600 1200", 700));
+        assertArrayEquals(new int[]{0}, run("hysteresis-low 600 1200", 1100));
+    }
+
+    @Test
+    public void debounceWaitsForARun() {
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0, 1, 1},
+                run("debounce 3", 0, 1, 0, 1, 1, 1, 1));
+    }
+
+    @Test
+    public void chainAppliesStagesInTurn() {
+        // A single dip below LOW is removed by the median before hysteresis
+        assertArrayEquals(new int[]{0, 0, 0, 0, 1, 1},
+                run("median 3 hysteresis-low 600 1200", 2000, 2000, 500, 2000, 500, 500));
+    }
+
+    @Test
+    public void rejectsMalformedSpecifications() {
+        String[] specs = {"", "smooth 3", "median", "median x", "ema 0",
+            "hysteresis 20 10", "debounce 0"};
+        for (String spec : specs) {
+            try {
+                SensorFilter.parse(spec);
+                fail("accepted \"" + spec + "\"");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void filtersAreIndependent() {
+        SensorFilter a = SensorFilter.parse("median 3");
+        SensorFilter b = SensorFilter.parse("median 3");
+        a.filter(7);
+        a.filter(7);
+        assertEquals(1, b.filter(1));
+    }
+
+    /* Private helper functions */
+    private static int[] run(String spec, int... values) {
+        SensorFilter filter = SensorFilter.parse(spec);
+        int[] out = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            out[i] = filter.filter(values[i]);
+        }
+        return out;
+    }
+}
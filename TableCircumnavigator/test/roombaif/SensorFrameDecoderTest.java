@@ -0,0 +1,284 @@
+package roombaif;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Feeds generated byte streams to SensorFrameDecoder and checks its frames
+ * against the LinkedList parser it replaced.
+ *
+ * @author Braden Phillips
+ */
+public class SensorFrameDecoderTest {
+
+    private static final SensorPacket[] PACKETS = {
+        SensorPacket.BUMPS_AND_WHEEL_DROPS, SensorPacket.DISTANCE,
+        SensorPacket.VOLTAGE, SensorPacket.CLIFF_LEFT
+    };
+
+    /**
+     * The parser RoombaSerialIF used before SensorFrameDecoder, copied as it
+     * was. It adds each data byte as a signed Java byte, so it only agrees
+     * with the decoder on frames whose data bytes are all below 0x80.
+     */
+    static class BaselineParser {
+
+        private final SensorPacket[] sensorPacketsRequested;
+        private final int sensorDataLength;
+        private final List<Byte> rawSensorData = new LinkedList<Byte>();
+        private final List<int[]> frames = new ArrayList<int[]>();
+
+        BaselineParser(SensorPacket[] sensorPacketsRequested) {
+            this.sensorPacketsRequested = sensorPacketsRequested;
+            int length = 3 + sensorPacketsRequested.length;
+            for (SensorPacket s : sensorPacketsRequested) {
+                length += s.length();
+            }
+            sensorDataLength = length;
+        }
+
+        void serialEvent(byte[] buffer) {
+            for (byte b : buffer) {
+                rawSensorData.add(b);
+            }
+            while (rawSensorData.size() >= sensorDataLength) {
+                if (rawSensorData.get(0) != SensorFrameLayout.SENSOR_STREAM_HEADER) {
+                    rawSensorData.remove(0);
+                } else if (checkRawSensorData()) {
+                    interpretRawSensorData();
+                } else {
+                    rawSensorData.remove(0);
+                }
+            }
+        }
+
+        private boolean checkRawSensorData() {
+            if (rawSensorData.get(1) != sensorDataLength - 3) {
+                return false;
+            }
+            int i = 2;
+            for (SensorPacket s : sensorPacketsRequested) {
+                if (rawSensorData.get(i) != s.id()) {
+                    return false;
+                }
+                i += s.length() + 1;
+            }
+            int checksum = 0;
+            for (int j = 0; j < sensorDataLength; j++) {
+                checksum += (rawSensorData.get(j) & 0xff);
+            }
+            return (checksum & 0xff) == 0;
+        }
+
+        private void interpretRawSensorData() {
+            int[] sensorData = new int[sensorPacketsRequested.length];
+            int sensorDataIndex = 0;
+            rawSensorData.remove(0);
+            rawSensorData.remove(0);
+            for (SensorPacket s : sensorPacketsRequested) {
+                rawSensorData.remove(0);
+                sensorData[sensorDataIndex] = 0;
+                for (int i = 0; i < s.length(); i++) {
+                    sensorData[sensorDataIndex] *= 256;
+                    sensorData[sensorDataIndex] += rawSensorData.remove(0);
+                }
+                if (s.signed() && (sensorData[sensorDataIndex] >= 1 << (8 * s.length() - 1))) {
+                    sensorData[sensorDataIndex] -= 1 << (8 * s.length());
+                }
+                sensorDataIndex++;
+            }
+            rawSensorData.remove(0);
+            frames.add(sensorData);
+        }
+    }
+
+    /**
+     * Collects the frames decoded.
+     */
+    static class Collector implements SensorFrameDecoder.FrameHandler {
+
+        final List<int[]> frames = new ArrayList<int[]>();
+
+        @Override
+        public void frameDecoded(int[] values) {
+            frames.add(values.clone());
+        }
+    }
+
+    @Test
+    public void decodesCleanStream() {
+        byte[] stream = concat(frame(0, 0, 0, 0), frame(3, -200, 15000, 1),
+                frame(0, 32767, 65535, 0), frame(2, -32768, 0, 1));
+        List<int[]> frames = decode(stream, stream.length);
+        assertEquals(4, frames.size());
+        assertArrayEquals(new int[]{3, -200, 15000, 1}, frames.get(1));
+        assertArrayEquals(new int[]{0, 32767, 65535, 0}, frames.get(2));
+        assertArrayEquals(new int[]{2, -32768, 0, 1}, frames.get(3));
+    }
+
+    @Test
+    public void skipsGarbageBeforeAndInsideFrames() {
+        byte[] good = frame(1, 100, 14000, 0);
+        byte[] cut = new byte[good.length / 2];
+        System.arraycopy(good, 0, cut, 0, cut.length);
+        byte[] stream = concat(new byte[]{0, 19, 5, (byte) 0xff, 19},
+                good, cut, new byte[]{19, 19, 7}, frame(0, -1, 13000, 1));
+        Collector collector = new Collector();
+        SensorFrameDecoder decoder = decoder(collector);
+        decoder.decode(stream, 0, stream.length);
+        assertEquals(2, collector.frames.size());
+        assertArrayEquals(new int[]{1, 100, 14000, 0}, collector.frames.get(0));
+        assertArrayEquals(new int[]{0, -1, 13000, 1}, collector.frames.get(1));
+        assertEquals(stream.length, decoder.getByteCount());
+        assertEquals(stream.length - 2 * good.length, decoder.getResyncByteCount());
+    }
+
+    @Test
+    public void reassemblesSplitFrames() {
+        byte[] stream = concat(frame(1, 10, 100, 0), frame(2, -10, 200, 1),
+                frame(3, 20, 300, 0));
+        for (int chunk = 1; chunk <= stream.length; chunk++) {
+            List<int[]> frames = decode(stream, chunk);
+            assertEquals("chunk " + chunk, 3, frames.size());
+            assertArrayEquals(new int[]{2, -10, 200, 1}, frames.get(1));
+        }
+    }
+
+    @Test
+    public void rejectsBadChecksum() {
+        byte[] bad = frame(1, 10, 100, 0);
+        bad[bad.length - 1]++;
+        byte[] stream = concat(bad, frame(0, 5, 50, 1));
+        SensorFrameDecoder decoder = decoder(new Collector());
+        decoder.decode(stream, 0, stream.length);
+        assertEquals(1, decoder.getFrameCount());
+        // The DISTANCE packet ID is 19, the header, so there may be more
+        assertTrue(decoder.getInvalidFrameCount() >= 1);
+    }
+
+    @Test
+    public void rejectsBadPacketId() {
+        byte[] bad = frame(1, 10, 100, 0);
+        bad[2] = SensorPacket.WALL.id();
+        bad[bad.length - 1] -= SensorPacket.WALL.id() - SensorPacket.BUMPS_AND_WHEEL_DROPS.id();
+        byte[] stream = concat(bad, frame(0, 5, 50, 1));
+        Collector collector = new Collector();
+        SensorFrameDecoder decoder = decoder(collector);
+        decoder.decode(stream, 0, stream.length);
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(new int[]{0, 5, 50, 1}, collector.frames.get(0));
+        assertTrue(decoder.getInvalidFrameCount() >= 1);
+    }
+
+    @Test
+    public void decodesDataBytesAbove0x7f() {
+        // The baseline parser got these wrong: 0x0180 came out as 0x0100 - 0x80
+        byte[] stream = frame(0x80, 0x0180, 0xff00, 1);
+        List<int[]> frames = decode(stream, stream.length);
+        assertArrayEquals(new int[]{0x80, 0x0180, 0xff00, 1}, frames.get(0));
+    }
+
+    @Test
+    public void matchesBaselineOnNoisyStreams() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 200; trial++) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            for (int f = 0; f < 50; f++) {
+                int garbage = random.nextInt(4) == 0 ? random.nextInt(8) : 0;
+                for (int g = 0; g < garbage; g++) {
+                    stream.write(random.nextInt(4) == 0 ? 19 : random.nextInt(256));
+                }
+                byte[] frame = frame(random.nextInt(0x80), randomLowBytes(random),
+                        randomLowBytes(random), random.nextInt(2));
+                if (random.nextInt(10) == 0) {//Drop a byte
+                    int drop = random.nextInt(frame.length);
+                    stream.write(frame, 0, drop);
+                    stream.write(frame, drop + 1, frame.length - drop - 1);
+                } else {
+                    stream.write(frame, 0, frame.length);
+                }
+            }
+            byte[] bytes = stream.toByteArray();
+            BaselineParser baseline = new BaselineParser(PACKETS);
+            Collector collector = new Collector();
+            SensorFrameDecoder decoder = decoder(collector);
+            int offset = 0;
+            while (offset < bytes.length) {
+                int n = Math.min(bytes.length - offset, 1 + random.nextInt(40));
+                byte[] event = new byte[n];
+                System.arraycopy(bytes, offset, event, 0, n);
+                baseline.serialEvent(event);
+                decoder.decode(event, 0, n);
+                offset += n;
+            }
+            assertEquals("trial " + trial, baseline.frames.size(), collector.frames.size());
+            for (int i = 0; i < collector.frames.size(); i++) {
+                assertArrayEquals("trial " + trial + " frame " + i,
+                        baseline.frames.get(i), collector.frames.get(i));
+            }
+        }
+    }
+
+    /* Private helper functions */
+    private static SensorFrameDecoder decoder(Collector collector) {
+        return new SensorFrameDecoder(new SensorFrameLayout(PACKETS), collector);
+    }
+
+    private static List<int[]> decode(byte[] stream, int chunk) {
+        Collector collector = new Collector();
+        SensorFrameDecoder decoder = decoder(collector);
+        for (int offset = 0; offset < stream.length; offset += chunk) {
+            decoder.decode(stream, offset, Math.min(chunk, stream.length - offset));
+        }
+        return collector.frames;
+    }
+
+    /**
+     * A 16 bit value whose two bytes are both below 0x80.
+     */
+    private static int randomLowBytes(Random random) {
+        return (random.nextInt(0x80) << 8) | random.nextInt(0x80);
+    }
+
+    /**
+     * Build a frame of PACKETS: bumps, distance, voltage and cliff left.
+     */
+    static byte[] frame(int bumps, int distance, int voltage, int cliffLeft) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(SensorFrameLayout.SENSOR_STREAM_HEADER);
+        out.write(new SensorFrameLayout(PACKETS).getFrameLength() - 3);
+        out.write(SensorPacket.BUMPS_AND_WHEEL_DROPS.id());
+        out.write(bumps);
+        out.write(SensorPacket.DISTANCE.id());
+        out.write(distance >> 8);
+        out.write(distance);
+        out.write(SensorPacket.VOLTAGE.id());
+        out.write(voltage >> 8);
+        out.write(voltage);
+        out.write(SensorPacket.CLIFF_LEFT.id());
+        out.write(cliffLeft);
+        out.write(0);
+        byte[] frame = out.toByteArray();
+        int sum = 0;
+        for (byte b : frame) {
+            sum += b & 0xff;
+        }
+        frame[frame.length - 1] = (byte) -sum;
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) {
+            out.write(p, 0, p.length);
+        }
+        return out.toByteArray();
+    }
+}
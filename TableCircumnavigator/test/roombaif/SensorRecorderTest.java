@@ -0,0 +1,148 @@
+package roombaif;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Records frames and commands with a SensorRecorder and replays them with a
+ * RoombaReplayIF.
+ *
+ * @author Braden Phillips
+ */
+public class SensorRecorderTest {
+
+    private static final SensorPacket[] PACKETS = {
+        SensorPacket.DISTANCE, SensorPacket.VOLTAGE, SensorPacket.BUMPS_AND_WHEEL_DROPS
+    };
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("recorder", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void replaysWhatWasRecorded() throws Exception {
+        // Small segments, so that the recording spans several
+        SensorRecorder recorder = new SensorRecorder(directory, "run", PACKETS, 64, 256);
+        recorder.start();
+        int frames = 100;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            while (!recorder.recordFrame(i, start + i * 15000000L, frame(i))) {
+                Thread.yield();     // the ring is full
+            }
+            if (i % 10 == 0) {
+                while (!recorder.recordDrive(start + i * 15000000L, (short) -200, (short) 500)) {
+                    Thread.yield();
+                }
+            }
+        }
+        while (!recorder.recordMotors(start + frames * 15000000L, 0x15)) {
+            Thread.yield();
+        }
+        recorder.close();
+        assertEquals(frames + 11, recorder.getRecordCount());
+        assertTrue(recorder.getSegmentCount() > 1);
+
+        File[] segments = SensorRecorder.listSegments(directory, "run");
+        assertEquals(recorder.getSegmentCount(), segments.length);
+        assertArrayEquals(PACKETS, RoombaReplayIF.readSensorPackets(segments[0]));
+        RoombaReplayIF replay = new RoombaReplayIF(segments, PACKETS, -1);
+        replay.openIF(true);
+        int[] values = new int[PACKETS.length];
+        for (int i = 0; i < frames; i++) {
+            assertTrue("frame " + i, replay.step());
+            replay.readSensorData(values);
+            assertArrayEquals("frame " + i, frame(i), values);
+        }
+        assertFalse(replay.step());
+        assertTrue(replay.isFinished());
+        assertEquals(10, replay.getRecordedDriveCount());
+        assertEquals(1, replay.getRecordedMotorsCount());
+        replay.closeIF();
+    }
+
+    @Test
+    public void rejectsADifferentPacketList() throws Exception {
+        SensorRecorder recorder = new SensorRecorder(directory, "run", PACKETS);
+        recorder.start();
+        recorder.close();
+        RoombaReplayIF replay = new RoombaReplayIF(SensorRecorder.listSegments(directory, "run"),
+                new SensorPacket[]{SensorPacket.DISTANCE}, -1);
+        try {
+            replay.openIF(true);
+            assertTrue("opened a recording of other packets", false);
+        } catch (RoombaIFException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void writesEveryRecordClaimedBeforeClose() throws Exception {
+        final SensorRecorder recorder = new SensorRecorder(directory, "race", PACKETS, 1024,
+                SensorRecorder.DEFAULT_SEGMENT_BYTES);
+        recorder.start();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong accepted = new AtomicLong(0);
+        Thread[] producers = new Thread[4];
+        for (int t = 0; t < producers.length; t++) {
+            producers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int[] values = frame(1);
+                    long sequence = 0;
+                    while (!stop.get()) {
+                        if (recorder.recordFrame(sequence++, System.nanoTime(), values)) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            producers[t].start();
+        }
+        Thread.sleep(100);
+        recorder.close();
+        stop.set(true);
+        for (Thread p : producers) {
+            p.join();
+        }
+        assertEquals(accepted.get(), recorder.getRecordCount());
+
+        RoombaReplayIF replay = new RoombaReplayIF(
+                SensorRecorder.listSegments(directory, "race"), PACKETS, -1);
+        replay.openIF(true);
+        long replayed = 0;
+        while (replay.step()) {
+            replayed++;
+        }
+        replay.closeIF();
+        assertEquals(accepted.get(), replayed);
+    }
+
+    /* Private helper functions */
+    private static int[] frame(int i) {
+        return new int[]{-1000 + 20 * i, 65000 - i, i & 0x1f};
+    }
+}
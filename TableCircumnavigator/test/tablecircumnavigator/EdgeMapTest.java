@@ -0,0 +1,127 @@
+package tablecircumnavigator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import roombaif.PoseEstimator;
+import roombaif.RoombaDummyIF;
+import roombaif.RoombaIF;
+import roombaif.SensorPacket;
+
+/**
+ * Checks the cells an EdgeMap marks from cliff and bump frames, its growth,
+ * and its edgeAhead and coverage summaries.
+ *
+ * @author Braden Phillips
+ */
+public class EdgeMapTest {
+
+    private static final SensorPacket[] PACKETS = {
+        SensorPacket.DISTANCE, SensorPacket.ANGLE, SensorPacket.BUMPS_AND_WHEEL_DROPS,
+        SensorPacket.CLIFF_LEFT, SensorPacket.CLIFF_FRONT_LEFT,
+        SensorPacket.CLIFF_FRONT_RIGHT, SensorPacket.CLIFF_RIGHT
+    };
+    private static final double CELL = 20;
+
+    private RoombaIF roomba;
+    private PoseEstimator pose;
+    private EdgeMap map;
+
+    @Before
+    public void setUp() {
+        roomba = new RoombaDummyIF(PACKETS);
+        pose = roomba.getPoseEstimator();
+        map = new EdgeMap(roomba, CELL);
+    }
+
+    @Test
+    public void needsOdometryAndCliffsOrBumps() {
+        assertTrue(EdgeMap.canMap(roomba));
+        assertFalse(EdgeMap.canMap(new RoombaDummyIF(new SensorPacket[]{
+            SensorPacket.CLIFF_LEFT, SensorPacket.DISTANCE})));
+        assertFalse(EdgeMap.canMap(new RoombaDummyIF(new SensorPacket[]{
+            SensorPacket.DISTANCE, SensorPacket.ANGLE})));
+    }
+
+    @Test
+    public void marksTheCellUnderATriggeredCliffSensor() {
+        pose.reset(1000, 500, Math.PI / 2);
+        map.sensorFrameReceived(0, new int[]{0, 0, 0, 0, 1, 0, 0});
+        // Front left is 20 degrees left of the heading, 160 mm out
+        double b = Math.PI / 2 + Math.toRadians(20);
+        assertEquals(EdgeMap.EDGE, map.get(1000 + 160 * Math.cos(b), 500 + 160 * Math.sin(b)));
+        assertEquals(1, map.getCellCount());
+    }
+
+    @Test
+    public void marksAnObstacleInFrontOfABumper() {
+        map.sensorFrameReceived(0, new int[]{0, 0, 0x2, 0, 0, 0, 0});
+        double b = Math.toRadians(30);
+        double reach = 170 + CELL / 2;
+        assertEquals(EdgeMap.OBSTACLE, map.get(reach * Math.cos(b), reach * Math.sin(b)));
+        assertEquals(0, map.get(reach * Math.cos(b), -reach * Math.sin(b)));
+    }
+
+    @Test
+    public void ignoresQuietFrames() {
+        map.sensorFrameReceived(0, new int[]{10, 5, 0, 0, 0, 0, 0});
+        assertEquals(0, map.getCellCount());
+    }
+
+    @Test
+    public void keepsEveryCellAsItGrows() {
+        for (int i = 0; i < 5000; i++) {
+            map.mark(i * CELL, -i * CELL, (i % 2 == 0) ? EdgeMap.EDGE : EdgeMap.OBSTACLE);
+        }
+        map.mark(0, 0, EdgeMap.OBSTACLE);
+        assertEquals(5000, map.getCellCount());
+        for (int i = 1; i < 5000; i++) {
+            assertEquals((i % 2 == 0) ? EdgeMap.EDGE : EdgeMap.OBSTACLE,
+                    map.get(i * CELL + 1, -i * CELL + 1));
+        }
+        assertEquals(EdgeMap.EDGE | EdgeMap.OBSTACLE, map.get(0, 0));
+        assertEquals(0, map.get(-CELL, 0));
+    }
+
+    @Test
+    public void findsTheEdgeAhead() {
+        map.mark(405, 0, EdgeMap.EDGE);
+        assertEquals(400 - 170, map.edgeAhead(300), CELL / 2);
+        assertEquals(-1, map.edgeAhead(200), 0);
+        pose.reset(0, 0, Math.PI);
+        assertEquals(-1, map.edgeAhead(300), 0);
+        pose.reset(300, 0, 0);
+        assertEquals(0, map.edgeAhead(300), 0);
+    }
+
+    @Test
+    public void searchesAcrossTheRobotsWidth() {
+        map.mark(405, 125, EdgeMap.EDGE);
+        assertTrue(map.edgeAhead(300) >= 0);
+        map = new EdgeMap(roomba, CELL);
+        map.mark(405, 300, EdgeMap.EDGE);
+        assertEquals(-1, map.edgeAhead(300), 0);
+    }
+
+    @Test
+    public void coversSectorsBetweenNearbyHits() {
+        assertEquals(0, map.getCoverage(), 0);
+        for (int degrees = 0; degrees < 360; degrees += 15) {
+            double a = Math.toRadians(degrees);
+            map.mark(1000 * Math.cos(a), 1000 * Math.sin(a), EdgeMap.EDGE);
+        }
+        map.mark(1000, 30, EdgeMap.EDGE);   // back past the first hit
+        assertEquals(1, map.getCoverage(), 1e-9);
+    }
+
+    @Test
+    public void doesNotLinkDistantHits() {
+        map.mark(1000, 1, EdgeMap.EDGE);
+        map.mark(-1000, 1, EdgeMap.EDGE);
+        assertEquals(2 / 36.0, map.getCoverage(), 1e-9);
+        map.mark(1000, 2, EdgeMap.OBSTACLE);
+        assertEquals(2 / 36.0, map.getCoverage(), 1e-9);
+    }
+}
@@ -0,0 +1,47 @@
+package tablecircumnavigator;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * Checks which rule files RuleCache will cache.
+ *
+ * @author Braden Phillips
+ */
+public class RuleCacheTest {
+
+    @Test
+    public void cachesFilesOfProductions() {
+        assertNull(RuleCache.findOtherCommand(""));
+        assertNull(RuleCache.findOtherCommand(
+                "# A comment with watch 5 {\n"
+                + "sp {a*b (state <s> ^superstate nil) --> (write |}{ source x|)}\n"
+                + "sp \"c*d (state <s> ^x \\\"y\\\") --> (<s> ^z 1)\";\n"
+                + "gp {e*[f g] (state <s>) --> (halt)}\n"));
+    }
+
+    @Test
+    public void bypassesFilesWithOtherCommands() {
+        assertEquals("watch", RuleCache.findOtherCommand(
+                "sp {a (state <s>) --> (halt)}\nwatch 5\n"));
+        assertEquals("source", RuleCache.findOtherCommand("source other.soar\n"));
+        assertEquals("learn", RuleCache.findOtherCommand(
+                "sp {a (state <s>) --> (halt)}; learn --on"));
+    }
+
+    @Test
+    public void bypassesFilesItCannotParse() {
+        assertEquals("sp (unterminated)", RuleCache.findOtherCommand("sp {a (state <s>) -->"));
+        assertEquals("sp (unterminated)", RuleCache.findOtherCommand("sp a"));
+    }
+
+    @Test
+    public void cachesTheShippedRules() throws Exception {
+        byte[] rules = Files.readAllBytes(Paths.get(Robot.RULES));
+        assertNull(RuleCache.findOtherCommand(new String(rules, StandardCharsets.ISO_8859_1)));
+    }
+}
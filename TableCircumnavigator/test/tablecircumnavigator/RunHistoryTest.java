@@ -0,0 +1,118 @@
+package tablecircumnavigator;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes runs to a RunHistory and checks what is written, what is counted
+ * as dropped when a batch fails, and that histories sharing a file keep
+ * their runs apart.
+ *
+ * @author Braden Phillips
+ */
+public class RunHistoryTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("history", ".db");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+        new File(file.getPath() + "-journal").delete();
+    }
+
+    @Test
+    public void writesEveryRowQueued() throws Exception {
+        RunHistory history = new RunHistory(file.getPath());
+        history.open();
+        long run = history.startRun("robot", "sim", "CLIFF_LEFT");
+        history.recordCommand(run, 1, (short) 100, (short) 0);
+        history.recordEvent(run, 2, RunHistory.CLIFF, "left");
+        history.endRun(run, 10, 20, 1, 0, 1, 0, 0);
+        history.close();
+        assertEquals(4, history.getWrittenCount());
+        assertEquals(0, history.getDroppedCount());
+        assertEquals(1, history.queryEvents(RunHistory.CLIFF, 0, 10).size());
+    }
+
+    @Test
+    public void countsABatchThatFailsAndCarriesOn() throws Exception {
+        RunHistory history = new RunHistory(file.getPath());
+        history.open();
+        long run = history.startRun("robot", "sim", "CLIFF_LEFT");
+        waitForWritten(history, 1);
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        Statement statement = connection.createStatement();
+        statement.executeUpdate("DROP TABLE commands");
+        statement.close();
+        connection.close();
+        for (int i = 0; i < 5; i++) {
+            history.recordCommand(run, i, (short) 100, (short) 0);
+        }
+        waitForDropped(history, 5);
+        history.recordEvent(run, 10, RunHistory.BUMP, "left");
+        history.close();
+        assertEquals(2, history.getWrittenCount());
+        assertEquals(5, history.getDroppedCount());
+        assertTrue(history.getFailedBatchCount() >= 1);
+        assertEquals(1, history.queryEvents(RunHistory.BUMP, 0, 20).size());
+        // The connection was closed, so the file can be opened afresh
+        history = new RunHistory(file.getPath());
+        history.open();
+        history.close();
+    }
+
+    @Test
+    public void historiesSharingAFileKeepTheirRunsApart() throws Exception {
+        RunHistory a = new RunHistory(file.getPath());
+        RunHistory b = new RunHistory(file.getPath());
+        a.open();
+        b.open();
+        long runA = a.startRun("a", "sim", "CLIFF_LEFT");
+        long runB = b.startRun("b", "sim", "CLIFF_LEFT");
+        assertTrue(runA != runB);
+        a.close();
+        b.close();
+        assertEquals(0, a.getDroppedCount() + b.getDroppedCount());
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        Statement statement = connection.createStatement();
+        ResultSet result = statement.executeQuery("SELECT COUNT(DISTINCT run_id) FROM runs");
+        assertEquals(2, result.getInt(1));
+        result.close();
+        statement.close();
+        connection.close();
+    }
+
+    /* Private helper functions */
+    private static void waitForWritten(RunHistory history, long rows)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (history.getWrittenCount() < rows && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(rows, history.getWrittenCount());
+    }
+
+    private static void waitForDropped(RunHistory history, long rows)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (history.getDroppedCount() < rows && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(rows, history.getDroppedCount());
+    }
+}